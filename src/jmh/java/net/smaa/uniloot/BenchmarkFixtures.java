@@ -0,0 +1,58 @@
+package net.smaa.uniloot;
+
+import net.kyori.adventure.text.Component;
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.mockbukkit.mockbukkit.MockBukkit;
+
+/**
+ * Shared setup for the benchmarks. Each benchmark runs in its own forked JVM, so the mock server is started once per fork.
+ */
+public final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    public static synchronized void startServer() {
+        if (!MockBukkit.isMocked()) {
+            MockBukkit.mock();
+        }
+    }
+
+    public static synchronized void stopServer() {
+        if (MockBukkit.isMocked()) {
+            MockBukkit.unmock();
+        }
+    }
+
+    /**
+     * @return The contents of a typical looted single chest: 27 slots, about a third of them filled,
+     *         with a mix of plain stacks and items carrying enchantments and custom names.
+     */
+    public static ItemStack[] chestContents() {
+        ItemStack[] contents = new ItemStack[27];
+        contents[0] = new ItemStack(Material.IRON_INGOT, 5);
+        contents[3] = new ItemStack(Material.BREAD, 3);
+        contents[4] = new ItemStack(Material.GOLDEN_APPLE, 1);
+        contents[8] = new ItemStack(Material.ROTTEN_FLESH, 12);
+        contents[11] = enchanted(new ItemStack(Material.DIAMOND_SWORD), "Rusty Blade", Enchantment.SHARPNESS, 3);
+        contents[13] = new ItemStack(Material.ARROW, 24);
+        contents[17] = new ItemStack(Material.SADDLE, 1);
+        contents[20] = enchanted(new ItemStack(Material.IRON_CHESTPLATE), null, Enchantment.PROTECTION, 2);
+        contents[22] = new ItemStack(Material.EMERALD, 4);
+        contents[26] = new ItemStack(Material.GUNPOWDER, 7);
+        return contents;
+    }
+
+    private static ItemStack enchanted(ItemStack item, String name, Enchantment enchantment, int level) {
+        ItemMeta meta = item.getItemMeta();
+        meta.addEnchant(enchantment, level, true);
+        if (name != null) {
+            meta.displayName(Component.text(name));
+        }
+        item.setItemMeta(meta);
+        return item;
+    }
+}
@@ -0,0 +1,94 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.BenchmarkFixtures;
+import net.smaa.uniloot.utils.FallbackLootItem;
+import net.smaa.uniloot.utils.FallbackLootTable;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-close change detection and fallback loot generation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LootManagerBenchmark {
+
+    private ItemStack[] initialContents;
+    private LootInventoryHolder untouchedHolder;
+    private LootInventoryHolder changedHolder;
+    private FallbackLootTable fallbackTable;
+    private Inventory fallbackInventory;
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkFixtures.startServer();
+        initialContents = BenchmarkFixtures.chestContents();
+        untouchedHolder = openInventory(initialContents);
+        // Taking one item marks a single slot, only that slot is compared on close.
+        changedHolder = openInventory(initialContents);
+        changedHolder.getInventory().setItem(26, null);
+        changedHolder.markDirty(26);
+
+        List<FallbackLootItem> fallbackItems = new ArrayList<>();
+        Material[] materials = { Material.BREAD, Material.IRON_INGOT, Material.GOLD_INGOT, Material.DIAMOND, Material.EMERALD,
+                Material.ARROW, Material.COAL, Material.STRING, Material.BONE, Material.ENDER_PEARL };
+        for (int i = 0; i < materials.length; i++) {
+            int weight = 100 >> (i / 2);
+            fallbackItems.add(new FallbackLootItem(materials[i], 1, 4, weight));
+        }
+        fallbackTable = FallbackLootTable.compile(fallbackItems);
+        fallbackInventory = Bukkit.createInventory(null, 27);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.stopServer();
+    }
+
+    @Benchmark
+    public ItemStack[] closeUntouched() {
+        return untouchedHolder.collectChanges();
+    }
+
+    @Benchmark
+    public ItemStack[] closeChanged() {
+        return changedHolder.collectChanges();
+    }
+
+    @Benchmark
+    public int sampleFallback() {
+        return fallbackTable.sample(random);
+    }
+
+    @Benchmark
+    public int fillFallback() {
+        fallbackInventory.clear();
+        return fallbackTable.fill(fallbackInventory, 3, random);
+    }
+
+    private static LootInventoryHolder openInventory(ItemStack[] contents) {
+        LootInventoryHolder holder = new LootInventoryHolder(null, contents, -1);
+        Inventory inventory = Bukkit.createInventory(holder, contents.length);
+        holder.setInventory(inventory);
+        inventory.setContents(contents);
+        return holder;
+    }
+}
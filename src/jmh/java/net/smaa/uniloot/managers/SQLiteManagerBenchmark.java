@@ -0,0 +1,98 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.BenchmarkFixtures;
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.inventory.ItemStack;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips against a real SQLite file in the mock plugin's temporary data folder:
+ * a batch of record writes as the write-behind queue flushes them, and single record reads as a chest open does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SQLiteManagerBenchmark {
+
+    private static final int WORLD_ID = 1;
+    private static final int STORED_RECORDS = 10_000;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private SQLiteManager sqliteManager;
+    private ItemStack[] contents;
+    private LocationKey[] storedKeys;
+    private UUID playerUUID;
+    private int nextWrite;
+    private int nextRead;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkFixtures.startServer();
+        UniLoot plugin = MockBukkit.load(UniLoot.class);
+        // Take the database away from the plugin so the benchmark owns the only connections.
+        MockBukkit.getMock().getPluginManager().disablePlugin(plugin);
+        new File(plugin.getDataFolder(), "uniloot.db").delete();
+
+        sqliteManager = new SQLiteManager(plugin);
+        sqliteManager.connect();
+        contents = BenchmarkFixtures.chestContents();
+        playerUUID = UUID.randomUUID();
+
+        storedKeys = new LocationKey[STORED_RECORDS];
+        List<PendingWrite> writes = new ArrayList<>(STORED_RECORDS);
+        for (int i = 0; i < STORED_RECORDS; i++) {
+            storedKeys[i] = LocationKey.of(WORLD_ID, i * 7, 64, i * 13);
+            writes.add(PendingWrite.playerRecord(storedKeys[i], playerUUID, new PlayerLootRecord(System.currentTimeMillis(), contents)));
+        }
+        sqliteManager.applyWrites(writes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sqliteManager.disconnect();
+        BenchmarkFixtures.stopServer();
+    }
+
+    @Benchmark
+    public boolean writeBatch() {
+        List<PendingWrite> writes = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            int n = nextWrite++;
+            LocationKey key = LocationKey.of(WORLD_ID, n, 80, -n);
+            writes.add(PendingWrite.playerRecord(key, playerUUID, new PlayerLootRecord(System.currentTimeMillis(), contents)));
+        }
+        return sqliteManager.applyWrites(writes);
+    }
+
+    @Benchmark
+    public long readTimestamp() {
+        LocationKey key = storedKeys[nextRead++ % STORED_RECORDS];
+        return sqliteManager.getPlayerRecord(key, playerUUID).getTimestamp();
+    }
+
+    @Benchmark
+    public ItemStack[] readRecord() {
+        LocationKey key = storedKeys[nextRead++ % STORED_RECORDS];
+        return sqliteManager.getPlayerRecord(key, playerUUID).getContentsUnsafe();
+    }
+}
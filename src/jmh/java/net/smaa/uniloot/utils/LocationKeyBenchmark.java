@@ -0,0 +1,45 @@
+package net.smaa.uniloot.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building a location key, as a string and as a packed {@link LocationKey}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LocationKeyBenchmark {
+
+    // Non-final so the JIT cannot fold the coordinates into constants.
+    private String worldName = "world_the_nether";
+    private int x = -12_345;
+    private int y = 64;
+    private int z = 6_789;
+
+    @Benchmark
+    public String locationToString() {
+        return LocationUtil.locationToString(worldName, x, y, z);
+    }
+
+    @Benchmark
+    public int locationToStringHash() {
+        return LocationUtil.locationToString(worldName, x, y, z).hashCode();
+    }
+
+    @Benchmark
+    public LocationKey packedKey() {
+        return LocationKey.of(3, x, y, z);
+    }
+
+    @Benchmark
+    public int packedKeyHash() {
+        return LocationKey.of(3, x, y, z).hashCode();
+    }
+}
@@ -0,0 +1,84 @@
+package net.smaa.uniloot.utils;
+
+import net.smaa.uniloot.BenchmarkFixtures;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of a typical chest, for the legacy Base64 format, the current binary codec
+ * and a player record stored as a delta against its captured template (one slot taken).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+    private final ItemStackCodec binaryCodec = new BinaryItemStackCodec();
+    private ItemStack[] contents;
+    private String legacyEncoded;
+    private byte[] binaryEncoded;
+    private ItemStack[] looted;
+    private byte[] deltaEncoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkFixtures.startServer();
+        contents = BenchmarkFixtures.chestContents();
+        legacyEncoded = SerializationUtil.itemStackArrayToBase64(contents);
+        binaryEncoded = binaryCodec.encode(contents);
+        looted = contents.clone();
+        for (int slot = 0; slot < looted.length; slot++) {
+            if (looted[slot] != null) {
+                looted[slot] = null;
+                break;
+            }
+        }
+        deltaEncoded = ItemStackDelta.encode(contents, looted);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.stopServer();
+    }
+
+    @Benchmark
+    public String legacyEncode() {
+        return SerializationUtil.itemStackArrayToBase64(contents);
+    }
+
+    @Benchmark
+    public ItemStack[] legacyDecode() throws IOException {
+        return SerializationUtil.itemStackArrayFromBase64(legacyEncoded);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return binaryCodec.encode(contents);
+    }
+
+    @Benchmark
+    public ItemStack[] binaryDecode() throws IOException {
+        return binaryCodec.decode(binaryEncoded);
+    }
+
+    @Benchmark
+    public byte[] deltaEncode() {
+        return ItemStackDelta.encode(contents, looted);
+    }
+
+    @Benchmark
+    public ItemStack[] deltaDecode() throws IOException {
+        return ItemStackDelta.apply(contents, deltaEncoded);
+    }
+}
@@ -1,19 +1,35 @@
 package net.smaa.uniloot;
 
 import net.smaa.uniloot.commands.UniLootCommand;
+import net.smaa.uniloot.managers.ChunkClassifier;
+import net.smaa.uniloot.managers.ChunkDataCache;
 import net.smaa.uniloot.managers.SQLiteManager;
 import net.smaa.uniloot.managers.ConfigManager;
+import net.smaa.uniloot.managers.ContainerInspector;
 import net.smaa.uniloot.managers.DataManager;
 import net.smaa.uniloot.managers.LootManager;
+import net.smaa.uniloot.managers.LootPregenerator;
+import net.smaa.uniloot.managers.MetricsManager;
 import net.smaa.uniloot.managers.ProtectionManager;
+import net.smaa.uniloot.managers.RecordCleaner;
+import net.smaa.uniloot.managers.RecordPrefetcher;
+import net.smaa.uniloot.managers.WorldRegistry;
+import net.smaa.uniloot.managers.WriteBehindQueue;
 import org.bukkit.command.PluginCommand;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public class UniLoot extends JavaPlugin {
 
     private ConfigManager configManager;
+    private MetricsManager metrics;
     private DataManager dataManager;
     private SQLiteManager sqliteManager;
+    private WriteBehindQueue writeQueue;
+    private ChunkDataCache chunkCache;
+    private RecordPrefetcher prefetcher;
+    private WorldRegistry worldRegistry;
+    private RecordCleaner recordCleaner;
+    private UniLootCommand commandExecutor;
 
     @Override
     public void onEnable() {
@@ -29,31 +45,65 @@ public class UniLoot extends JavaPlugin {
 
             getLogger().info("STEP 1: Initializing ConfigManager...");
             configManager = new ConfigManager(this);
+            metrics = new MetricsManager(this, configManager);
 
             getLogger().info("STEP 2: Initializing SQLiteManager...");
             sqliteManager = new SQLiteManager(this);
 
             getLogger().info("STEP 3: Initializing DataManager...");
-            dataManager = new DataManager(this, configManager, sqliteManager);
+            writeQueue = new WriteBehindQueue(this, configManager, sqliteManager);
+            worldRegistry = new WorldRegistry(this, sqliteManager);
+            chunkCache = new ChunkDataCache(this, configManager, sqliteManager, writeQueue, worldRegistry);
+            prefetcher = new RecordPrefetcher(this, configManager, sqliteManager, writeQueue, chunkCache, worldRegistry);
+            dataManager = new DataManager(this, configManager, sqliteManager, writeQueue, chunkCache, prefetcher, worldRegistry);
 
             getLogger().info("STEP 4: Loading configuration from config.yml...");
             configManager.loadConfig();
 
             getLogger().info("STEP 5: Connecting to the database...");
             sqliteManager.connect();
+            worldRegistry.load();
+            dataManager.loadStorage();
+
+            getLogger().info("STEP 6: Starting background database writer and chunk cache...");
+            writeQueue.start();
+            metrics.gauge("write_queue_depth", writeQueue::getQueueDepth);
+            metrics.gauge("write_flush_avg_ms", writeQueue::getAverageFlushMillis);
+            metrics.gauge("write_flush_max_ms", writeQueue::getMaxFlushMillis);
+            metrics.gauge("template_cache_bytes", dataManager::getTemplateCacheBytes);
+            metrics.gauge("shared_loot_instances", dataManager::getSharedLootCount);
+            metrics.start();
+            if (ConfigManager.STORAGE_BACKEND_SQLITE.equals(configManager.getStorageBackend())) {
+                getServer().getPluginManager().registerEvents(chunkCache, this);
+                chunkCache.prefetchLoadedChunks();
+                getServer().getPluginManager().registerEvents(prefetcher, this);
+                prefetcher.prefetchForOnlinePlayers();
+            }
+            recordCleaner = new RecordCleaner(this, configManager, sqliteManager, writeQueue);
+            getServer().getPluginManager().registerEvents(recordCleaner, this);
+            if (ConfigManager.STORAGE_BACKEND_SQLITE.equals(configManager.getStorageBackend())) {
+                recordCleaner.start();
+            }
 
-            getLogger().info("STEP 6: Registering LootManager listener...");
-            getServer().getPluginManager().registerEvents(new LootManager(this, configManager, dataManager), this);
+            getLogger().info("STEP 7: Registering LootManager listener...");
+            ContainerInspector inspector = new ContainerInspector(this);
+            LootPregenerator pregenerator = new LootPregenerator(this, configManager, dataManager);
+            getServer().getPluginManager().registerEvents(pregenerator, this);
+            pregenerator.startForOnlinePlayers();
+            getServer().getPluginManager().registerEvents(new LootManager(this, configManager, dataManager, pregenerator, inspector), this);
 
-            getLogger().info("STEP 7: Registering ProtectionManager listener...");
-            getServer().getPluginManager().registerEvents(new ProtectionManager(this, configManager, dataManager), this);
+            getLogger().info("STEP 8: Registering ProtectionManager listener...");
+            getServer().getPluginManager().registerEvents(new ProtectionManager(this, configManager, dataManager, inspector), this);
+            ChunkClassifier chunkClassifier = new ChunkClassifier(this, configManager, dataManager);
+            getServer().getPluginManager().registerEvents(chunkClassifier, this);
+            chunkClassifier.classifyLoadedChunks();
 
-            getLogger().info("STEP 8: Getting '/uniloot' command from server...");
+            getLogger().info("STEP 9: Getting '/uniloot' command from server...");
             PluginCommand pluginCommand = getCommand("uniloot");
 
-            getLogger().info("STEP 9: Setting up command executor and tab completer...");
+            getLogger().info("STEP 10: Setting up command executor and tab completer...");
             if (pluginCommand != null) {
-                UniLootCommand commandExecutor = new UniLootCommand(this);
+                commandExecutor = new UniLootCommand(this);
                 pluginCommand.setExecutor(commandExecutor);
                 pluginCommand.setTabCompleter(commandExecutor);
             } else {
@@ -76,6 +126,23 @@ public class UniLoot extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        if (commandExecutor != null) {
+            commandExecutor.cancelScans();
+            commandExecutor.cancelMigration();
+        }
+        if (recordCleaner != null) {
+            recordCleaner.stop();
+        }
+        if (metrics != null) {
+            metrics.stop();
+        }
+        // Drain queued writes before the connection goes away.
+        if (writeQueue != null) {
+            writeQueue.shutdown();
+        }
+        if (dataManager != null) {
+            dataManager.shutdown();
+        }
         if (sqliteManager != null) {
             sqliteManager.disconnect();
         }
@@ -89,5 +156,9 @@ public class UniLoot extends JavaPlugin {
     public DataManager getDataManager() {
         return dataManager;
     }
+
+    public MetricsManager getMetrics() {
+        return metrics;
+    }
 }
 
@@ -5,10 +5,8 @@ import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
 import net.smaa.uniloot.UniLoot;
 import net.smaa.uniloot.managers.ConfigManager;
 import net.smaa.uniloot.managers.DataManager;
-import net.smaa.uniloot.utils.LocationUtil;
-import org.bukkit.Chunk;
-import org.bukkit.World;
-import org.bukkit.block.Block;
+import net.smaa.uniloot.tasks.ChunkScanTask;
+import net.smaa.uniloot.tasks.StorageMigrationTask;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -19,12 +17,18 @@ import org.bukkit.util.StringUtil;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class UniLootCommand implements CommandExecutor, TabCompleter {
 
     private final UniLoot plugin;
     private final ConfigManager configManager;
     private final DataManager dataManager;
+    private final Map<UUID, ChunkScanTask> activeScans = new ConcurrentHashMap<>();
+    private final AtomicReference<StorageMigrationTask> activeMigration = new AtomicReference<>();
 
     public UniLootCommand(UniLoot plugin) {
         this.plugin = plugin;
@@ -46,6 +50,12 @@ public class UniLootCommand implements CommandExecutor, TabCompleter {
             case "scan":
                 handleScan(sender, args);
                 break;
+            case "migrate":
+                handleMigrate(sender, args);
+                break;
+            case "stats":
+                handleStats(sender);
+                break;
             default:
                 sendUsage(sender);
                 break;
@@ -62,6 +72,17 @@ public class UniLootCommand implements CommandExecutor, TabCompleter {
         sender.sendMessage(MiniMessage.miniMessage().deserialize("<green>UniLoot configuration reloaded successfully.</green>"));
     }
 
+    private void handleStats(CommandSender sender) {
+        if (!sender.hasPermission("uniloot.stats")) {
+            sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>You do not have permission to use this command.</red>"));
+            return;
+        }
+        sender.sendMessage(MiniMessage.miniMessage().deserialize("<gold>--- UniLoot Stats ---</gold>"));
+        for (String line : plugin.getMetrics().describe()) {
+            sender.sendMessage(MiniMessage.miniMessage().deserialize("<gray><line></gray>", Placeholder.unparsed("line", line)));
+        }
+    }
+
     private void handleScan(CommandSender sender, String[] args) {
         if (!(sender instanceof Player)) {
             sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>This command can only be run by a player.</red>"));
@@ -73,6 +94,20 @@ public class UniLootCommand implements CommandExecutor, TabCompleter {
         }
 
         Player player = (Player) sender;
+        if (args.length > 1 && args[1].equalsIgnoreCase("cancel")) {
+            ChunkScanTask running = activeScans.get(player.getUniqueId());
+            if (running == null) {
+                player.sendMessage(MiniMessage.miniMessage().deserialize("<red>You have no scan running.</red>"));
+            } else {
+                running.cancel();
+            }
+            return;
+        }
+        if (activeScans.containsKey(player.getUniqueId())) {
+            player.sendMessage(MiniMessage.miniMessage().deserialize("<red>You already have a scan running. Use /uniloot scan cancel to stop it.</red>"));
+            return;
+        }
+
         int radius = 0; // Default to 0, which is a 1x1 chunk area (the current chunk)
         if (args.length > 1) {
             try {
@@ -81,48 +116,95 @@ public class UniLootCommand implements CommandExecutor, TabCompleter {
                     player.sendMessage(MiniMessage.miniMessage().deserialize("<red>Radius must be a positive number.</red>"));
                     return;
                 }
+                if (radius > ChunkScanTask.MAX_RADIUS) {
+                    player.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>Radius limited to " + ChunkScanTask.MAX_RADIUS + " chunks.</yellow>"));
+                    radius = ChunkScanTask.MAX_RADIUS;
+                }
             } catch (NumberFormatException e) {
                 player.sendMessage(MiniMessage.miniMessage().deserialize("<red>Invalid radius specified. Please use a number.</red>"));
                 return;
             }
         }
 
-        player.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>Starting container scan in a " + (radius * 2 + 1) + "x" + (radius * 2 + 1) + " chunk radius... This may take a moment.</yellow>"));
-
-        int chunksScanned = 0;
-        int containersFound = 0;
-        World world = player.getWorld();
-        Chunk originChunk = player.getChunk();
-
-        for (int x = -radius; x <= radius; x++) {
-            for (int z = -radius; z <= radius; z++) {
-                Chunk currentChunk = world.getChunkAt(originChunk.getX() + x, originChunk.getZ() + z);
-                chunksScanned++;
-                for (int blockX = 0; blockX < 16; blockX++) {
-                    for (int blockZ = 0; blockZ < 16; blockZ++) {
-                        for (int blockY = world.getMinHeight(); blockY < world.getMaxHeight(); blockY++) {
-                            Block block = currentChunk.getBlock(blockX, blockY, blockZ);
-                            if (configManager.getEnabledContainerTypes().contains(block.getType())) {
-                                dataManager.addPlayerPlaced(LocationUtil.getPrimaryLocation(block));
-                                containersFound++;
-                            }
-                        }
-                    }
-                }
+        UUID playerUUID = player.getUniqueId();
+        ChunkScanTask scan = new ChunkScanTask(plugin, configManager, dataManager, player, radius, finished -> activeScans.remove(playerUUID, finished));
+        activeScans.put(playerUUID, scan);
+        player.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>Starting container scan in a " + (radius * 2 + 1) + "x" + (radius * 2 + 1) + " chunk radius (" + scan.getTotalChunks() + " chunks). Use /uniloot scan cancel to stop it.</yellow>"));
+        scan.start();
+    }
+
+    /**
+     * Stops every running scan, used when the plugin is disabled.
+     */
+    public void cancelScans() {
+        for (ChunkScanTask scan : activeScans.values()) {
+            scan.cancel();
+        }
+    }
+
+    private void handleMigrate(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("uniloot.migrate")) {
+            sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>You do not have permission to use this command.</red>"));
+            return;
+        }
+        if (args.length == 2 && args[1].equalsIgnoreCase("cancel")) {
+            StorageMigrationTask running = activeMigration.get();
+            if (running == null) {
+                sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>No migration is running.</red>"));
+            } else {
+                running.cancel();
             }
+            return;
+        }
+        if (args.length != 3) {
+            sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>Usage: /uniloot migrate <from> <to></red>"));
+            return;
         }
 
-        player.sendMessage(MiniMessage.miniMessage().deserialize(
-                "<green>Scan complete! Scanned <gold><chunks></gold> chunks and added <gold><containers></gold> containers to the player-placed list.</green>",
-                Placeholder.unparsed("chunks", String.valueOf(chunksScanned)),
-                Placeholder.unparsed("containers", String.valueOf(containersFound))
-        ));
+        String from = args[1].toLowerCase();
+        String to = args[2].toLowerCase();
+        if (!ConfigManager.STORAGE_BACKENDS.contains(from) || !ConfigManager.STORAGE_BACKENDS.contains(to)) {
+            sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>Unknown storage backend. Choose from: " + String.join(", ", ConfigManager.STORAGE_BACKENDS) + ".</red>"));
+            return;
+        }
+        if (from.equals(to)) {
+            sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>The source and target backend must differ.</red>"));
+            return;
+        }
+        if (from.equals(ConfigManager.STORAGE_BACKEND_CHUNK)) {
+            // Chunk data can only be read from loaded chunks, so there is no way to export all of it.
+            sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>The chunk backend can only be migrated to, not from.</red>"));
+            return;
+        }
+
+        StorageMigrationTask migration = new StorageMigrationTask(plugin, dataManager, sender, from, to, finished -> activeMigration.compareAndSet(finished, null));
+        if (!activeMigration.compareAndSet(null, migration)) {
+            sender.sendMessage(MiniMessage.miniMessage().deserialize("<red>A migration is already running. Use /uniloot migrate cancel to stop it.</red>"));
+            return;
+        }
+        sender.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>Migrating loot data from " + from + " to " + to + ". Use /uniloot migrate cancel to stop it.</yellow>"));
+        migration.start();
+    }
+
+    /**
+     * Stops a running migration and waits for it to release the storage backends, used when the plugin is disabled.
+     */
+    public void cancelMigration() {
+        StorageMigrationTask running = activeMigration.get();
+        if (running != null) {
+            running.cancel();
+            running.awaitFinish();
+        }
     }
 
     private void sendUsage(CommandSender sender) {
         sender.sendMessage(MiniMessage.miniMessage().deserialize("<gold>--- UniLoot Commands ---</gold>"));
         sender.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>/uniloot reload</yellow> <gray>- Reloads the config file.</gray>"));
         sender.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>/uniloot scan [radius]</yellow> <gray>- Scans containers in a chunk radius around you and marks them as player-placed.</gray>"));
+        sender.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>/uniloot scan cancel</yellow> <gray>- Stops your running scan.</gray>"));
+        sender.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>/uniloot migrate <from> <to></yellow> <gray>- Copies all loot data between storage backends, from sqlite or log to sqlite, chunk or log.</gray>"));
+        sender.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>/uniloot migrate cancel</yellow> <gray>- Stops the running migration.</gray>"));
+        sender.sendMessage(MiniMessage.miniMessage().deserialize("<yellow>/uniloot stats</yellow> <gray>- Shows timings and counters since the server started.</gray>"));
     }
 
     @Override
@@ -137,10 +219,24 @@ public class UniLootCommand implements CommandExecutor, TabCompleter {
             if (sender.hasPermission("uniloot.scan")) {
                 subcommands.add("scan");
             }
+            if (sender.hasPermission("uniloot.migrate")) {
+                subcommands.add("migrate");
+            }
+            if (sender.hasPermission("uniloot.stats")) {
+                subcommands.add("stats");
+            }
             StringUtil.copyPartialMatches(args[0], subcommands, completions);
         } else if (args.length == 2 && args[0].equalsIgnoreCase("scan") && sender.hasPermission("uniloot.scan")) {
             // Suggest a placeholder for the radius
             completions.add("[radius]");
+            completions.add("cancel");
+        } else if (args[0].equalsIgnoreCase("migrate") && sender.hasPermission("uniloot.migrate") && (args.length == 2 || args.length == 3)) {
+            List<String> options = new ArrayList<>(ConfigManager.STORAGE_BACKENDS);
+            if (args.length == 2) {
+                options.remove(ConfigManager.STORAGE_BACKEND_CHUNK);
+                options.add("cancel");
+            }
+            StringUtil.copyPartialMatches(args[args.length - 1], options, completions);
         }
         return completions;
     }
@@ -0,0 +1,137 @@
+package net.smaa.uniloot.managers;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps recently used captured loot templates decoded in memory, so a pre-filled chest that every new player
+ * opens is read and decoded once rather than once per player.
+ * <p>
+ * Entries are weighed by the size of their stored form, and the least recently used ones are dropped once either
+ * the total weight or the entry count goes over the configured limit. Callers always get their own copy.
+ * @param <K> What the storage backend identifies a template by, like a location or a template id.
+ */
+public class CapturedLootCache<K> {
+
+    private final ConfigManager config;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    // Access ordered so the least recently used template is evicted first. Guarded by itself.
+    private final LinkedHashMap<K, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    // Bumped on every invalidation, so a template read from storage before it is not cached after it.
+    private long version;
+
+    public CapturedLootCache(ConfigManager configManager, MetricsManager metrics) {
+        this.config = configManager;
+        this.hits = metrics.counter(MetricsManager.TEMPLATE_CACHE_HITS);
+        this.misses = metrics.counter(MetricsManager.TEMPLATE_CACHE_MISSES);
+    }
+
+    /**
+     * @return A copy of the cached template, or null if it is not cached.
+     */
+    public ItemStack[] get(K key) {
+        ItemStack[] items = getShared(key);
+        return items == null ? null : copyOf(items);
+    }
+
+    /**
+     * @return The cached template itself, or null if it is not cached. Callers must not modify the array or its items.
+     */
+    public ItemStack[] getShared(K key) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.items;
+    }
+
+    /**
+     * @return The version to pass to {@link #put}, taken before reading the template from storage.
+     */
+    public long getVersion() {
+        synchronized (entries) {
+            return version;
+        }
+    }
+
+    /**
+     * Caches a template read from storage, unless something was invalidated since it was read.
+     * @param items Kept as is, the caller must not modify them afterwards.
+     * @param storedSize The size of the template as stored, in bytes.
+     * @param version The result of {@link #getVersion()} from before the template was read.
+     */
+    public void put(K key, ItemStack[] items, int storedSize, long version) {
+        long maxWeight = config.getTemplateCacheMaxBytes();
+        if (storedSize > maxWeight) return;
+
+        Entry entry = new Entry(items, storedSize);
+        synchronized (entries) {
+            if (this.version != version) return;
+            Entry replaced = entries.put(key, entry);
+            if (replaced != null) {
+                weight -= replaced.weight;
+            }
+            weight += storedSize;
+
+            int maxEntries = config.getTemplateCacheMaxEntries();
+            Iterator<Map.Entry<K, Entry>> eldest = entries.entrySet().iterator();
+            while ((weight > maxWeight || entries.size() > maxEntries) && eldest.hasNext()) {
+                weight -= eldest.next().getValue().weight;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets a template that was stored over or deleted.
+     */
+    public void invalidate(K key) {
+        synchronized (entries) {
+            version++;
+            Entry removed = entries.remove(key);
+            if (removed != null) {
+                weight -= removed.weight;
+            }
+        }
+    }
+
+    /**
+     * @return The stored size of all cached templates, in bytes.
+     */
+    public long getWeight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    static ItemStack[] copyOf(ItemStack[] items) {
+        ItemStack[] copy = new ItemStack[items.length];
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null) {
+                copy[i] = items[i].clone();
+            }
+        }
+        return copy;
+    }
+
+    private static final class Entry {
+        private final ItemStack[] items;
+        private final int weight;
+
+        private Entry(ItemStack[] items, int weight) {
+            this.items = items;
+            this.weight = weight;
+        }
+    }
+}
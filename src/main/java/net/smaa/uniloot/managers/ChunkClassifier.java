@@ -0,0 +1,108 @@
+package net.smaa.uniloot.managers;
+
+import com.destroystokyo.paper.loottable.LootableInventory;
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LatencyHistogram;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.LocationUtil;
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.loot.Lootable;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.util.Set;
+
+/**
+ * Finds player-placed containers that existed before UniLoot was installed, so they are not mistaken for loot.
+ * <p>
+ * The first time a chunk loads, its container tile entities are sorted into world generated ones (a pending
+ * loot table, or one that has already been rolled) and everything else, which is recorded as player-placed.
+ * A marker in the chunk's persistent data makes sure every chunk is classified exactly once. Chunks generated
+ * after installation only get the marker, since any container placed in them later is seen by the place listener.
+ */
+public class ChunkClassifier implements Listener {
+
+    // Bump to classify every chunk again after the rules below change.
+    private static final byte CLASSIFIER_VERSION = 1;
+
+    private final UniLoot plugin;
+    private final ConfigManager config;
+    private final DataManager data;
+    private final NamespacedKey classifiedKey;
+    private final LatencyHistogram classifyTimer;
+
+    public ChunkClassifier(UniLoot plugin, ConfigManager configManager, DataManager dataManager) {
+        this.plugin = plugin;
+        this.config = configManager;
+        this.data = dataManager;
+        this.classifiedKey = new NamespacedKey(plugin, "classified");
+        this.classifyTimer = plugin.getMetrics().timer(MetricsManager.CHUNK_CLASSIFY);
+    }
+
+    /**
+     * Classifies the chunks that were already loaded before the plugin was enabled, each on the thread that owns it.
+     */
+    public void classifyLoadedChunks() {
+        if (!config.isChunkClassifierEnabled()) return;
+        for (World world : plugin.getServer().getWorlds()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                plugin.getServer().getRegionScheduler().execute(plugin, world, chunk.getX(), chunk.getZ(), () -> classify(chunk, false));
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        if (!config.isChunkClassifierEnabled()) return;
+        classify(event.getChunk(), event.isNewChunk());
+    }
+
+    private void classify(Chunk chunk, boolean newChunk) {
+        if (!chunk.isLoaded()) return;
+        long start = System.nanoTime();
+        try {
+            classifyTileEntities(chunk, newChunk);
+        } finally {
+            classifyTimer.recordSince(start);
+        }
+    }
+
+    private void classifyTileEntities(Chunk chunk, boolean newChunk) {
+        PersistentDataContainer chunkData = chunk.getPersistentDataContainer();
+        Byte classified = chunkData.get(classifiedKey, PersistentDataType.BYTE);
+        if (classified != null && classified >= CLASSIFIER_VERSION) return;
+
+        int playerPlaced = 0;
+        if (!newChunk) {
+            Set<Material> containerTypes = config.getEnabledContainerTypes();
+            for (BlockState state : chunk.getTileEntities(block -> containerTypes.contains(block.getType()), false)) {
+                LocationKey key = data.keyOf(LocationUtil.getPrimaryLocation(state.getBlock()));
+                if (data.isPlayerPlaced(key) || isWorldGenerated(state, key)) continue;
+                data.addPlayerPlaced(key);
+                playerPlaced++;
+            }
+        }
+        chunkData.set(classifiedKey, PersistentDataType.BYTE, CLASSIFIER_VERSION);
+
+        if (playerPlaced > 0 && config.isDebugMode()) {
+            plugin.getLogger().info("Classified " + playerPlaced + " containers as player-placed in chunk " + chunk.getWorld().getName() + " " + chunk.getX() + "," + chunk.getZ());
+        }
+    }
+
+    private boolean isWorldGenerated(BlockState state, LocationKey key) {
+        // Not opened by anyone yet.
+        if (state instanceof Lootable lootable && lootable.getLootTable() != null) return true;
+        // Opened before UniLoot was installed, Paper remembers that its loot table was rolled.
+        if (state instanceof LootableInventory lootable && lootable.hasBeenFilled()) return true;
+        // Pre-filled by a structure plugin and already handed out by UniLoot.
+        return data.hasCapturedLoot(key);
+    }
+}
@@ -0,0 +1,240 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LatencyHistogram;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the player records of every loaded chunk in memory, along with which loot template each captured
+ * container uses. A chunk's rows are prefetched in the background when it loads and dropped again when it
+ * unloads, so memory stays bounded by the loaded terrain and chest opens in loaded areas never query player data.
+ * Only timestamps are prefetched; a record's contents are read once it is opened.
+ * The templates themselves are shared by many containers and kept, bounded by size, in the template cache of
+ * {@link SQLiteManager}.
+ * <p>
+ * The cache is write-through: {@link DataManager} updates it on every write, while the write-behind
+ * queue takes care of persisting the same write. Unloading therefore has nothing left to write back.
+ * Rows are read through the read connection pool without waiting for the queue to flush; writes still
+ * queued when the load starts are applied on top of them.
+ */
+public class ChunkDataCache implements Listener {
+
+    private final UniLoot plugin;
+    private final ConfigManager config;
+    private final SQLiteManager sqliteManager;
+    private final WriteBehindQueue writeQueue;
+    private final WorldRegistry worldRegistry;
+    private final LatencyHistogram eventTimer;
+    // Keyed by world id, then by LocationKey#getChunkKey.
+    private final Map<Integer, Map<Long, ChunkData>> chunksByWorld = new ConcurrentHashMap<>();
+
+    public ChunkDataCache(UniLoot plugin, ConfigManager configManager, SQLiteManager sqliteManager, WriteBehindQueue writeQueue, WorldRegistry worldRegistry) {
+        this.plugin = plugin;
+        this.config = configManager;
+        this.sqliteManager = sqliteManager;
+        this.writeQueue = writeQueue;
+        this.worldRegistry = worldRegistry;
+        this.eventTimer = plugin.getMetrics().timer(MetricsManager.CHUNK_CACHE_EVENTS);
+    }
+
+    /**
+     * Prefetches every chunk that was already loaded before the plugin was enabled.
+     */
+    public void prefetchLoadedChunks() {
+        if (!config.isChunkCacheEnabled()) return;
+        for (World world : plugin.getServer().getWorlds()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                prefetch(worldRegistry.idOf(world), chunk.getX(), chunk.getZ());
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        if (!config.isChunkCacheEnabled()) return;
+        long start = System.nanoTime();
+        Chunk chunk = event.getChunk();
+        prefetch(worldRegistry.idOf(chunk.getWorld()), chunk.getX(), chunk.getZ());
+        eventTimer.recordSince(start);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        long start = System.nanoTime();
+        Chunk chunk = event.getChunk();
+        Map<Long, ChunkData> chunks = chunksByWorld.get(worldRegistry.idOf(chunk.getWorld()));
+        if (chunks != null) {
+            ChunkData removed = chunks.remove(LocationKey.chunkKey(chunk.getX(), chunk.getZ()));
+            if (removed != null) {
+                removed.evicted = true;
+            }
+        }
+        eventTimer.recordSince(start);
+    }
+
+    private void prefetch(int worldId, int chunkX, int chunkZ) {
+        ChunkData chunkData = new ChunkData();
+        Map<Long, ChunkData> chunks = chunksByWorld.computeIfAbsent(worldId, world -> new ConcurrentHashMap<>());
+        if (chunks.putIfAbsent(LocationKey.chunkKey(chunkX, chunkZ), chunkData) != null) {
+            return;
+        }
+
+        long chunkKey = LocationKey.chunkKey(chunkX, chunkZ);
+        plugin.getDataManager().runAsync(() -> {
+            if (chunkData.evicted) return;
+            // Writes made from now on go straight into the chunk data and take precedence over what is loaded here.
+            // Writes queued before that are taken from the queue, copied before the rows are read so none is missed.
+            Map<PendingWrite.Key, PendingWrite> pending = writeQueue.snapshot(location -> location.getWorldId() == worldId && location.getChunkKey() == chunkKey);
+            Map<Long, Map<UUID, PlayerLootRecord>> records = sqliteManager.getPlayerRecordsInChunk(worldId, chunkX, chunkZ);
+            Map<Long, Long> captured = sqliteManager.getCapturedTemplateIdsInChunk(worldId, chunkX, chunkZ);
+            if (records == null || captured == null) {
+                evict(new LocationKey(worldId, LocationKey.chunkMinPosition(chunkX, chunkZ)));
+                return;
+            }
+
+            synchronized (chunkData) {
+                for (Map.Entry<Long, Map<UUID, PlayerLootRecord>> entry : records.entrySet()) {
+                    Long position = entry.getKey();
+                    if (chunkData.clearedWhileLoading.contains(position)) continue;
+                    LocationKey location = new LocationKey(worldId, position);
+                    Map<UUID, PlayerLootRecord> players = chunkData.records.computeIfAbsent(position, key -> new ConcurrentHashMap<>());
+                    entry.getValue().forEach((playerUUID, stored) -> {
+                        PlayerLootRecord record = WriteBehindQueue.resolvePlayerRecord(pending, location, playerUUID, stored);
+                        if (record != null) {
+                            players.putIfAbsent(playerUUID, record);
+                        }
+                    });
+                }
+                for (PendingWrite write : pending.values()) {
+                    Long position = write.getLocationKey().getPosition();
+                    if (write.getType() != PendingWrite.Type.PLAYER_RECORD || chunkData.clearedWhileLoading.contains(position)) continue;
+                    chunkData.records.computeIfAbsent(position, key -> new ConcurrentHashMap<>())
+                            .putIfAbsent(write.getPlayerUUID(), new PlayerLootRecord(write.getTimestamp(), write.getContents()));
+                }
+                chunkData.records.values().removeIf(Map::isEmpty);
+                for (Map.Entry<Long, Long> entry : captured.entrySet()) {
+                    Long position = entry.getKey();
+                    // A queued clear deletes the template, a capture queued after it is not stored yet either way.
+                    if (chunkData.clearedWhileLoading.contains(position) || pending.containsKey(PendingWrite.clearKey(new LocationKey(worldId, position)))) continue;
+                    chunkData.capturedTemplateIds.put(position, entry.getValue());
+                }
+                chunkData.clearedWhileLoading.clear();
+                chunkData.ready = true;
+            }
+
+            if (config.isDebugMode()) {
+                plugin.getLogger().info("Cached " + records.size() + " looted and " + captured.size() + " captured containers for chunk " + worldRegistry.nameOf(worldId) + " " + chunkX + "," + chunkZ);
+            }
+        });
+    }
+
+    // --- Lookups ---
+
+    /**
+     * @param location Any location inside the chunk.
+     * @return The fully loaded data of the chunk, or null if it is not cached (yet) and the caller has to go to the database.
+     */
+    public ChunkData getReady(LocationKey location) {
+        ChunkData chunkData = get(location);
+        return chunkData != null && chunkData.ready ? chunkData : null;
+    }
+
+    // --- Write-through ---
+
+    public void onPlayerRecordWritten(LocationKey location, UUID playerUUID, PlayerLootRecord record) {
+        ChunkData chunkData = get(location);
+        if (chunkData == null) return;
+        synchronized (chunkData) {
+            chunkData.records.computeIfAbsent(location.getPosition(), key -> new ConcurrentHashMap<>()).put(playerUUID, record);
+        }
+    }
+
+    public void onPlayerRecordContentsWritten(LocationKey location, UUID playerUUID, ItemStack[] contents) {
+        ChunkData chunkData = get(location);
+        if (chunkData == null) return;
+        synchronized (chunkData) {
+            Map<UUID, PlayerLootRecord> players = chunkData.records.get(location.getPosition());
+            PlayerLootRecord existing = players == null ? null : players.get(playerUUID);
+            if (existing != null) {
+                players.put(playerUUID, new PlayerLootRecord(existing.getTimestamp(), contents));
+            } else if (!chunkData.ready) {
+                // The stored timestamp is not loaded yet, so let the database and queue answer for this chunk instead.
+                evict(location);
+            }
+        }
+    }
+
+    public void onLocationCleared(LocationKey location) {
+        ChunkData chunkData = get(location);
+        if (chunkData == null) return;
+        long position = location.getPosition();
+        synchronized (chunkData) {
+            chunkData.records.remove(position);
+            chunkData.capturedTemplateIds.remove(position);
+            if (!chunkData.ready) {
+                chunkData.clearedWhileLoading.add(position);
+            }
+        }
+    }
+
+    public int getCachedChunkCount() {
+        int count = 0;
+        for (Map<Long, ChunkData> chunks : chunksByWorld.values()) {
+            count += chunks.size();
+        }
+        return count;
+    }
+
+    private ChunkData get(LocationKey location) {
+        Map<Long, ChunkData> chunks = chunksByWorld.get(location.getWorldId());
+        return chunks == null ? null : chunks.get(location.getChunkKey());
+    }
+
+    private void evict(LocationKey location) {
+        Map<Long, ChunkData> chunks = chunksByWorld.get(location.getWorldId());
+        if (chunks != null) {
+            ChunkData removed = chunks.remove(location.getChunkKey());
+            if (removed != null) {
+                removed.evicted = true;
+            }
+        }
+    }
+
+    /**
+     * The cached rows of one chunk, keyed by packed block position.
+     */
+    public static class ChunkData {
+        private final Map<Long, Map<UUID, PlayerLootRecord>> records = new ConcurrentHashMap<>();
+        // Templates captured after the chunk was loaded are not listed until it is loaded again.
+        private final Map<Long, Long> capturedTemplateIds = new ConcurrentHashMap<>();
+        private final Set<Long> clearedWhileLoading = ConcurrentHashMap.newKeySet();
+        private volatile boolean ready;
+        private volatile boolean evicted;
+
+        public PlayerLootRecord getPlayerRecord(LocationKey location, UUID playerUUID) {
+            Map<UUID, PlayerLootRecord> players = records.get(location.getPosition());
+            return players == null ? null : players.get(playerUUID);
+        }
+
+        /**
+         * @return The id of the container's stored template, or null if it has none or it was captured since the chunk loaded.
+         */
+        public Long getCapturedTemplateId(LocationKey location) {
+            return capturedTemplateIds.get(location.getPosition());
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.BinaryItemStackCodec;
+import net.smaa.uniloot.utils.ItemStackCodec;
+import net.smaa.uniloot.utils.ItemStackDelta;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Stores container data in the PersistentDataContainer of the chunk the container is in.
+ * The server loads and saves it together with the chunk, so lookups are plain reads of data that is
+ * already in memory, and the data is reset together with the terrain when chunks are regenerated.
+ * <p>
+ * Layout per chunk, with positions relative to the chunk (the low 20 bits of {@link LocationKey#getPosition()}):
+ * <ul>
+ *     <li>{@code placed}: a sorted int array of player-placed positions.</li>
+ *     <li>{@code c<position>}: the captured template, in the binary item format.</li>
+ *     <li>{@code r<position>}: a container with one entry per player UUID, holding the 8 byte timestamp
+ *     followed by the contents, as a delta against the captured template if there is one.</li>
+ * </ul>
+ * Chunk data may only be touched by the thread that owns the chunk, which is where every caller runs.
+ * Data of chunks that are not loaded is neither read nor written.
+ */
+public class ChunkLootStorage implements LootStorage {
+
+    private static final int LOCAL_POSITION_MASK = 0xFFFFF;
+
+    private final UniLoot plugin;
+    private final WorldRegistry worldRegistry;
+    private final ItemStackCodec itemCodec;
+    private final NamespacedKey placedKey;
+    private final CapturedLootCache<LocationKey> templateCache;
+
+    public ChunkLootStorage(UniLoot plugin, WorldRegistry worldRegistry) {
+        this.plugin = plugin;
+        this.worldRegistry = worldRegistry;
+        this.itemCodec = plugin.getMetrics().timed(new BinaryItemStackCodec());
+        this.placedKey = new NamespacedKey(plugin, "placed");
+        this.templateCache = new CapturedLootCache<>(plugin.getConfigManager(), plugin.getMetrics());
+    }
+
+    @Override
+    public String getName() {
+        return ConfigManager.STORAGE_BACKEND_CHUNK;
+    }
+
+    @Override
+    public void load() {
+        // Nothing to load, chunk data arrives with the chunks.
+    }
+
+    // --- Player Loot Record Methods ---
+
+    @Override
+    public PlayerLootRecord getPlayerRecord(LocationKey location, UUID playerUUID) {
+        PersistentDataContainer chunkData = chunkData(location);
+        if (chunkData == null) return null;
+        PersistentDataContainer records = chunkData.get(key('r', location), PersistentDataType.TAG_CONTAINER);
+        if (records == null) return null;
+        byte[] stored = records.get(playerKey(playerUUID), PersistentDataType.BYTE_ARRAY);
+        if (stored == null || stored.length < Long.BYTES) return null;
+
+        long timestamp = ByteBuffer.wrap(stored).getLong();
+        byte[] contents = Arrays.copyOfRange(stored, Long.BYTES, stored.length);
+        // Chunk data may only be read on this thread, so the template is resolved now. It is shared with
+        // every other record of the container and usually cached.
+        ItemStack[] template;
+        try {
+            template = ItemStackDelta.isDelta(contents) ? getTemplate(chunkData, location) : null;
+        } catch (IOException e) {
+            plugin.getLogger().severe("Unreadable captured loot at " + location + ": " + e.getMessage());
+            return null;
+        }
+        return PlayerLootRecord.lazy(timestamp, () -> decodeContents(contents, template));
+    }
+
+    @Override
+    public PlayerLootRecord getCachedPlayerRecord(LocationKey location, UUID playerUUID) {
+        // Chunk data is always in memory while the chunk is loaded.
+        return getPlayerRecord(location, playerUUID);
+    }
+
+    @Override
+    public void setPlayerRecord(LocationKey location, UUID playerUUID, PlayerLootRecord record) {
+        PersistentDataContainer chunkData = chunkDataForWrite(location);
+        if (chunkData == null) return;
+        writeRecord(chunkData, location, playerUUID, record.getTimestamp(), record.getContentsUnsafe());
+    }
+
+    @Override
+    public void updatePlayerRecordContents(LocationKey location, UUID playerUUID, ItemStack[] contents) {
+        PlayerLootRecord existing = getPlayerRecord(location, playerUUID);
+        if (existing == null) return;
+        writeRecord(chunkData(location), location, playerUUID, existing.getTimestamp(), contents);
+    }
+
+    private void writeRecord(PersistentDataContainer chunkData, LocationKey location, UUID playerUUID, long timestamp, ItemStack[] contents) {
+        byte[] encoded;
+        try {
+            encoded = encodeContents(chunkData, location, contents);
+        } catch (IOException | IllegalStateException e) {
+            plugin.getLogger().severe("Could not save player record at " + location + ": " + e.getMessage());
+            return;
+        }
+        byte[] stored = ByteBuffer.allocate(Long.BYTES + encoded.length).putLong(timestamp).put(encoded).array();
+
+        NamespacedKey recordsKey = key('r', location);
+        PersistentDataContainer records = chunkData.get(recordsKey, PersistentDataType.TAG_CONTAINER);
+        if (records == null) {
+            records = chunkData.getAdapterContext().newPersistentDataContainer();
+        }
+        records.set(playerKey(playerUUID), PersistentDataType.BYTE_ARRAY, stored);
+        chunkData.set(recordsKey, PersistentDataType.TAG_CONTAINER, records);
+    }
+
+    // --- Captured Loot Template Methods ---
+
+    @Override
+    public boolean hasCapturedLoot(LocationKey location) {
+        PersistentDataContainer chunkData = chunkData(location);
+        return chunkData != null && chunkData.has(key('c', location), PersistentDataType.BYTE_ARRAY);
+    }
+
+    @Override
+    public void captureLoot(LocationKey location, ItemStack[] items) {
+        PersistentDataContainer chunkData = chunkDataForWrite(location);
+        if (chunkData == null) return;
+        NamespacedKey capturedKey = key('c', location);
+        // A stored template always wins, captures never overwrite.
+        if (chunkData.has(capturedKey, PersistentDataType.BYTE_ARRAY)) return;
+        try {
+            chunkData.set(capturedKey, PersistentDataType.BYTE_ARRAY, itemCodec.encode(items));
+            templateCache.invalidate(location);
+        } catch (IllegalStateException e) {
+            plugin.getLogger().severe("Could not save captured loot at " + location + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public ItemStack[] getCapturedLoot(LocationKey location) {
+        PersistentDataContainer chunkData = chunkData(location);
+        if (chunkData == null) return null;
+        try {
+            ItemStack[] template = getTemplate(chunkData, location);
+            return template == null ? null : CapturedLootCache.copyOf(template);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Unreadable captured loot at " + location + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public long getTemplateCacheBytes() {
+        return templateCache.getWeight();
+    }
+
+    /**
+     * @return The decoded template, shared with the template cache, or null if there is none.
+     */
+    private ItemStack[] getTemplate(PersistentDataContainer chunkData, LocationKey location) throws IOException {
+        NamespacedKey capturedKey = key('c', location);
+        // Checked first, regenerated chunks lose their templates without going through this storage.
+        if (!chunkData.has(capturedKey, PersistentDataType.BYTE_ARRAY)) return null;
+        ItemStack[] cached = templateCache.getShared(location);
+        if (cached != null) return cached;
+
+        long version = templateCache.getVersion();
+        byte[] stored = chunkData.get(capturedKey, PersistentDataType.BYTE_ARRAY);
+        ItemStack[] template = itemCodec.decode(stored);
+        templateCache.put(location, template, stored.length, version);
+        return template;
+    }
+
+    private byte[] encodeContents(PersistentDataContainer chunkData, LocationKey location, ItemStack[] contents) throws IOException {
+        ItemStack[] template = getTemplate(chunkData, location);
+        return template == null ? itemCodec.encode(contents) : ItemStackDelta.encode(template, contents);
+    }
+
+    private ItemStack[] decodeContents(byte[] contents, ItemStack[] template) throws IOException {
+        if (!ItemStackDelta.isDelta(contents)) {
+            return itemCodec.decode(contents);
+        }
+        if (template == null) {
+            throw new IOException("Item delta without a captured template.");
+        }
+        return ItemStackDelta.apply(template, contents);
+    }
+
+    // --- Player Placed Block Methods ---
+
+    @Override
+    public void addPlayerPlaced(LocationKey location) {
+        PersistentDataContainer chunkData = chunkDataForWrite(location);
+        if (chunkData == null) return;
+        int[] placed = chunkData.getOrDefault(placedKey, PersistentDataType.INTEGER_ARRAY, new int[0]);
+        int index = Arrays.binarySearch(placed, localPosition(location));
+        if (index >= 0) return;
+
+        int insertAt = -index - 1;
+        int[] updated = new int[placed.length + 1];
+        System.arraycopy(placed, 0, updated, 0, insertAt);
+        updated[insertAt] = localPosition(location);
+        System.arraycopy(placed, insertAt, updated, insertAt + 1, placed.length - insertAt);
+        chunkData.set(placedKey, PersistentDataType.INTEGER_ARRAY, updated);
+    }
+
+    @Override
+    public void removePlayerPlaced(LocationKey location) {
+        PersistentDataContainer chunkData = chunkDataForWrite(location);
+        if (chunkData != null) {
+            removePlaced(chunkData, location);
+        }
+    }
+
+    @Override
+    public boolean isPlayerPlaced(LocationKey location) {
+        PersistentDataContainer chunkData = chunkData(location);
+        if (chunkData == null) return false;
+        int[] placed = chunkData.get(placedKey, PersistentDataType.INTEGER_ARRAY);
+        return placed != null && Arrays.binarySearch(placed, localPosition(location)) >= 0;
+    }
+
+    private void removePlaced(PersistentDataContainer chunkData, LocationKey location) {
+        int[] placed = chunkData.get(placedKey, PersistentDataType.INTEGER_ARRAY);
+        if (placed == null) return;
+        int index = Arrays.binarySearch(placed, localPosition(location));
+        if (index < 0) return;
+
+        if (placed.length == 1) {
+            chunkData.remove(placedKey);
+            return;
+        }
+        int[] updated = new int[placed.length - 1];
+        System.arraycopy(placed, 0, updated, 0, index);
+        System.arraycopy(placed, index + 1, updated, index, placed.length - index - 1);
+        chunkData.set(placedKey, PersistentDataType.INTEGER_ARRAY, updated);
+    }
+
+    @Override
+    public void getFlags(int worldId, long[] positions, int count, byte[] flags) {
+        // Explosions are clustered, so read each chunk's container and placed list once per run of positions in it.
+        long currentChunk = 0;
+        PersistentDataContainer chunkData = null;
+        int[] placed = null;
+        for (int i = 0; i < count; i++) {
+            LocationKey location = new LocationKey(worldId, positions[i]);
+            if (i == 0 || location.getChunkKey() != currentChunk) {
+                currentChunk = location.getChunkKey();
+                chunkData = chunkData(location);
+                placed = chunkData == null ? null : chunkData.get(placedKey, PersistentDataType.INTEGER_ARRAY);
+            }
+            if (chunkData == null) {
+                flags[i] = 0;
+                continue;
+            }
+            boolean isPlaced = placed != null && Arrays.binarySearch(placed, localPosition(location)) >= 0;
+            boolean isCaptured = chunkData.has(key('c', location), PersistentDataType.BYTE_ARRAY);
+            flags[i] = (byte) ((isPlaced ? FLAG_PLACED : 0) | (isCaptured ? FLAG_CAPTURED : 0));
+        }
+    }
+
+    // --- Data Clearing ---
+
+    @Override
+    public void clearAllDataForLocation(LocationKey location) {
+        PersistentDataContainer chunkData = chunkDataForWrite(location);
+        if (chunkData == null) return;
+        removePlaced(chunkData, location);
+        chunkData.remove(key('c', location));
+        chunkData.remove(key('r', location));
+        templateCache.invalidate(location);
+    }
+
+    // --- Export ---
+
+    @Override
+    public void export(LootVisitor visitor) {
+        throw new UnsupportedOperationException("Chunk data can only be listed by loading every chunk of every world.");
+    }
+
+    @Override
+    public boolean isChunkBound() {
+        return true;
+    }
+
+    // --- Chunk Access ---
+
+    private PersistentDataContainer chunkData(LocationKey location) {
+        String worldName = worldRegistry.nameOf(location.getWorldId());
+        World world = worldName == null ? null : plugin.getServer().getWorld(worldName);
+        if (world == null || !world.isChunkLoaded(location.getChunkX(), location.getChunkZ())) {
+            return null;
+        }
+        return world.getChunkAt(location.getChunkX(), location.getChunkZ()).getPersistentDataContainer();
+    }
+
+    private PersistentDataContainer chunkDataForWrite(LocationKey location) {
+        PersistentDataContainer chunkData = chunkData(location);
+        if (chunkData == null) {
+            plugin.getLogger().warning("Could not save loot data at " + location + ", its chunk is not loaded.");
+        }
+        return chunkData;
+    }
+
+    private NamespacedKey key(char type, LocationKey location) {
+        return new NamespacedKey(plugin, type + Integer.toString(localPosition(location)));
+    }
+
+    private NamespacedKey playerKey(UUID playerUUID) {
+        return new NamespacedKey(plugin, playerUUID.toString());
+    }
+
+    private static int localPosition(LocationKey location) {
+        return (int) (location.getPosition() & LOCAL_POSITION_MASK);
+    }
+}
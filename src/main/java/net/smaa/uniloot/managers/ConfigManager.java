@@ -4,6 +4,7 @@ import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.minimessage.MiniMessage;
 import net.smaa.uniloot.UniLoot;
 import net.smaa.uniloot.utils.FallbackLootItem;
+import net.smaa.uniloot.utils.FallbackLootTable;
 import org.bukkit.Material;
 import org.bukkit.configuration.file.FileConfiguration;
 
@@ -20,6 +21,10 @@ public class ConfigManager {
     private final UniLoot plugin;
     private FileConfiguration config;
     private static final Pattern TIME_PATTERN = Pattern.compile("(\\d+)([hms])");
+    public static final String STORAGE_BACKEND_SQLITE = "sqlite";
+    public static final String STORAGE_BACKEND_CHUNK = "chunk";
+    public static final String STORAGE_BACKEND_LOG = "log";
+    public static final List<String> STORAGE_BACKENDS = List.of(STORAGE_BACKEND_SQLITE, STORAGE_BACKEND_CHUNK, STORAGE_BACKEND_LOG);
 
 
     // --- Cached Config Values ---
@@ -31,6 +36,7 @@ public class ConfigManager {
     private int creativeBreakConfirmationSeconds;
     private boolean refreshEnabled;
     private long refreshIntervalMillis;
+    private boolean sharedLootEnabled;
     private String firstLootMessage;
     private String alreadyLootedMessage;
     private String lootOnCooldownMessage;
@@ -40,7 +46,29 @@ public class ConfigManager {
     private boolean fallbackLootEnabled;
     private int fallbackItemsToGive;
     private final List<FallbackLootItem> fallbackItems = new ArrayList<>();
-    private int totalFallbackWeight;
+    private FallbackLootTable fallbackLootTable = FallbackLootTable.EMPTY;
+    private String storageBackend;
+    private long writeFlushIntervalMillis;
+    private int writeMaxBatchSize;
+    private boolean chunkCacheEnabled;
+    private int prefetchRadius;
+    private int prefetchMaxRecords;
+    private long templateCacheMaxBytes;
+    private int templateCacheMaxEntries;
+    private int scanChunksPerTick;
+    private boolean chunkClassifierEnabled;
+    private int scanProgressIntervalSeconds;
+    private boolean pregenerationEnabled;
+    private int pregenerationRange;
+    private int pregenerationRollsPerSecond;
+    private int pregenerationMaxCached;
+    private boolean cleanupEnabled;
+    private int cleanupIntervalMinutes;
+    private int cleanupBatchSize;
+    private int cleanupInactivePlayerDays;
+    private int metricsLogIntervalMinutes;
+    private boolean metricsHttpEnabled;
+    private int metricsHttpPort;
 
     public ConfigManager(UniLoot plugin) {
         this.plugin = plugin;
@@ -72,6 +100,7 @@ public class ConfigManager {
         // Load loot refresh settings
         refreshEnabled = config.getBoolean("loot_refresh.enabled", true);
         refreshIntervalMillis = parseTime(config.getString("loot_refresh.refresh_interval", "24h"));
+        sharedLootEnabled = config.getBoolean("shared_loot.enabled", false);
 
 
         // Load messages as raw strings
@@ -83,12 +112,47 @@ public class ConfigManager {
         placeNextToLootChestMessage = config.getString("messages.place_next_to_loot_chest", "<red>You cannot place a chest next to a special loot container.</red>");
 
 
+        // Load storage settings
+        storageBackend = config.getString("storage.backend", STORAGE_BACKEND_SQLITE).toLowerCase();
+        if (!STORAGE_BACKENDS.contains(storageBackend)) {
+            plugin.getLogger().warning("Unknown storage backend '" + storageBackend + "' in config.yml. Defaulting to " + STORAGE_BACKEND_SQLITE + ".");
+            storageBackend = STORAGE_BACKEND_SQLITE;
+        }
+        writeFlushIntervalMillis = Math.max(50L, config.getLong("storage.flush_interval_ms", 1000L));
+        writeMaxBatchSize = Math.max(1, config.getInt("storage.max_batch_size", 500));
+        chunkCacheEnabled = config.getBoolean("storage.chunk_cache", true);
+        prefetchRadius = Math.max(0, Math.min(8, config.getInt("storage.prefetch_radius", 2)));
+        prefetchMaxRecords = Math.max(1, config.getInt("storage.prefetch_max_records", 2000));
+        templateCacheMaxBytes = Math.max(0, config.getInt("storage.template_cache_mb", 16)) * 1024L * 1024L;
+        templateCacheMaxEntries = Math.max(1, config.getInt("storage.template_cache_max_entries", 4096));
+
+        // Load scan settings
+        scanChunksPerTick = Math.max(1, config.getInt("scan.chunks_per_tick", 8));
+        scanProgressIntervalSeconds = Math.max(1, config.getInt("scan.progress_interval_seconds", 5));
+        chunkClassifierEnabled = config.getBoolean("scan.auto_detect_player_containers", false);
+
+        // Load loot pre-generation settings
+        pregenerationEnabled = config.getBoolean("pregeneration.enabled", false);
+        pregenerationRange = Math.max(1, config.getInt("pregeneration.range", 16));
+        pregenerationRollsPerSecond = Math.max(1, config.getInt("pregeneration.rolls_per_second", 4));
+        pregenerationMaxCached = Math.max(1, config.getInt("pregeneration.max_cached", 2000));
+
+        // Load cleanup settings
+        cleanupEnabled = config.getBoolean("cleanup.enabled", true);
+        cleanupIntervalMinutes = Math.max(1, config.getInt("cleanup.interval_minutes", 30));
+        cleanupBatchSize = Math.max(1, config.getInt("cleanup.batch_size", 500));
+        cleanupInactivePlayerDays = Math.max(0, config.getInt("cleanup.inactive_player_days", 0));
+
+        // Load metrics settings
+        metricsLogIntervalMinutes = Math.max(0, config.getInt("metrics.log_interval_minutes", 0));
+        metricsHttpEnabled = config.getBoolean("metrics.http.enabled", false);
+        metricsHttpPort = config.getInt("metrics.http.port", 9465);
+
         // Load fallback loot settings
         fallbackLootEnabled = config.getBoolean("fallback_loot.enabled", true);
         fallbackItemsToGive = config.getInt("fallback_loot.items_to_give", 3);
 
         fallbackItems.clear();
-        totalFallbackWeight = 0;
         List<String> rawItems = config.getStringList("fallback_loot.items");
         for (String rawItem : rawItems) {
             try {
@@ -115,13 +179,13 @@ public class ConfigManager {
                 }
 
                 fallbackItems.add(new FallbackLootItem(material, minAmount, maxAmount, weight));
-                totalFallbackWeight += weight;
 
             } catch (Exception e) {
                 plugin.getLogger().severe("Could not parse fallback item: " + rawItem);
                 e.printStackTrace();
             }
         }
+        fallbackLootTable = FallbackLootTable.compile(fallbackItems);
     }
 
     private long parseTime(String timeString) {
@@ -156,6 +220,7 @@ public class ConfigManager {
     public int getCreativeBreakConfirmationSeconds() { return creativeBreakConfirmationSeconds; }
     public boolean isRefreshEnabled() { return refreshEnabled; }
     public long getRefreshIntervalMillis() { return refreshIntervalMillis; }
+    public boolean isSharedLootEnabled() { return sharedLootEnabled; }
     public String getFirstLootMessage() { return firstLootMessage; }
     public String getAlreadyLootedMessage() { return alreadyLootedMessage; }
     public String getLootOnCooldownMessage() { return lootOnCooldownMessage; }
@@ -165,6 +230,28 @@ public class ConfigManager {
     public boolean isFallbackLootEnabled() { return fallbackLootEnabled; }
     public int getFallbackItemsToGive() { return fallbackItemsToGive; }
     public List<FallbackLootItem> getFallbackItems() { return fallbackItems; }
-    public int getTotalFallbackWeight() { return totalFallbackWeight; }
+    public FallbackLootTable getFallbackLootTable() { return fallbackLootTable; }
+    public String getStorageBackend() { return storageBackend; }
+    public long getWriteFlushIntervalMillis() { return writeFlushIntervalMillis; }
+    public int getWriteMaxBatchSize() { return writeMaxBatchSize; }
+    public boolean isChunkCacheEnabled() { return chunkCacheEnabled; }
+    public int getPrefetchRadius() { return prefetchRadius; }
+    public int getPrefetchMaxRecords() { return prefetchMaxRecords; }
+    public long getTemplateCacheMaxBytes() { return templateCacheMaxBytes; }
+    public int getTemplateCacheMaxEntries() { return templateCacheMaxEntries; }
+    public int getScanChunksPerTick() { return scanChunksPerTick; }
+    public int getScanProgressIntervalSeconds() { return scanProgressIntervalSeconds; }
+    public boolean isChunkClassifierEnabled() { return chunkClassifierEnabled; }
+    public boolean isPregenerationEnabled() { return pregenerationEnabled; }
+    public int getPregenerationRange() { return pregenerationRange; }
+    public int getPregenerationRollsPerSecond() { return pregenerationRollsPerSecond; }
+    public int getPregenerationMaxCached() { return pregenerationMaxCached; }
+    public boolean isCleanupEnabled() { return cleanupEnabled; }
+    public int getCleanupIntervalMinutes() { return cleanupIntervalMinutes; }
+    public int getCleanupBatchSize() { return cleanupBatchSize; }
+    public int getCleanupInactivePlayerDays() { return cleanupInactivePlayerDays; }
+    public int getMetricsLogIntervalMinutes() { return metricsLogIntervalMinutes; }
+    public boolean isMetricsHttpEnabled() { return metricsHttpEnabled; }
+    public int getMetricsHttpPort() { return metricsHttpPort; }
 }
 
@@ -0,0 +1,120 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LocationKey;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Container;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.loot.LootTable;
+import org.bukkit.loot.Lootable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers what the loot and protection listeners need to know about a container block without taking a
+ * {@link BlockState} snapshot, which would copy the block entity and its whole inventory.
+ * <p>
+ * Results are memoized for the rest of the tick, per tick thread, so that every listener looking at the same
+ * block during one interaction, break or explosion shares a single read of the block entity.
+ */
+public class ContainerInspector {
+
+    private static final Inspection NOT_A_CONTAINER = new Inspection(null, null);
+
+    private final UniLoot plugin;
+    // Folia ticks regions on several threads at once; a block is only ever touched by the thread owning its region.
+    private final ThreadLocal<Memo> memo = ThreadLocal.withInitial(Memo::new);
+
+    public ContainerInspector(UniLoot plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Must be called on the thread that owns the block.
+     * @param location The key of the block, as returned by {@link DataManager#keyOf}.
+     */
+    public Inspection inspect(Block block, LocationKey location) {
+        Memo current = memo.get();
+        int tick = plugin.getServer().getCurrentTick();
+        if (current.tick != tick) {
+            current.tick = tick;
+            current.inspections.clear();
+        }
+        return current.inspections.computeIfAbsent(location, key -> read(block));
+    }
+
+    /**
+     * Forgets a block whose type or contents changed during this tick, e.g. because it was broken or placed.
+     */
+    public void invalidate(LocationKey location) {
+        memo.get().inspections.remove(location);
+    }
+
+    private static Inspection read(Block block) {
+        // Without a snapshot the state reads straight from the block entity.
+        BlockState state = block.getState(false);
+        if (!(state instanceof Container container)) {
+            return NOT_A_CONTAINER;
+        }
+        LootTable lootTable = state instanceof Lootable lootable ? lootable.getLootTable() : null;
+        return new Inspection(container.getInventory(), lootTable);
+    }
+
+    /**
+     * What one container looked like when it was first inspected this tick.
+     */
+    public static final class Inspection {
+        private final Inventory inventory;
+        private final LootTable lootTable;
+        private Boolean empty;
+
+        private Inspection(Inventory inventory, LootTable lootTable) {
+            this.inventory = inventory;
+            this.lootTable = lootTable;
+        }
+
+        public boolean isContainer() {
+            return inventory != null;
+        }
+
+        /**
+         * @return The loot table the container will roll when first opened, or null if it has none.
+         */
+        public LootTable getLootTable() {
+            return lootTable;
+        }
+
+        public boolean hasLootTable() {
+            return lootTable != null;
+        }
+
+        public int getInventorySize() {
+            return inventory == null ? 0 : inventory.getSize();
+        }
+
+        /**
+         * @return True if the container holds no items. Not a container counts as empty.
+         */
+        public boolean isEmpty() {
+            if (empty == null) {
+                empty = inventory == null || LootManager.isInventoryEmpty(inventory);
+            }
+            return empty;
+        }
+
+        /**
+         * @return Copies of the items in the container itself.
+         */
+        public ItemStack[] getContents() {
+            return inventory == null ? null : inventory.getContents();
+        }
+    }
+
+    private static final class Memo {
+        private int tick = -1;
+        private final Map<LocationKey, Inspection> inspections = new HashMap<>();
+    }
+}
@@ -1,90 +1,309 @@
 package net.smaa.uniloot.managers;
 
 import net.smaa.uniloot.UniLoot;
-import net.smaa.uniloot.managers.SQLiteManager;
+import net.smaa.uniloot.utils.LocationKey;
 import net.smaa.uniloot.utils.PlayerLootRecord;
 import org.bukkit.Location;
-import net.smaa.uniloot.utils.LocationUtil;
+import org.bukkit.World;
 import org.bukkit.inventory.ItemStack;
 
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class DataManager {
 
     private final UniLoot plugin;
     private final ConfigManager configManager;
     private final SQLiteManager sqliteManager;
+    private final WriteBehindQueue writeQueue;
+    private final ChunkDataCache chunkCache;
+    private final RecordPrefetcher prefetcher;
+    private final WorldRegistry worldRegistry;
+    private final SharedLootInstances sharedLoot;
+    private final AtomicLong lastSharedLootSweep = new AtomicLong(System.currentTimeMillis());
+    // One virtual thread per lookup: a thread blocked on a database read costs next to nothing,
+    // and the read connection pool already bounds how many reads run at once.
+    private final ExecutorService asyncExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("UniLoot-Data-", 0).factory());
+    private LootStorage storage;
 
-    public DataManager(UniLoot plugin, ConfigManager configManager, SQLiteManager sqliteManager) {
+    public DataManager(UniLoot plugin, ConfigManager configManager, SQLiteManager sqliteManager, WriteBehindQueue writeQueue, ChunkDataCache chunkCache, RecordPrefetcher prefetcher, WorldRegistry worldRegistry) {
         this.plugin = plugin;
         this.configManager = configManager;
         this.sqliteManager = sqliteManager;
+        this.writeQueue = writeQueue;
+        this.chunkCache = chunkCache;
+        this.prefetcher = prefetcher;
+        this.worldRegistry = worldRegistry;
+        this.sharedLoot = new SharedLootInstances(configManager);
+    }
+
+    /**
+     * @param location A block location.
+     * @return The packed key all data for this location is stored under.
+     */
+    public LocationKey keyOf(Location location) {
+        return LocationKey.of(worldRegistry.idOf(location.getWorld()), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    /**
+     * @return The id keys in this world are stored under.
+     */
+    public int worldIdOf(World world) {
+        return worldRegistry.idOf(world);
+    }
+
+    /**
+     * @return The loaded world a key belongs to, or null if that world is not loaded.
+     */
+    public World worldOf(LocationKey location) {
+        String worldName = worldRegistry.nameOf(location.getWorldId());
+        return worldName == null ? null : plugin.getServer().getWorld(worldName);
+    }
+
+    /**
+     * Creates the storage backend selected in config.yml. Must be called once the config is loaded and the database is connected.
+     */
+    public void loadStorage() {
+        storage = createStorage(configManager.getStorageBackend());
+        storage.load();
+        plugin.getLogger().info("Storing loot data in the '" + storage.getName() + "' backend.");
+    }
+
+    /**
+     * Opens a storage backend for migrating data. The active backend is returned as it is, any other
+     * backend is loaded fresh and must be released with {@link #closeStorage}.
+     * @param name One of {@link ConfigManager#STORAGE_BACKENDS}.
+     */
+    public LootStorage openStorage(String name) {
+        if (storage.getName().equals(name)) {
+            return storage;
+        }
+        LootStorage opened = createStorage(name);
+        opened.load();
+        return opened;
+    }
+
+    public void closeStorage(LootStorage opened) {
+        if (opened != storage) {
+            opened.close();
+        }
+    }
+
+    private LootStorage createStorage(String name) {
+        return switch (name) {
+            case ConfigManager.STORAGE_BACKEND_CHUNK -> new ChunkLootStorage(plugin, worldRegistry);
+            case ConfigManager.STORAGE_BACKEND_LOG -> new LogLootStorage(plugin);
+            default -> new SQLiteLootStorage(plugin, sqliteManager, writeQueue, chunkCache, prefetcher);
+        };
+    }
+
+    /**
+     * Closes the active storage backend. Called on shutdown, after the write queue has drained.
+     */
+    public void shutdown() {
+        asyncExecutor.shutdown();
+        try {
+            if (!asyncExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Some loot data lookups were still running at shutdown.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (storage != null) {
+            storage.close();
+        }
     }
 
     // --- Player Loot Record Methods ---
 
-    public PlayerLootRecord getPlayerRecord(Location location, UUID playerUUID) {
-        return sqliteManager.getPlayerRecord(location, playerUUID);
+    public PlayerLootRecord getPlayerRecord(LocationKey location, UUID playerUUID) {
+        return storage.getPlayerRecord(location, playerUUID);
+    }
+
+    /**
+     * Looks up a player loot record only if it can be answered from memory, never touching the database.
+     * @param location The key of the container.
+     * @param playerUUID The UUID of the player.
+     * @return The record, or null if there is none or it is not in memory.
+     */
+    public PlayerLootRecord getCachedPlayerRecord(LocationKey location, UUID playerUUID) {
+        return storage.getCachedPlayerRecord(location, playerUUID);
+    }
+
+    /**
+     * @param location The key of the container.
+     * @param playerUUID The UUID of the player.
+     * @return True if {@link #getCachedPlayerRecord} can answer from memory, so a null from it means there is no record.
+     */
+    public boolean isPlayerRecordCached(LocationKey location, UUID playerUUID) {
+        return storage.isPlayerRecordCached(location, playerUUID);
     }
 
-    public void setPlayerRecord(Location location, UUID playerUUID, PlayerLootRecord record) {
-        sqliteManager.setPlayerRecord(location, playerUUID, record);
+    public void setPlayerRecord(LocationKey location, UUID playerUUID, PlayerLootRecord record) {
+        storage.setPlayerRecord(location, playerUUID, record);
     }
 
     /**
      * Updates only the contents of an existing player loot record, preserving the original timestamp.
-     * @param location The location of the container.
+     * @param location The key of the container.
      * @param playerUUID The UUID of the player.
      * @param contents The new contents to save.
      */
-    public void updatePlayerRecordContents(Location location, UUID playerUUID, ItemStack[] contents) {
-        sqliteManager.updatePlayerRecordContents(location, playerUUID, contents);
+    public void updatePlayerRecordContents(LocationKey location, UUID playerUUID, ItemStack[] contents) {
+        storage.updatePlayerRecordContents(location, playerUUID, contents);
     }
 
 
     // --- Captured Loot Template Methods ---
 
-    public boolean hasCapturedLoot(Location location) {
-        return sqliteManager.hasCapturedLoot(location);
+    public boolean hasCapturedLoot(LocationKey location) {
+        return storage.hasCapturedLoot(location);
     }
 
-    public void captureLoot(Location location, ItemStack[] items) {
-        sqliteManager.captureLoot(location, items);
+    public void captureLoot(LocationKey location, ItemStack[] items) {
+        storage.captureLoot(location, items);
     }
 
-    public ItemStack[] getCapturedLoot(Location location) {
-        return sqliteManager.getCapturedLoot(location);
+    public ItemStack[] getCapturedLoot(LocationKey location) {
+        return storage.getCapturedLoot(location);
+    }
+
+    /**
+     * @see LootStorage#getTemplateCacheBytes
+     */
+    public long getTemplateCacheBytes() {
+        return storage.getTemplateCacheBytes();
+    }
+
+    // --- Shared Loot Methods ---
+
+    /**
+     * @return The contents everyone without a record of their own sees in shared mode, or null if none were rolled this window.
+     */
+    public SharedLootInstances.Instance getSharedLoot(LocationKey location) {
+        return sharedLoot.get(location);
+    }
+
+    /**
+     * @param contents Freshly rolled contents, kept as is.
+     * @return The instance that is now shared, which is an earlier one if another player rolled first.
+     */
+    public SharedLootInstances.Instance shareLoot(LocationKey location, ItemStack[] contents) {
+        long now = System.currentTimeMillis();
+        long lastSweep = lastSharedLootSweep.get();
+        if (now - lastSweep >= TimeUnit.MINUTES.toMillis(1) && lastSharedLootSweep.compareAndSet(lastSweep, now)) {
+            asyncExecutor.execute(sharedLoot::removeExpired);
+        }
+        return sharedLoot.share(location, contents);
+    }
+
+    public int getSharedLootCount() {
+        return sharedLoot.size();
     }
 
     // --- Player Placed Block Methods ---
 
-    public void addPlayerPlaced(Location location) {
-        sqliteManager.addPlayerPlaced(location);
+    public void addPlayerPlaced(LocationKey location) {
+        storage.addPlayerPlaced(location);
+    }
+
+    public void removePlayerPlaced(LocationKey location) {
+        storage.removePlayerPlaced(location);
     }
 
-    public void removePlayerPlaced(Location location) {
-        sqliteManager.removePlayerPlaced(location);
+    public boolean isPlayerPlaced(LocationKey location) {
+        return storage.isPlayerPlaced(location);
     }
 
-    public boolean isPlayerPlaced(Location location) {
-        return sqliteManager.isPlayerPlaced(location);
+    /**
+     * @see LootStorage#getFlags
+     */
+    public void getFlags(int worldId, long[] positions, int count, byte[] flags) {
+        storage.getFlags(worldId, positions, count, flags);
     }
 
     // --- Data Clearing ---
 
-    public void clearAllDataForLocation(Location location) {
-        sqliteManager.clearAllDataForLocation(location);
+    public void clearAllDataForLocation(LocationKey location) {
+        storage.clearAllDataForLocation(location);
+        sharedLoot.remove(location);
     }
 
+    // --- Elytra Methods (always stored in the database) ---
+
     public boolean hasPlayerObtainedElytra(UUID playerUUID) {
+        PendingWrite pending = writeQueue.getPending(PendingWrite.elytraKey(playerUUID));
+        if (pending != null && pending.isInsertElytra()) {
+            return true;
+        }
         return sqliteManager.hasPlayerObtainedElytra(playerUUID);
     }
 
     public void setPlayerObtainedElytra(UUID playerUUID) {
-        sqliteManager.setPlayerObtainedElytra(playerUUID);
+        writeQueue.enqueue(PendingWrite.elytraObtained(playerUUID));
     }
 
     public void resetPlayerElytraTimer(UUID playerUUID) {
-        sqliteManager.resetPlayerElytraTimer(playerUUID);
+        writeQueue.enqueue(PendingWrite.elytraTimerReset(playerUUID));
+    }
+
+    public WriteBehindQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    // --- Async Lookups ---
+    // These run the lookup on a virtual thread and complete there, so callers must hop back to the right
+    // scheduler before touching the world. A backend bound to chunk threads is read in place instead.
+
+    public CompletableFuture<PlayerLootRecord> getPlayerRecordAsync(LocationKey location, UUID playerUUID) {
+        return supplyAsync(() -> getPlayerRecord(location, playerUUID));
+    }
+
+    public CompletableFuture<Boolean> isPlayerPlacedAsync(LocationKey location) {
+        return supplyAsync(() -> isPlayerPlaced(location));
+    }
+
+    public CompletableFuture<Boolean> hasCapturedLootAsync(LocationKey location) {
+        return supplyAsync(() -> hasCapturedLoot(location));
+    }
+
+    public CompletableFuture<ItemStack[]> getCapturedLootAsync(LocationKey location) {
+        return supplyAsync(() -> getCapturedLoot(location));
+    }
+
+    public CompletableFuture<Boolean> hasPlayerObtainedElytraAsync(UUID playerUUID) {
+        // Always in the database, whatever the backend.
+        return CompletableFuture.supplyAsync(() -> hasPlayerObtainedElytra(playerUUID), asyncExecutor);
+    }
+
+    /**
+     * Runs a background load, like the records of a chunk, on the lookup executor. Dropped once shutting down.
+     */
+    public void runAsync(Runnable task) {
+        try {
+            asyncExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, nothing will read what it loads.
+        }
+    }
+
+    /**
+     * Runs a lookup that may block on I/O off the calling thread.
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> lookup) {
+        if (storage.isChunkBound()) {
+            try {
+                return CompletableFuture.completedFuture(lookup.get());
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return CompletableFuture.supplyAsync(lookup, asyncExecutor);
     }
 }
@@ -0,0 +1,104 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.utils.BloomFilter;
+import net.smaa.uniloot.utils.LocationKey;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory set of block locations, loaded from the database at startup and kept in sync on every write.
+ * A Bloom filter sits in front of the set so that the common "not in the set" answer needs no allocation at all.
+ */
+public class LocationIndex {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final Map<Integer, Set<Long>> positionsByWorld = new ConcurrentHashMap<>();
+    private volatile BloomFilter filter = new BloomFilter(0, FALSE_POSITIVE_RATE);
+    private final Object resizeLock = new Object();
+
+    /**
+     * Replaces the contents of the index with the given location keys.
+     * @param locationKeys The keys to index.
+     * @return The number of keys loaded.
+     */
+    public int load(Collection<LocationKey> locationKeys) {
+        positionsByWorld.clear();
+        for (LocationKey locationKey : locationKeys) {
+            positionsByWorld.computeIfAbsent(locationKey.getWorldId(), world -> ConcurrentHashMap.newKeySet())
+                    .add(locationKey.getPosition());
+        }
+        rebuildFilter(locationKeys.size());
+        return locationKeys.size();
+    }
+
+    public boolean contains(LocationKey locationKey) {
+        if (!filter.mightContain(hash(locationKey.getWorldId(), locationKey.getPosition()))) {
+            return false;
+        }
+        Set<Long> positions = positionsByWorld.get(locationKey.getWorldId());
+        return positions != null && positions.contains(locationKey.getPosition());
+    }
+
+    /**
+     * Sets {@code flag} in {@code flags[i]} for each of the first {@code count} positions that is in the index.
+     */
+    public void containsAll(int worldId, long[] positions, int count, byte[] flags, byte flag) {
+        Set<Long> worldPositions = positionsByWorld.get(worldId);
+        if (worldPositions == null) return;
+        BloomFilter current = filter;
+        for (int i = 0; i < count; i++) {
+            if (current.mightContain(hash(worldId, positions[i])) && worldPositions.contains(positions[i])) {
+                flags[i] |= flag;
+            }
+        }
+    }
+
+    public void add(LocationKey locationKey) {
+        if (positionsByWorld.computeIfAbsent(locationKey.getWorldId(), world -> ConcurrentHashMap.newKeySet()).add(locationKey.getPosition())) {
+            // Under the lock so a concurrent rebuild cannot swap in a filter that misses this entry.
+            synchronized (resizeLock) {
+                filter.put(hash(locationKey.getWorldId(), locationKey.getPosition()));
+                int size = size();
+                if (size > filter.getCapacity()) {
+                    rebuildFilter(size);
+                }
+            }
+        }
+    }
+
+    public void remove(LocationKey locationKey) {
+        // Bloom filters cannot forget entries; the stale bit only costs an extra set lookup.
+        Set<Long> positions = positionsByWorld.get(locationKey.getWorldId());
+        if (positions != null) {
+            positions.remove(locationKey.getPosition());
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Set<Long> positions : positionsByWorld.values()) {
+            size += positions.size();
+        }
+        return size;
+    }
+
+    private void rebuildFilter(int size) {
+        synchronized (resizeLock) {
+            BloomFilter rebuilt = new BloomFilter(Math.max(size * 2, 1024), FALSE_POSITIVE_RATE);
+            for (Map.Entry<Integer, Set<Long>> entry : positionsByWorld.entrySet()) {
+                for (long position : entry.getValue()) {
+                    rebuilt.put(hash(entry.getKey(), position));
+                }
+            }
+            filter = rebuilt;
+        }
+    }
+
+    private static long hash(int worldId, long position) {
+        return BloomFilter.mix(position * 31 + worldId);
+    }
+}
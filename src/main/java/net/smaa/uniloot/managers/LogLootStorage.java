@@ -0,0 +1,815 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.BinaryItemStackCodec;
+import net.smaa.uniloot.utils.ItemStackCodec;
+import net.smaa.uniloot.utils.ItemStackDelta;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Stores container data in an append-only log file, loot.log, with an in-memory index of where the
+ * current value of every key is. Every write is a single append, which suits our many small writes far
+ * better than updating rows in place. A background thread rewrites the file with only the live entries
+ * once more than half of it is overwritten or deleted data.
+ * <p>
+ * Each entry is its body length, a CRC32 of the body and the body: type, world id, position and the
+ * type's own fields. An incomplete entry at the end of the file, left by a crash, is dropped on load.
+ * <p>
+ * Writes are queued and appended by a single writer thread, so the region threads never touch the file for a
+ * write. Reads check the queue first so callers always see their own writes, even before they are appended.
+ */
+public class LogLootStorage implements LootStorage {
+
+    private static final String FILE_NAME = "loot.log";
+    private static final int MAGIC = 0x554C4F47; // "ULOG"
+    private static final byte FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = Integer.BYTES + 1;
+    private static final int ENTRY_HEADER_SIZE = Integer.BYTES * 2;
+    private static final int BODY_HEADER_SIZE = 1 + Integer.BYTES + Long.BYTES;
+    private static final int MAX_ENTRY_SIZE = 0xFFFFFF;
+
+    private static final byte TYPE_RECORD = 1;
+    private static final byte TYPE_CAPTURED = 2;
+    private static final byte TYPE_PLACED = 3;
+    private static final byte TYPE_UNPLACED = 4;
+    private static final byte TYPE_CLEAR = 5;
+
+    private static final long COMPACTION_CHECK_MINUTES = 5;
+    private static final long MIN_COMPACTION_BYTES = 4L << 20;
+
+    private final UniLoot plugin;
+    private final Path path;
+    private final ItemStackCodec itemCodec;
+    private final CapturedLootCache<LocationKey> templateCache;
+    private final WriteBehindQueue writeQueue;
+    // Appends and the compaction swap take the write lock, lookups and file reads the read lock.
+    // Only the writer thread appends, so the index only changes there and during the compaction swap.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Index values pack the offset of the entry (upper 40 bits) and its size (lower 24 bits).
+    // Records also keep their timestamp, so cooldown checks never read the file.
+    private final Map<LocationKey, Map<UUID, IndexedRecord>> records = new HashMap<>();
+    private final Map<LocationKey, Long> captured = new HashMap<>();
+    private final Set<LocationKey> placed = new HashSet<>();
+    private FileChannel channel;
+    private long writeOffset;
+    private ScheduledExecutorService compactor;
+
+    public LogLootStorage(UniLoot plugin) {
+        this.plugin = plugin;
+        this.path = new File(plugin.getDataFolder(), FILE_NAME).toPath();
+        this.itemCodec = plugin.getMetrics().timed(new BinaryItemStackCodec());
+        this.templateCache = new CapturedLootCache<>(plugin.getConfigManager(), plugin.getMetrics());
+        this.writeQueue = new WriteBehindQueue(plugin, plugin.getConfigManager(), "Log", this::applyWrites);
+    }
+
+    @Override
+    public String getName() {
+        return ConfigManager.STORAGE_BACKEND_LOG;
+    }
+
+    @Override
+    public void load() {
+        try {
+            Files.createDirectories(path.getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            if (size == 0) {
+                writeOffset = writeFileHeader(channel);
+            } else {
+                checkFileHeader();
+                writeOffset = scan(channel, FILE_HEADER_SIZE, size, (entry, raw, packed) -> replay(entry, packed));
+                if (writeOffset < size) {
+                    plugin.getLogger().warning("Discarded " + (size - writeOffset) + " bytes of an incomplete write at the end of " + FILE_NAME + ".");
+                    channel.truncate(writeOffset);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open " + FILE_NAME + ": " + e.getMessage(), e);
+        }
+
+        int recordCount = 0;
+        for (Map<UUID, IndexedRecord> players : records.values()) {
+            recordCount += players.size();
+        }
+        plugin.getLogger().info("Loaded " + recordCount + " player records, " + captured.size() + " captured loot and "
+                + placed.size() + " player-placed containers from " + FILE_NAME + ".");
+
+        writeQueue.start();
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "UniLoot-Log-Compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfWasteful, COMPACTION_CHECK_MINUTES, COMPACTION_CHECK_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void close() {
+        // Drain queued writes before the file goes away.
+        writeQueue.shutdown();
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.force(true);
+                channel.close();
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("Error while closing " + FILE_NAME + ": " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // --- Player Loot Record Methods ---
+
+    /**
+     * Answers from the in-memory index, which holds every record's timestamp. The contents are read and decoded
+     * once something asks the returned record for them.
+     */
+    @Override
+    public PlayerLootRecord getPlayerRecord(LocationKey location, UUID playerUUID) {
+        return writeQueue.readPlayerRecord(location, playerUUID, () -> getStoredPlayerRecord(location, playerUUID));
+    }
+
+    private PlayerLootRecord getStoredPlayerRecord(LocationKey location, UUID playerUUID) {
+        lock.readLock().lock();
+        try {
+            IndexedRecord indexed = recordIndex(location, playerUUID);
+            if (indexed == null) return null;
+            return PlayerLootRecord.lazy(indexed.timestamp, () -> readRecordContents(location, playerUUID));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ItemStack[] readRecordContents(LocationKey location, UUID playerUUID) throws IOException {
+        lock.readLock().lock();
+        try {
+            // Looked up again, compaction may have moved the entry since the timestamp was read.
+            IndexedRecord indexed = recordIndex(location, playerUUID);
+            if (indexed == null) {
+                throw new IOException("The player record at " + location + " no longer exists.");
+            }
+            return decodeContents(location, read(indexed.packed).contents);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private IndexedRecord recordIndex(LocationKey location, UUID playerUUID) {
+        Map<UUID, IndexedRecord> players = records.get(location);
+        return players == null ? null : players.get(playerUUID);
+    }
+
+    @Override
+    public PlayerLootRecord getCachedPlayerRecord(LocationKey location, UUID playerUUID) {
+        // The index, timestamps included, is always in memory. Contents are only read once the record is opened.
+        return getPlayerRecord(location, playerUUID);
+    }
+
+    @Override
+    public void setPlayerRecord(LocationKey location, UUID playerUUID, PlayerLootRecord record) {
+        writeQueue.enqueue(PendingWrite.playerRecord(location, playerUUID, record));
+    }
+
+    @Override
+    public void updatePlayerRecordContents(LocationKey location, UUID playerUUID, ItemStack[] contents) {
+        writeQueue.enqueue(PendingWrite.playerRecordContents(location, playerUUID, contents));
+    }
+
+    // --- Captured Loot Template Methods ---
+
+    @Override
+    public boolean hasCapturedLoot(LocationKey location) {
+        if (writeQueue.getPending(PendingWrite.capturedKey(location)) != null) return true;
+        if (writeQueue.isClearPending(location)) return false;
+        lock.readLock().lock();
+        try {
+            return captured.containsKey(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void captureLoot(LocationKey location, ItemStack[] items) {
+        if (hasCapturedLoot(location)) return;
+        writeQueue.enqueue(PendingWrite.captureLoot(location, items));
+    }
+
+    @Override
+    public ItemStack[] getCapturedLoot(LocationKey location) {
+        return writeQueue.readCapturedLoot(location, () -> getStoredCapturedLoot(location));
+    }
+
+    private ItemStack[] getStoredCapturedLoot(LocationKey location) {
+        lock.readLock().lock();
+        try {
+            ItemStack[] template = template(location);
+            return template == null ? null : CapturedLootCache.copyOf(template);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Unreadable captured loot at " + location + ": " + e.getMessage());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ItemStack[] decodeContents(LocationKey location, byte[] contents) throws IOException {
+        if (!ItemStackDelta.isDelta(contents)) {
+            return itemCodec.decode(contents);
+        }
+        ItemStack[] template = template(location);
+        if (template == null) {
+            throw new IOException("Item delta without a captured template.");
+        }
+        return ItemStackDelta.apply(template, contents);
+    }
+
+    /**
+     * Must hold a lock. Captures and clears hold the write lock while they invalidate, so what is read here is current.
+     * @return The decoded template, shared with the template cache, or null if there is none.
+     */
+    private ItemStack[] template(LocationKey location) throws IOException {
+        Long packed = captured.get(location);
+        if (packed == null) return null;
+        ItemStack[] cached = templateCache.getShared(location);
+        if (cached != null) return cached;
+
+        long version = templateCache.getVersion();
+        byte[] stored = read(packed).contents;
+        ItemStack[] template = itemCodec.decode(stored);
+        templateCache.put(location, template, stored.length, version);
+        return template;
+    }
+
+    @Override
+    public long getTemplateCacheBytes() {
+        return templateCache.getWeight();
+    }
+
+    // --- Player Placed Block Methods ---
+
+    @Override
+    public void addPlayerPlaced(LocationKey location) {
+        writeQueue.enqueue(PendingWrite.addPlayerPlaced(location));
+    }
+
+    @Override
+    public void removePlayerPlaced(LocationKey location) {
+        writeQueue.enqueue(PendingWrite.removePlayerPlaced(location));
+    }
+
+    @Override
+    public boolean isPlayerPlaced(LocationKey location) {
+        PendingWrite pending = writeQueue.getPending(PendingWrite.placedKey(location));
+        if (pending != null) return pending.getType() == PendingWrite.Type.ADD_PLAYER_PLACED;
+        if (writeQueue.isClearPending(location)) return false;
+        lock.readLock().lock();
+        try {
+            return placed.contains(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void getFlags(int worldId, long[] positions, int count, byte[] flags) {
+        if (writeQueue.getQueueDepth() > 0) {
+            // Some of these may still be queued, check each one against the queue.
+            LootStorage.super.getFlags(worldId, positions, count, flags);
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                LocationKey location = new LocationKey(worldId, positions[i]);
+                flags[i] = (byte) ((placed.contains(location) ? FLAG_PLACED : 0) | (captured.containsKey(location) ? FLAG_CAPTURED : 0));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // --- Data Clearing ---
+
+    @Override
+    public void clearAllDataForLocation(LocationKey location) {
+        writeQueue.enqueue(PendingWrite.clearLocation(location));
+    }
+
+    // --- Writes (only called from the write queue) ---
+
+    /**
+     * Appends a batch of queued writes.
+     * @return true if the batch was appended, false if it should be retried.
+     */
+    private boolean applyWrites(List<PendingWrite> writes) {
+        for (PendingWrite write : writes) {
+            try {
+                applyWrite(write);
+            } catch (IllegalStateException e) {
+                // A write whose items cannot be serialized would fail forever, so drop it instead of retrying the batch.
+                plugin.getLogger().severe("Skipping queued write " + write.getKey() + ": " + e.getMessage());
+            } catch (IOException e) {
+                // Writes already appended from this batch are appended again on retry, which changes nothing.
+                plugin.getLogger().severe("Could not append " + writes.size() + " queued writes to " + FILE_NAME + ": " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void applyWrite(PendingWrite write) throws IOException {
+        LocationKey location = write.getLocationKey();
+        switch (write.getType()) {
+            case PLAYER_RECORD -> writeRecord(location, write.getPlayerUUID(), write.getTimestamp(), write.getContentsUnsafe());
+            case PLAYER_RECORD_CONTENTS -> {
+                Long timestamp = storedTimestamp(location, write.getPlayerUUID());
+                // Like an UPDATE, this does nothing without a stored record.
+                if (timestamp != null) {
+                    writeRecord(location, write.getPlayerUUID(), timestamp, write.getContentsUnsafe());
+                }
+            }
+            case CAPTURE_LOOT -> writeCapturedLoot(location, write.getContentsUnsafe());
+            case ADD_PLAYER_PLACED -> appendMarker(TYPE_PLACED, location);
+            case REMOVE_PLAYER_PLACED -> appendMarker(TYPE_UNPLACED, location);
+            case CLEAR_LOCATION -> appendMarker(TYPE_CLEAR, location);
+            default -> { }
+        }
+    }
+
+    private Long storedTimestamp(LocationKey location, UUID playerUUID) {
+        lock.readLock().lock();
+        try {
+            IndexedRecord indexed = recordIndex(location, playerUUID);
+            return indexed == null ? null : indexed.timestamp;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void writeRecord(LocationKey location, UUID playerUUID, long timestamp, ItemStack[] contents) throws IOException {
+        // Only this thread captures or clears, so the template cannot change between encoding and appending.
+        ItemStack[] template;
+        lock.readLock().lock();
+        try {
+            template = template(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+        byte[] encoded = template == null ? itemCodec.encode(contents) : ItemStackDelta.encode(template, contents);
+
+        lock.writeLock().lock();
+        try {
+            ByteBuffer body = body(TYPE_RECORD, location, Long.BYTES * 3 + encoded.length);
+            body.putLong(playerUUID.getMostSignificantBits()).putLong(playerUUID.getLeastSignificantBits()).putLong(timestamp).put(encoded);
+            long packed = append(body);
+            records.computeIfAbsent(location, key -> new HashMap<>()).put(playerUUID, new IndexedRecord(packed, timestamp));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeCapturedLoot(LocationKey location, ItemStack[] items) throws IOException {
+        lock.readLock().lock();
+        try {
+            // A stored template always wins, captures never overwrite.
+            if (captured.containsKey(location)) return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        byte[] encoded = itemCodec.encode(items);
+
+        lock.writeLock().lock();
+        try {
+            ByteBuffer body = body(TYPE_CAPTURED, location, encoded.length);
+            body.put(encoded);
+            captured.put(location, append(body));
+            templateCache.invalidate(location);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a placed, unplaced or clear entry, unless it would not change anything.
+     */
+    private void appendMarker(byte type, LocationKey location) throws IOException {
+        lock.writeLock().lock();
+        try {
+            boolean changes = switch (type) {
+                case TYPE_PLACED -> !placed.contains(location);
+                case TYPE_UNPLACED -> placed.contains(location);
+                default -> placed.contains(location) || captured.containsKey(location) || records.containsKey(location);
+            };
+            if (!changes) return;
+            ByteBuffer body = body(type, location, 0);
+            replay(new Entry(type, location), append(body));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getPendingWriteCount() {
+        return writeQueue.getQueueDepth();
+    }
+
+    // --- Export ---
+
+    @Override
+    public void export(LootVisitor visitor) {
+        try {
+            writeQueue.awaitFlush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        List<LocationKey> capturedLocations;
+        List<LocationKey> recordLocations;
+        List<LocationKey> placedLocations;
+        lock.readLock().lock();
+        try {
+            capturedLocations = new ArrayList<>(captured.keySet());
+            recordLocations = new ArrayList<>(records.keySet());
+            placedLocations = new ArrayList<>(placed);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (LocationKey location : capturedLocations) {
+            ItemStack[] items = getCapturedLoot(location);
+            if (items != null) {
+                visitor.capturedLoot(location, items);
+            }
+        }
+        for (LocationKey location : recordLocations) {
+            List<UUID> players;
+            lock.readLock().lock();
+            try {
+                Map<UUID, IndexedRecord> current = records.get(location);
+                players = current == null ? List.of() : new ArrayList<>(current.keySet());
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (UUID playerUUID : players) {
+                PlayerLootRecord record = getPlayerRecord(location, playerUUID);
+                if (record == null) continue;
+                try {
+                    record.getContentsUnsafe();
+                } catch (UncheckedIOException e) {
+                    plugin.getLogger().severe("Skipping unreadable player record at " + location + ": " + e.getMessage());
+                    continue;
+                }
+                visitor.playerRecord(location, playerUUID, record);
+            }
+        }
+        for (LocationKey location : placedLocations) {
+            visitor.playerPlaced(location);
+        }
+    }
+
+    // --- Index ---
+
+    private void replay(Entry entry, long packed) {
+        switch (entry.type) {
+            case TYPE_RECORD -> records.computeIfAbsent(entry.location, key -> new HashMap<>()).put(entry.playerUUID, new IndexedRecord(packed, entry.timestamp));
+            case TYPE_CAPTURED -> captured.putIfAbsent(entry.location, packed);
+            case TYPE_PLACED -> placed.add(entry.location);
+            case TYPE_UNPLACED -> placed.remove(entry.location);
+            case TYPE_CLEAR -> {
+                records.remove(entry.location);
+                captured.remove(entry.location);
+                placed.remove(entry.location);
+                templateCache.invalidate(entry.location);
+            }
+            default -> { }
+        }
+    }
+
+    /**
+     * @return The number of bytes an entry-by-entry rewrite of the current index would take.
+     */
+    private long liveBytes() {
+        long live = FILE_HEADER_SIZE + (long) placed.size() * (ENTRY_HEADER_SIZE + BODY_HEADER_SIZE);
+        for (long packed : captured.values()) {
+            live += sizeOf(packed);
+        }
+        for (Map<UUID, IndexedRecord> players : records.values()) {
+            for (IndexedRecord indexed : players.values()) {
+                live += sizeOf(indexed.packed);
+            }
+        }
+        return live;
+    }
+
+    // --- Compaction ---
+
+    private void compactIfWasteful() {
+        long size;
+        long live;
+        lock.readLock().lock();
+        try {
+            size = writeOffset;
+            live = liveBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (size < MIN_COMPACTION_BYTES || size - live < live) return;
+
+        try {
+            long start = System.nanoTime();
+            compact();
+            plugin.getLogger().info("Compacted " + FILE_NAME + " from " + size / 1024 + " KiB to " + writeOffset / 1024 + " KiB in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms.");
+        } catch (IOException e) {
+            plugin.getLogger().severe("Could not compact " + FILE_NAME + ": " + e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        compact(() -> { });
+    }
+
+    /**
+     * Rewrites the file with only the live entries. The bulk of the copying happens without holding the lock;
+     * only entries appended during the copy are moved over while writes are blocked.
+     * @param afterCopy Runs once the live entries are copied, before writes are blocked, so tests can append mid-copy.
+     */
+    void compact(Runnable afterCopy) throws IOException {
+        Path temp = path.resolveSibling(FILE_NAME + ".compact");
+        long snapshotEnd;
+        List<Long> liveEntries = new ArrayList<>();
+        List<LocationKey> placedSnapshot;
+        lock.readLock().lock();
+        try {
+            snapshotEnd = writeOffset;
+            liveEntries.addAll(captured.values());
+            for (Map<UUID, IndexedRecord> players : records.values()) {
+                for (IndexedRecord indexed : players.values()) {
+                    liveEntries.add(indexed.packed);
+                }
+            }
+            placedSnapshot = new ArrayList<>(placed);
+        } finally {
+            lock.readLock().unlock();
+        }
+        // The offset is in the upper bits, so this copies in file order.
+        liveEntries.sort(null);
+
+        Map<Long, Long> relocated = new HashMap<>(liveEntries.size() * 2);
+        FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean swapped = false;
+        try {
+            long position = writeFileHeader(target);
+            for (long packed : liveEntries) {
+                ByteBuffer raw = readRaw(channel, packed);
+                relocated.put(packed, pack(position, sizeOf(packed)));
+                position = writeFully(target, raw, position);
+            }
+            for (LocationKey location : placedSnapshot) {
+                position = writeFully(target, entryOf(body(TYPE_PLACED, location, 0)), position);
+            }
+            afterCopy.run();
+
+            lock.writeLock().lock();
+            try {
+                long[] tailPosition = { position };
+                scan(channel, snapshotEnd, writeOffset, (entry, raw, packed) -> {
+                    relocated.put(packed, pack(tailPosition[0], sizeOf(packed)));
+                    tailPosition[0] = writeFully(target, raw, tailPosition[0]);
+                });
+                target.force(true);
+                target.close();
+
+                channel.close();
+                try {
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    swapped = true;
+                } finally {
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                // Only point the index at the new file once it replaced the old one, a failed swap leaves both as they were.
+                writeOffset = tailPosition[0];
+                captured.replaceAll((location, packed) -> relocated.getOrDefault(packed, packed));
+                for (Map<UUID, IndexedRecord> players : records.values()) {
+                    players.replaceAll((playerUUID, indexed) -> {
+                        Long moved = relocated.get(indexed.packed);
+                        return moved == null ? indexed : new IndexedRecord(moved, indexed.timestamp);
+                    });
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            if (target.isOpen()) {
+                target.close();
+            }
+            if (!swapped) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    // --- File Format ---
+
+    private long writeFileHeader(FileChannel target) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).put(FILE_VERSION).flip();
+        return writeFully(target, header, 0);
+    }
+
+    private void checkFileHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.get() != FILE_VERSION) {
+            throw new IOException(FILE_NAME + " is not a UniLoot log or was written by a newer version.");
+        }
+    }
+
+    private static ByteBuffer body(byte type, LocationKey location, int extraSize) {
+        ByteBuffer body = ByteBuffer.allocate(BODY_HEADER_SIZE + extraSize);
+        body.put(type).putInt(location.getWorldId()).putLong(location.getPosition());
+        return body;
+    }
+
+    private static ByteBuffer entryOf(ByteBuffer body) {
+        body.flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE + body.remaining());
+        entry.putInt(body.remaining()).putInt((int) crc.getValue()).put(body).flip();
+        return entry;
+    }
+
+    /**
+     * Appends an entry. Must hold the write lock.
+     * @return The index value of the new entry.
+     */
+    private long append(ByteBuffer body) throws IOException {
+        ByteBuffer entry = entryOf(body);
+        int size = entry.remaining();
+        if (size > MAX_ENTRY_SIZE) {
+            throw new IOException("Entry of " + size + " bytes is too large.");
+        }
+        long offset = writeOffset;
+        writeOffset = writeFully(channel, entry, offset);
+        return pack(offset, size);
+    }
+
+    private Entry read(long packed) throws IOException {
+        ByteBuffer raw = readRaw(channel, packed);
+        int length = raw.getInt();
+        int checksum = raw.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(raw.slice(ENTRY_HEADER_SIZE, raw.limit() - ENTRY_HEADER_SIZE));
+        if (length != raw.limit() - ENTRY_HEADER_SIZE || (int) crc.getValue() != checksum) {
+            throw new IOException("Corrupt entry at offset " + offsetOf(packed) + " of " + FILE_NAME + ".");
+        }
+        return Entry.parse(raw);
+    }
+
+    private static ByteBuffer readRaw(FileChannel source, long packed) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(sizeOf(packed));
+        readFully(source, raw, offsetOf(packed));
+        return raw.flip();
+    }
+
+    /**
+     * Reads the entries between two offsets, stopping at the first incomplete or corrupt one.
+     * @return The offset after the last valid entry.
+     */
+    private static long scan(FileChannel source, long start, long end, EntryConsumer consumer) throws IOException {
+        long position = start;
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+        while (position + ENTRY_HEADER_SIZE <= end) {
+            header.clear();
+            readFully(source, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            int size = ENTRY_HEADER_SIZE + length;
+            if (length < BODY_HEADER_SIZE || size > MAX_ENTRY_SIZE || position + size > end) break;
+
+            ByteBuffer raw = ByteBuffer.allocate(size);
+            readFully(source, raw, position);
+            raw.flip();
+            CRC32 crc = new CRC32();
+            crc.update(raw.slice(ENTRY_HEADER_SIZE, length));
+            if ((int) crc.getValue() != checksum) break;
+
+            raw.position(ENTRY_HEADER_SIZE);
+            Entry entry = Entry.parse(raw);
+            raw.rewind();
+            consumer.accept(entry, raw, pack(position, size));
+            position += size;
+        }
+        return position;
+    }
+
+    private static long writeFully(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += target.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + FILE_NAME + ".");
+            }
+            position += read;
+        }
+    }
+
+    private static long pack(long offset, int size) {
+        return offset << 24 | size;
+    }
+
+    private static long offsetOf(long packed) {
+        return packed >>> 24;
+    }
+
+    private static int sizeOf(long packed) {
+        return (int) (packed & MAX_ENTRY_SIZE);
+    }
+
+    private static final class IndexedRecord {
+        private final long packed;
+        private final long timestamp;
+
+        private IndexedRecord(long packed, long timestamp) {
+            this.packed = packed;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private interface EntryConsumer {
+        void accept(Entry entry, ByteBuffer raw, long packed) throws IOException;
+    }
+
+    private static final class Entry {
+        private final byte type;
+        private final LocationKey location;
+        private UUID playerUUID;
+        private long timestamp;
+        private byte[] contents;
+
+        private Entry(byte type, LocationKey location) {
+            this.type = type;
+            this.location = location;
+        }
+
+        /**
+         * @param body A buffer positioned at the start of an entry body.
+         */
+        private static Entry parse(ByteBuffer body) {
+            Entry entry = new Entry(body.get(), new LocationKey(body.getInt(), body.getLong()));
+            if (entry.type == TYPE_RECORD) {
+                entry.playerUUID = new UUID(body.getLong(), body.getLong());
+                entry.timestamp = body.getLong();
+            }
+            if (entry.type == TYPE_RECORD || entry.type == TYPE_CAPTURED) {
+                entry.contents = new byte[body.remaining()];
+                body.get(entry.contents);
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.utils.LocationKey;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Arrays;
+
+/**
+ * Owns a player's loot inventory while it is open and tracks which of its slots were touched.
+ * Clicks and drags mark the slots they may have changed, so closing an untouched inventory does no work
+ * at all and closing a changed one only compares the marked slots.
+ * <p>
+ * Only used on the thread of the player viewing the inventory.
+ */
+public class LootInventoryHolder implements InventoryHolder {
+
+    // One bit per slot, loot inventories have at most 54 slots.
+    private static final long ALL_SLOTS = -1L;
+
+    private final LocationKey location;
+    // The contents the inventory was opened with. Shared with the stored record or shared loot, so it is never modified.
+    private final ItemStack[] initialContents;
+    private final long sharedTimestamp;
+    private Inventory inventory;
+    private long dirtySlots;
+
+    /**
+     * @param sharedTimestamp When the shared loot the inventory was opened with was rolled, or -1 if it shows the player's own record.
+     */
+    public LootInventoryHolder(LocationKey location, ItemStack[] initialContents, long sharedTimestamp) {
+        this.location = location;
+        this.initialContents = initialContents;
+        this.sharedTimestamp = sharedTimestamp;
+    }
+
+    void setInventory(Inventory inventory) {
+        this.inventory = inventory;
+    }
+
+    @Override
+    public Inventory getInventory() {
+        return inventory;
+    }
+
+    public LocationKey getLocation() {
+        return location;
+    }
+
+    /**
+     * @return True if the inventory shows shared loot, so the player has no record of their own until they change it.
+     */
+    public boolean isShared() {
+        return sharedTimestamp >= 0;
+    }
+
+    public long getSharedTimestamp() {
+        return sharedTimestamp;
+    }
+
+    public void markDirty(int slot) {
+        if (slot >= 0 && slot < Long.SIZE) {
+            dirtySlots |= 1L << slot;
+        }
+    }
+
+    /**
+     * For actions that can change slots other than the clicked one, like shift-clicking items in.
+     */
+    public void markAllDirty() {
+        dirtySlots = ALL_SLOTS;
+    }
+
+    /**
+     * @return The current contents if any marked slot differs from how the inventory was opened, otherwise null.
+     */
+    public ItemStack[] collectChanges() {
+        if (dirtySlots == 0) return null;
+
+        ItemStack[] updated = null;
+        int size = inventory.getSize();
+        for (int slot = 0; slot < size; slot++) {
+            if ((dirtySlots & (1L << slot)) == 0) continue;
+            ItemStack current = emptyToNull(inventory.getItem(slot));
+            ItemStack initial = slot < initialContents.length ? emptyToNull(initialContents[slot]) : null;
+            if (current == null ? initial == null : current.equals(initial)) continue;
+
+            if (updated == null) {
+                updated = Arrays.copyOf(initialContents, size);
+            }
+            updated[slot] = current;
+        }
+        return updated;
+    }
+
+    private static ItemStack emptyToNull(ItemStack item) {
+        return item == null || item.isEmpty() ? null : item;
+    }
+}
@@ -1,53 +1,67 @@
 package net.smaa.uniloot.managers;
 
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
 import net.kyori.adventure.text.minimessage.MiniMessage;
 import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
 import net.smaa.uniloot.UniLoot;
-import net.smaa.uniloot.utils.FallbackLootItem;
+import net.smaa.uniloot.utils.LatencyHistogram;
 import net.smaa.uniloot.utils.PlayerLootRecord;
+import net.smaa.uniloot.utils.LocationKey;
 import net.smaa.uniloot.utils.LocationUtil;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
-import org.bukkit.block.BlockState;
-import org.bukkit.block.Container;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
+import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
-import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.loot.LootContext;
 import org.bukkit.loot.LootTable;
-import org.bukkit.loot.Lootable;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Random;
+import java.io.UncheckedIOException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class LootManager implements Listener {
 
     private final UniLoot plugin;
     private final ConfigManager config;
     private final DataManager data;
-    private final Random random = new Random();
-    // This map now tracks which players have a UniLoot inventory open, the original contents, and the location.
-    private final Map<UUID, OpenInventoryData> openLootInventories = new HashMap<>();
-
-    public LootManager(UniLoot plugin, ConfigManager configManager, DataManager dataManager) {
+    private final LootPregenerator pregenerator;
+    private final ContainerInspector inspector;
+    // Players whose last click is still being looked up, so spam-clicking does not queue up opens.
+    private final Set<UUID> pendingOpens = ConcurrentHashMap.newKeySet();
+    private final LatencyHistogram interactTimer;
+    private final LatencyHistogram inventoryCloseTimer;
+    private final LatencyHistogram generationTimer;
+    private final LongAdder lootRolled;
+    private final LongAdder savedLootOpened;
+    private final LongAdder recordsChanged;
+
+    public LootManager(UniLoot plugin, ConfigManager configManager, DataManager dataManager, LootPregenerator pregenerator, ContainerInspector inspector) {
         this.plugin = plugin;
         this.config = configManager;
         this.data = dataManager;
+        this.pregenerator = pregenerator;
+        this.inspector = inspector;
+        MetricsManager metrics = plugin.getMetrics();
+        this.interactTimer = metrics.timer(MetricsManager.INTERACT);
+        this.inventoryCloseTimer = metrics.timer(MetricsManager.INVENTORY_CLOSE);
+        this.generationTimer = metrics.timer(MetricsManager.LOOT_GENERATION);
+        this.lootRolled = metrics.counter(MetricsManager.LOOT_ROLLED);
+        this.savedLootOpened = metrics.counter(MetricsManager.SAVED_LOOT_OPENED);
+        this.recordsChanged = metrics.counter(MetricsManager.RECORDS_CHANGED);
     }
 
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
@@ -57,49 +71,93 @@ public class LootManager implements Listener {
         Block block = event.getClickedBlock();
         if (block == null || !config.getEnabledContainerTypes().contains(block.getType())) return;
 
-        // Handle Elytra Item Frame
-        if (block.getType() == Material.ITEM_FRAME) {
-            if (block instanceof ItemFrame) {
-                handleElytraItemFrameInteraction(event.getPlayer(), (ItemFrame) block, event.getClickedBlock().getLocation(), event);
-                return;
+        long start = System.nanoTime();
+        try {
+            // Handle Elytra Item Frame
+            if (block.getType() == Material.ITEM_FRAME) {
+                if (block instanceof ItemFrame) {
+                    handleElytraItemFrameInteraction(event.getPlayer(), (ItemFrame) block, event.getClickedBlock().getLocation(), event);
+                    return;
+                }
             }
-        }
 
-        Player player = event.getPlayer();
-        Location primaryLocation = LocationUtil.getPrimaryLocation(block);
+            Player player = event.getPlayer();
+            LocationKey primaryLocation = data.keyOf(LocationUtil.getPrimaryLocation(block));
 
-        if (data.isPlayerPlaced(primaryLocation)) {
-            return; // This is a normal player chest, do nothing.
-        }
+            if (data.isPlayerPlaced(primaryLocation)) {
+                return; // This is a normal player chest, do nothing.
+            }
 
-        handleLootInteraction(player, block, primaryLocation, event);
+            handleLootInteraction(player, block, primaryLocation, event);
+        } finally {
+            interactTimer.recordSince(start);
+        }
     }
 
-    private void handleLootInteraction(Player player, Block block, Location primaryLocation, PlayerInteractEvent event) {
-        BlockState state = block.getState();
-        if (!(state instanceof Container)) return;
+    private void handleLootInteraction(Player player, Block block, LocationKey primaryLocation, PlayerInteractEvent event) {
+        ContainerInspector.Inspection container = inspector.inspect(block, primaryLocation);
+        if (!container.isContainer()) return;
+        // Answered from memory: a container without loot opens as usual.
+        if (!canGenerateLoot(container, primaryLocation)) return;
 
-        PlayerLootRecord record = data.getPlayerRecord(primaryLocation, player.getUniqueId());
-
-        long now = System.currentTimeMillis();
-        long cooldown = config.isRefreshEnabled() ? config.getRefreshIntervalMillis() : -1;
-        boolean shouldGenerateNewLoot = true;
+        // Cancel the vanilla open now, the player's own copy is opened once their record is loaded.
+        event.setCancelled(true);
+        UUID playerUUID = player.getUniqueId();
+        if (!pendingOpens.add(playerUUID)) return; // Still loading their last click.
+
+        // In shared mode an already rolled container never needs its template again.
+        boolean needsTemplate = !container.hasLootTable() && (!config.isSharedLootEnabled() || data.getSharedLoot(primaryLocation) == null);
+        data.supplyAsync(() -> lookUp(primaryLocation, playerUUID, needsTemplate)).whenComplete((lookup, error) -> {
+            ScheduledTask task = player.getScheduler().run(plugin, scheduled -> {
+                pendingOpens.remove(playerUUID);
+                if (error != null) {
+                    plugin.getLogger().severe("Could not load loot data at " + primaryLocation + ": " + error.getMessage());
+                    return;
+                }
+                openLoot(player, block, primaryLocation, lookup);
+            }, () -> pendingOpens.remove(playerUUID));
+            if (task == null) {
+                pendingOpens.remove(playerUUID); // The player already left.
+            }
+        });
+    }
 
+    /**
+     * Loads everything opening a container needs that might not be in memory. Runs off the tick threads,
+     * unless the storage backend is bound to them.
+     * @param needsTemplate Whether new loot would come from a captured template rather than a loot table.
+     */
+    private LootLookup lookUp(LocationKey location, UUID playerUUID, boolean needsTemplate) {
+        PlayerLootRecord record = data.getPlayerRecord(location, playerUUID);
         if (record != null) {
-            long timeSinceLooted = now - record.getTimestamp();
-            if (cooldown == -1 || timeSinceLooted < cooldown) {
-                shouldGenerateNewLoot = false;
+            long cooldown = config.isRefreshEnabled() ? config.getRefreshIntervalMillis() : -1;
+            if (cooldown == -1 || System.currentTimeMillis() - record.getTimestamp() < cooldown) {
+                try {
+                    // Records are loaded lazily, read and decode the contents here rather than on the tick thread.
+                    return new LootLookup(record, record.getContentsUnsafe(), null);
+                } catch (UncheckedIOException e) {
+                    plugin.getLogger().severe("Unreadable player record at " + location + ", rolling new loot instead: " + e.getMessage());
+                }
             }
         }
+        return new LootLookup(null, null, needsTemplate ? data.getCapturedLoot(location) : null);
+    }
 
-        if (shouldGenerateNewLoot) {
-            if (canGenerateLoot(state, primaryLocation)) {
-                event.setCancelled(true);
-                generateNewLootAndOpen(player, (Container) state, primaryLocation);
-            }
-        } else {
-            event.setCancelled(true);
-            openSavedLoot(player, record, (Container) state, primaryLocation);
+    /**
+     * Opens the looked up loot. Runs on the player's scheduler.
+     */
+    private void openLoot(Player player, Block block, LocationKey location, LootLookup lookup) {
+        // The player may have moved away, or the block changed, while the data was loading.
+        if (!player.getWorld().equals(block.getWorld()) || !Bukkit.isOwnedByCurrentRegion(block)) return;
+        ContainerInspector.Inspection container = inspector.inspect(block, location);
+        if (!container.isContainer()) return;
+
+        if (lookup.record != null) {
+            openSavedLoot(player, lookup.record, lookup.contents, container, location);
+        } else if (config.isSharedLootEnabled()) {
+            openSharedLoot(player, block, container, location, lookup.capturedLoot);
+        } else if (canGenerateLoot(container, location)) {
+            generateNewLootAndOpen(player, block, container, location, lookup.capturedLoot);
         }
     }
 
@@ -136,7 +194,7 @@ public class LootManager implements Listener {
         data.resetPlayerElytraTimer(player.getUniqueId());
 
         if (config.isRefreshEnabled()) {
-            long remainingCooldown = (data.getPlayerRecord(location, player.getUniqueId()).getTimestamp() + config.getRefreshIntervalMillis()) - System.currentTimeMillis();
+            long remainingCooldown = (data.getPlayerRecord(data.keyOf(location), player.getUniqueId()).getTimestamp() + config.getRefreshIntervalMillis()) - System.currentTimeMillis();
             if (remainingCooldown > 0) {
                 String messageTemplate = config.getLootOnCooldownMessage();
                 long hours = TimeUnit.MILLISECONDS.toHours(remainingCooldown);
@@ -175,55 +233,84 @@ public class LootManager implements Listener {
         itemFrame.setItem(elytra);
     }
 
-    private boolean canGenerateLoot(BlockState state, Location location) {
-        if (state instanceof Lootable lootable && lootable.getLootTable() != null) return true;
-        if (state instanceof Container container && !isInventoryEmpty(container.getInventory())) return true;
+    private boolean canGenerateLoot(ContainerInspector.Inspection container, LocationKey location) {
+        if (container.hasLootTable()) return true;
+        if (!container.isEmpty()) return true;
         return data.hasCapturedLoot(location);
     }
 
-    private void generateNewLootAndOpen(Player player, Container container, Location location) {
-        ItemStack[] generatedContents = generateLootContents(container, location, player);
+    private void generateNewLootAndOpen(Player player, Block block, ContainerInspector.Inspection container, LocationKey location, ItemStack[] capturedItems) {
+        long start = System.nanoTime();
+        ItemStack[] generatedContents = generateLootContents(block, container, location, player, capturedItems);
+        generationTimer.recordSince(start);
         if (generatedContents == null) return; // Should not happen if canGenerateLoot is true
+        lootRolled.increment();
 
         // --- NEW LOGIC: Create and save the record immediately ---
         PlayerLootRecord newRecord = new PlayerLootRecord(System.currentTimeMillis(), generatedContents);
         data.setPlayerRecord(location, player.getUniqueId(), newRecord);
 
-        openPlayerInventory(player, container, newRecord.getContents());
+        openPlayerInventory(player, container, newRecord.getContentsUnsafe(), location, -1);
         player.sendMessage(MiniMessage.miniMessage().deserialize(config.getFirstLootMessage()));
     }
 
-    private ItemStack[] generateLootContents(Container container, Location location, Player player) {
-        BlockState state = location.getBlock().getState();
-        Inventory tempInventory = Bukkit.createInventory(null, container.getInventory().getSize());
+    /**
+     * Shows the container's shared loot, rolling it first if nobody opened the container this window.
+     * Nothing is stored for the player until they change the inventory.
+     */
+    private void openSharedLoot(Player player, Block block, ContainerInspector.Inspection container, LocationKey location, ItemStack[] capturedItems) {
+        SharedLootInstances.Instance shared = data.getSharedLoot(location);
+        boolean rolled = false;
+        if (shared == null) {
+            if (!canGenerateLoot(container, location)) return;
+            long start = System.nanoTime();
+            ItemStack[] generatedContents = generateLootContents(block, container, location, player, capturedItems);
+            generationTimer.recordSince(start);
+            if (generatedContents == null) return;
+            lootRolled.increment();
+            shared = data.shareLoot(location, generatedContents);
+            // Another player's roll is kept if theirs was shared first.
+            rolled = shared.getContentsUnsafe() == generatedContents;
+        }
 
-        if (state instanceof Lootable lootable && lootable.getLootTable() != null) {
-            LootContext.Builder lootContextBuilder = new LootContext.Builder(location).lootedEntity(player);
-            lootable.getLootTable().fillInventory(tempInventory, random, lootContextBuilder.build());
-            if (isInventoryEmpty(tempInventory) && config.isFallbackLootEnabled()) {
-                populateWithFallbackLoot(tempInventory);
+        openPlayerInventory(player, container, shared.getContentsUnsafe(), location, shared.getTimestamp());
+        if (rolled) {
+            player.sendMessage(MiniMessage.miniMessage().deserialize(config.getFirstLootMessage()));
+        }
+    }
+
+    /**
+     * @param capturedItems The captured template of the container, looked up beforehand.
+     */
+    private ItemStack[] generateLootContents(Block block, ContainerInspector.Inspection container, LocationKey locationKey, Player player, ItemStack[] capturedItems) {
+        if (container.hasLootTable()) {
+            LootTable lootTable = container.getLootTable();
+            ItemStack[] pregenerated = pregenerator.take(locationKey, player.getUniqueId(), lootTable);
+            if (pregenerated != null) {
+                return pregenerated;
             }
-            return tempInventory.getContents();
+            return pregenerator.roll(lootTable, block.getLocation(), container.getInventorySize(), player);
         }
 
-        ItemStack[] capturedItems = data.getCapturedLoot(location);
         if (capturedItems != null && capturedItems.length > 0) {
             return capturedItems;
         }
 
-        if (!isInventoryEmpty(container.getInventory())) {
-            data.captureLoot(location, container.getInventory().getContents());
+        if (!container.isEmpty()) {
+            ItemStack[] contents = container.getContents();
+            data.captureLoot(locationKey, contents);
             if (config.isDebugMode()) {
-                plugin.getLogger().info("Captured new pre-filled loot at: " + LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ()));
+                plugin.getLogger().info("Captured new pre-filled loot at: " + LocationUtil.locationToString(block.getWorld().getName(), block.getX(), block.getY(), block.getZ()));
             }
-            return container.getInventory().getContents();
+            return contents;
         }
         return null;
     }
 
 
-    private void openSavedLoot(Player player, PlayerLootRecord record, Container container, Location location) {
-        openPlayerInventory(player, container, record.getContents());
+    private void openSavedLoot(Player player, PlayerLootRecord record, ItemStack[] contents, ContainerInspector.Inspection container, LocationKey location) {
+        openPlayerInventory(player, container, contents, location, -1);
+        savedLootOpened.increment();
 
         if (config.isRefreshEnabled()) {
             long remainingCooldown = (record.getTimestamp() + config.getRefreshIntervalMillis()) - System.currentTimeMillis();
@@ -242,69 +329,75 @@ public class LootManager implements Listener {
         }
     }
 
-    private void openPlayerInventory(Player player, Container container, ItemStack[] contents) {
-        Inventory lootInventory = Bukkit.createInventory(null, container.getInventory().getSize(), config.getInventoryTitle());
+    /**
+     * @param contents The contents to show. They are copied into the inventory and only read afterwards, so a stored record's array can be passed as is.
+     * @param sharedTimestamp When the shared loot being shown was rolled, or -1 if it is the player's own.
+     */
+    private void openPlayerInventory(Player player, ContainerInspector.Inspection container, ItemStack[] contents, LocationKey location, long sharedTimestamp) {
+        LootInventoryHolder holder = new LootInventoryHolder(location, contents, sharedTimestamp);
+        Inventory lootInventory = Bukkit.createInventory(holder, container.getInventorySize(), config.getInventoryTitle());
+        holder.setInventory(lootInventory);
         lootInventory.setContents(contents);
         player.openInventory(lootInventory);
-        // Store a copy of the initial contents and the location
-        ItemStack[] initialContents = new ItemStack[contents.length];
-        for (int i = 0; i < contents.length; i++) {
-            if (contents[i] != null) {
-                initialContents[i] = contents[i].clone();
-            }
-        }
-        openLootInventories.put(player.getUniqueId(), new OpenInventoryData(initialContents, container.getLocation()));
     }
 
-    @EventHandler
-    public void onInventoryClose(InventoryCloseEvent event) {
-        Player player = (Player) event.getPlayer();
-        UUID playerUUID = player.getUniqueId();
-
-        synchronized (openLootInventories) {
-            if (openLootInventories.containsKey(playerUUID)) {
-                OpenInventoryData openInventoryData = openLootInventories.get(playerUUID);
-                if (openInventoryData != null) {
-                    openLootInventories.remove(playerUUID);
-
-                    if (event.getView().title().equals(config.getInventoryTitle())) {
-                        ItemStack[] currentContents = event.getInventory().getContents();
-                        if (!areInventoriesEqual(openInventoryData.getInitialContents(), currentContents)) {
-                            // --- NEW LOGIC: Update the contents and timestamp only if the inventory changed ---
-                            Location location = openInventoryData.getLocation();
-                            Location primaryLocation = LocationUtil.getPrimaryLocation(location.getBlock());
-                            PlayerLootRecord record = new PlayerLootRecord(System.currentTimeMillis(), currentContents);
-                            data.setPlayerRecord(primaryLocation, playerUUID, record);
-                        }
-                    }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onInventoryClick(InventoryClickEvent event) {
+        Inventory top = event.getView().getTopInventory();
+        if (!(top.getHolder(false) instanceof LootInventoryHolder holder)) return;
+
+        int rawSlot = event.getRawSlot();
+        boolean inLootInventory = rawSlot >= 0 && rawSlot < top.getSize();
+        switch (event.getAction()) {
+            case NOTHING:
+                break;
+            case MOVE_TO_OTHER_INVENTORY:
+                if (inLootInventory) {
+                    holder.markDirty(rawSlot);
+                } else {
+                    // Shift-clicking items in can stack them onto any slot.
+                    holder.markAllDirty();
                 }
-            }
+                break;
+            case COLLECT_TO_CURSOR:
+                holder.markAllDirty();
+                break;
+            default:
+                if (inLootInventory) {
+                    holder.markDirty(rawSlot);
+                }
+                break;
         }
     }
 
-    private boolean areInventoriesEqual(ItemStack[] a, ItemStack[] b) {
-        if (a == null || b == null || a.length != b.length) {
-            return false;
-        }
-
-        for (int i = 0; i < a.length; i++) {
-            ItemStack itemA = a[i];
-            ItemStack itemB = b[i];
-
-            if (itemA == null && itemB == null) {
-                continue;
-            }
-
-            if (itemA == null || itemB == null) {
-                return false;
-            }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onInventoryDrag(InventoryDragEvent event) {
+        Inventory top = event.getView().getTopInventory();
+        if (!(top.getHolder(false) instanceof LootInventoryHolder holder)) return;
 
-            if (!itemA.equals(itemB)) {
-                return false;
+        for (int rawSlot : event.getRawSlots()) {
+            if (rawSlot < top.getSize()) {
+                holder.markDirty(rawSlot);
             }
         }
+    }
 
-        return true;
+    @EventHandler
+    public void onInventoryClose(InventoryCloseEvent event) {
+        // Also fires when the player quits with the inventory open.
+        if (!(event.getInventory().getHolder(false) instanceof LootInventoryHolder holder)) return;
+
+        long start = System.nanoTime();
+        ItemStack[] changedContents = holder.collectChanges();
+        if (changedContents != null) {
+            // --- NEW LOGIC: Update the contents and timestamp only if the inventory changed ---
+            // A player's first change to shared loot gets them their own record, which expires with the shared window.
+            long timestamp = holder.isShared() ? holder.getSharedTimestamp() : System.currentTimeMillis();
+            PlayerLootRecord record = new PlayerLootRecord(timestamp, changedContents);
+            data.setPlayerRecord(holder.getLocation(), event.getPlayer().getUniqueId(), record);
+            recordsChanged.increment();
+        }
+        inventoryCloseTimer.recordSince(start);
     }
 
     // @EventHandler
@@ -322,39 +415,22 @@ public class LootManager implements Listener {
     //     }
     // }
 
-    @EventHandler
-    public void onPlayerQuit(PlayerQuitEvent event) {
-        openLootInventories.remove(event.getPlayer().getUniqueId());
-    }
-
-    private void populateWithFallbackLoot(Inventory inventory) {
-        Set<Integer> usedSlots = new HashSet<>();
-        for (int i = 0; i < config.getFallbackItemsToGive(); i++) {
-            FallbackLootItem chosenItem = getWeightedRandomFallbackItem();
-            if (chosenItem == null) continue;
-            int amount = chosenItem.getMinAmount() + (chosenItem.getMaxAmount() > chosenItem.getMinAmount() ? random.nextInt(chosenItem.getMaxAmount() - chosenItem.getMinAmount() + 1) : 0);
-            ItemStack itemStack = new ItemStack(chosenItem.getMaterial(), amount);
-            if (usedSlots.size() >= inventory.getSize()) break;
-            int slot;
-            do {
-                slot = random.nextInt(inventory.getSize());
-            } while (inventory.getItem(slot) != null && inventory.getItem(slot).getType() != Material.AIR);
-            usedSlots.add(slot);
-            inventory.setItem(slot, itemStack);
+    /**
+     * What {@link #lookUp} found: either a saved record with its decoded contents, or the template for new loot.
+     */
+    private static final class LootLookup {
+        private final PlayerLootRecord record;
+        private final ItemStack[] contents;
+        private final ItemStack[] capturedLoot;
+
+        private LootLookup(PlayerLootRecord record, ItemStack[] contents, ItemStack[] capturedLoot) {
+            this.record = record;
+            this.contents = contents;
+            this.capturedLoot = capturedLoot;
         }
     }
 
-    private FallbackLootItem getWeightedRandomFallbackItem() {
-        if (config.getTotalFallbackWeight() <= 0 || config.getFallbackItems().isEmpty()) return null;
-        int roll = random.nextInt(config.getTotalFallbackWeight());
-        for (FallbackLootItem item : config.getFallbackItems()) {
-            roll -= item.getWeight();
-            if (roll < 0) return item;
-        }
-        return null;
-    }
-
-    private boolean isInventoryEmpty(Inventory inventory) {
+    static boolean isInventoryEmpty(Inventory inventory) {
         for (ItemStack item : inventory.getContents()) {
             if (item != null && item.getType() != Material.AIR) return false;
         }
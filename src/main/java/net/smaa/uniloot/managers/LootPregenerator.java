@@ -0,0 +1,300 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LatencyHistogram;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.LocationUtil;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Container;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.loot.LootContext;
+import org.bukkit.loot.LootTable;
+import org.bukkit.loot.Lootable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolls loot tables and, when pre-generation is enabled, rolls them ahead of time.
+ * <p>
+ * Every second each player's own scheduler looks for unlooted loot-table containers within range and rolls
+ * a few of them for that player. The containers around a player are only looked up again once they move
+ * into another chunk. The results are parked in a bounded cache, so the first right-click
+ * only has to open an inventory. Rolling happens on the region thread that owns the container,
+ * because loot tables read the world, and is capped per player per run to keep each tick's share small.
+ */
+public class LootPregenerator implements Listener {
+
+    private static final long RUN_INTERVAL_TICKS = 20L;
+    // Rolls older than this are thrown away, in case the loot table or its plugin was changed in the meantime.
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final UniLoot plugin;
+    private final ConfigManager config;
+    private final DataManager data;
+    private final LatencyHistogram pregenerationTimer;
+    // Access ordered so the least recently used roll is evicted first. Guarded by itself.
+    private final LinkedHashMap<CacheKey, PregeneratedLoot> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, PregeneratedLoot> eldest) {
+            return size() > config.getPregenerationMaxCached();
+        }
+    };
+    // The loot-table containers around each player, found when they entered their current chunk.
+    private final Map<UUID, Candidates> candidates = new ConcurrentHashMap<>();
+
+    public LootPregenerator(UniLoot plugin, ConfigManager configManager, DataManager dataManager) {
+        this.plugin = plugin;
+        this.config = configManager;
+        this.data = dataManager;
+        this.pregenerationTimer = plugin.getMetrics().timer(MetricsManager.PREGENERATION);
+    }
+
+    /**
+     * Starts pre-generation for every player that was already online before the plugin was enabled.
+     */
+    public void startForOnlinePlayers() {
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            start(player);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        start(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        UUID playerUUID = event.getPlayer().getUniqueId();
+        candidates.remove(playerUUID);
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.playerUUID.equals(playerUUID));
+        }
+    }
+
+    private void start(Player player) {
+        // The task is retired together with the player entity when they leave, so it never has to be cancelled.
+        player.getScheduler().runAtFixedRate(plugin, task -> pregenerateNear(player), null, RUN_INTERVAL_TICKS, RUN_INTERVAL_TICKS);
+    }
+
+    /**
+     * Takes the roll made ahead of time for this player and container, if there is a usable one.
+     * @param location The key of the container.
+     * @param playerUUID The UUID of the player.
+     * @param lootTable The loot table the container has now.
+     * @return The rolled contents, or null if the loot has to be rolled now.
+     */
+    public ItemStack[] take(LocationKey location, UUID playerUUID, LootTable lootTable) {
+        PregeneratedLoot loot;
+        synchronized (cache) {
+            if (cache.isEmpty()) return null;
+            loot = cache.remove(new CacheKey(location, playerUUID));
+        }
+        if (loot == null) return null;
+        if (System.currentTimeMillis() - loot.rolledAt > MAX_AGE_MILLIS || !Objects.equals(loot.lootTable, lootTable.getKey())) {
+            return null;
+        }
+        return loot.contents;
+    }
+
+    /**
+     * Rolls a loot table into a new inventory of the given size, topping it up with fallback loot if it came out empty.
+     * Must be called on the thread that owns the location.
+     * @return The rolled contents.
+     */
+    public ItemStack[] roll(LootTable lootTable, Location location, int size, Player player) {
+        Inventory tempInventory = Bukkit.createInventory(null, size);
+        LootContext.Builder lootContextBuilder = new LootContext.Builder(location).lootedEntity(player);
+        lootTable.fillInventory(tempInventory, ThreadLocalRandom.current(), lootContextBuilder.build());
+        if (LootManager.isInventoryEmpty(tempInventory) && config.isFallbackLootEnabled()) {
+            config.getFallbackLootTable().fill(tempInventory, config.getFallbackItemsToGive(), ThreadLocalRandom.current());
+        }
+        return tempInventory.getContents();
+    }
+
+    public int getCachedCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private void pregenerateNear(Player player) {
+        // In shared mode a container is rolled once for everyone, rolls for one player would go to waste.
+        if (!config.isPregenerationEnabled() || config.isSharedLootEnabled() || !player.isValid()) return;
+
+        long start = System.nanoTime();
+        try {
+            rollNear(player);
+        } finally {
+            pregenerationTimer.recordSince(start);
+        }
+    }
+
+    private void rollNear(Player player) {
+        Location center = player.getLocation();
+        World world = center.getWorld();
+        int chunkX = center.getBlockX() >> 4;
+        int chunkZ = center.getBlockZ() >> 4;
+        UUID playerUUID = player.getUniqueId();
+        Candidates nearby = candidates.get(playerUUID);
+        if (nearby == null || !nearby.isFor(world, chunkX, chunkZ)) {
+            nearby = findCandidates(world, chunkX, chunkZ);
+            candidates.put(playerUUID, nearby);
+        }
+
+        int range = config.getPregenerationRange();
+        double rangeSquared = (double) range * range;
+        int budget = config.getPregenerationRollsPerSecond();
+        for (Candidate candidate : nearby.containers) {
+            Location location = candidate.location;
+            if (location.distanceSquared(center) > rangeSquared) continue;
+
+            CacheKey cacheKey = new CacheKey(candidate.key, playerUUID);
+            synchronized (cache) {
+                if (cache.containsKey(cacheKey)) continue;
+            }
+            // The chunk may have been unloaded or handed to another region since the containers were found.
+            // Checked before any lookup, as the chunk storage backend reads the chunk itself.
+            if (!world.isChunkLoaded(location.getBlockX() >> 4, location.getBlockZ() >> 4) || !Bukkit.isOwnedByCurrentRegion(location)) continue;
+            if (data.isPlayerPlaced(candidate.key) || isLootedOrUnknown(candidate.key, playerUUID)) continue;
+
+            BlockState state = location.getBlock().getState(false);
+            if (!(state instanceof Container container) || !(state instanceof Lootable lootable)) continue;
+            LootTable lootTable = lootable.getLootTable();
+            if (lootTable == null) continue;
+
+            ItemStack[] contents = roll(lootTable, location, container.getInventory().getSize(), player);
+            synchronized (cache) {
+                cache.put(cacheKey, new PregeneratedLoot(contents, lootTable.getKey(), System.currentTimeMillis()));
+            }
+            if (--budget <= 0) return;
+        }
+    }
+
+    /**
+     * Walks the tile entities of the chunks that can be in range from anywhere in the given chunk, so the result
+     * stays usable until the player leaves it.
+     */
+    private Candidates findCandidates(World world, int chunkX, int chunkZ) {
+        int range = config.getPregenerationRange();
+        Set<Material> containerTypes = config.getEnabledContainerTypes();
+
+        int minChunkX = ((chunkX << 4) - range) >> 4;
+        int maxChunkX = ((chunkX << 4) + 15 + range) >> 4;
+        int minChunkZ = ((chunkZ << 4) - range) >> 4;
+        int maxChunkZ = ((chunkZ << 4) + 15 + range) >> 4;
+
+        List<Candidate> found = new ArrayList<>();
+        for (int x = minChunkX; x <= maxChunkX; x++) {
+            for (int z = minChunkZ; z <= maxChunkZ; z++) {
+                // Containers in chunks owned by another region are picked up once the player is closer to them.
+                if (!world.isChunkLoaded(x, z) || !Bukkit.isOwnedByCurrentRegion(world, x, z)) continue;
+
+                Chunk chunk = world.getChunkAt(x, z);
+                for (BlockState state : chunk.getTileEntities(block -> containerTypes.contains(block.getType()), false)) {
+                    if (!(state instanceof Container) || !(state instanceof Lootable lootable) || lootable.getLootTable() == null) continue;
+                    LocationKey key = data.keyOf(LocationUtil.getPrimaryLocation(state.getBlock()));
+                    found.add(new Candidate(key, state.getLocation()));
+                }
+            }
+        }
+        return new Candidates(world.getUID(), chunkX, chunkZ, found);
+    }
+
+    /**
+     * Only answers from memory. A container whose record is not in memory yet is skipped rather than rolled,
+     * so the budget is not spent on containers the player may already have looted. It is rolled once the record is cached.
+     */
+    private boolean isLootedOrUnknown(LocationKey location, UUID playerUUID) {
+        if (!data.isPlayerRecordCached(location, playerUUID)) return true;
+        PlayerLootRecord record = data.getCachedPlayerRecord(location, playerUUID);
+        if (record == null) return false;
+        if (!config.isRefreshEnabled()) return true;
+        return System.currentTimeMillis() - record.getTimestamp() < config.getRefreshIntervalMillis();
+    }
+
+    private static final class Candidates {
+        private final UUID worldUUID;
+        private final int chunkX;
+        private final int chunkZ;
+        private final List<Candidate> containers;
+
+        private Candidates(UUID worldUUID, int chunkX, int chunkZ, List<Candidate> containers) {
+            this.worldUUID = worldUUID;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.containers = containers;
+        }
+
+        private boolean isFor(World world, int chunkX, int chunkZ) {
+            return this.chunkX == chunkX && this.chunkZ == chunkZ && worldUUID.equals(world.getUID());
+        }
+    }
+
+    private static final class Candidate {
+        private final LocationKey key;
+        private final Location location;
+
+        private Candidate(LocationKey key, Location location) {
+            this.key = key;
+            this.location = location;
+        }
+    }
+
+    private static final class CacheKey {
+        private final LocationKey location;
+        private final UUID playerUUID;
+
+        private CacheKey(LocationKey location, UUID playerUUID) {
+            this.location = location;
+            this.playerUUID = playerUUID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CacheKey other)) return false;
+            return location.equals(other.location) && playerUUID.equals(other.playerUUID);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * location.hashCode() + playerUUID.hashCode();
+        }
+    }
+
+    private static final class PregeneratedLoot {
+        private final ItemStack[] contents;
+        private final NamespacedKey lootTable;
+        private final long rolledAt;
+
+        private PregeneratedLoot(ItemStack[] contents, NamespacedKey lootTable, long rolledAt) {
+            this.contents = contents;
+            this.lootTable = lootTable;
+            this.rolledAt = rolledAt;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.UUID;
+
+/**
+ * Where the per-container data lives: player loot records, captured loot templates and the player-placed flag.
+ * {@link DataManager} picks one implementation at startup, based on {@code storage.backend} in config.yml.
+ */
+public interface LootStorage {
+
+    /** Set by {@link #getFlags} for player-placed containers. */
+    byte FLAG_PLACED = 1;
+    /** Set by {@link #getFlags} for containers with a captured template. */
+    byte FLAG_CAPTURED = 2;
+
+    /**
+     * @return The name used for this backend in config.yml.
+     */
+    String getName();
+
+    /**
+     * Prepares the backend. Called once, after the database is connected.
+     */
+    void load();
+
+    PlayerLootRecord getPlayerRecord(LocationKey location, UUID playerUUID);
+
+    /**
+     * Like {@link #getPlayerRecord}, but only answers if it can do so from memory.
+     * @return The record, or null if there is none or it is not in memory.
+     */
+    PlayerLootRecord getCachedPlayerRecord(LocationKey location, UUID playerUUID);
+
+    /**
+     * @return True if {@link #getCachedPlayerRecord} can answer from memory right now, so a null from it means there is no record.
+     */
+    default boolean isPlayerRecordCached(LocationKey location, UUID playerUUID) {
+        return true;
+    }
+
+    void setPlayerRecord(LocationKey location, UUID playerUUID, PlayerLootRecord record);
+
+    /**
+     * Updates only the contents of an existing player loot record, preserving the original timestamp.
+     */
+    void updatePlayerRecordContents(LocationKey location, UUID playerUUID, ItemStack[] contents);
+
+    boolean hasCapturedLoot(LocationKey location);
+
+    /**
+     * Stores the template for a container. A template that is already stored is never overwritten.
+     */
+    void captureLoot(LocationKey location, ItemStack[] items);
+
+    /**
+     * @return A copy of the captured template, or null if there is none. Decoded templates are kept in a
+     * {@link CapturedLootCache}, so a template opened by many players is only read and decoded once.
+     */
+    ItemStack[] getCapturedLoot(LocationKey location);
+
+    /**
+     * @return The stored size of the decoded templates this backend keeps in memory, in bytes.
+     */
+    default long getTemplateCacheBytes() {
+        return 0;
+    }
+
+    void addPlayerPlaced(LocationKey location);
+
+    void removePlayerPlaced(LocationKey location);
+
+    boolean isPlayerPlaced(LocationKey location);
+
+    void clearAllDataForLocation(LocationKey location);
+
+    /**
+     * Looks up {@link #isPlayerPlaced} and {@link #hasCapturedLoot} for many locations in one world at once,
+     * so an explosion can be checked without a lookup per block.
+     * @param positions Packed positions, see {@link LocationKey#pack}. Only the first {@code count} are used.
+     * @param flags Receives {@link #FLAG_PLACED} and {@link #FLAG_CAPTURED} for each position.
+     */
+    default void getFlags(int worldId, long[] positions, int count, byte[] flags) {
+        for (int i = 0; i < count; i++) {
+            LocationKey location = new LocationKey(worldId, positions[i]);
+            flags[i] = (byte) ((isPlayerPlaced(location) ? FLAG_PLACED : 0) | (hasCapturedLoot(location) ? FLAG_CAPTURED : 0));
+        }
+    }
+
+    /**
+     * Streams everything this backend holds to the visitor: all captured templates first, then the player
+     * records, then the player-placed flags. Used by {@code /uniloot migrate}, called off the main threads.
+     * @throws UnsupportedOperationException If the backend cannot list its data.
+     */
+    void export(LootVisitor visitor);
+
+    /**
+     * @return The number of writes accepted but not yet persisted, so bulk writers can wait while the backend catches up.
+     */
+    default int getPendingWriteCount() {
+        return 0;
+    }
+
+    /**
+     * @return True if data may only be written by the thread owning the location's chunk, with the chunk loaded.
+     */
+    default boolean isChunkBound() {
+        return false;
+    }
+
+    /**
+     * Releases whatever the backend holds open. Called once on shutdown.
+     */
+    default void close() {
+    }
+
+    interface LootVisitor {
+        void capturedLoot(LocationKey location, ItemStack[] items);
+
+        void playerRecord(LocationKey location, UUID playerUUID, PlayerLootRecord record);
+
+        void playerPlaced(LocationKey location);
+    }
+}
@@ -0,0 +1,264 @@
+package net.smaa.uniloot.managers;
+
+import com.sun.net.httpserver.HttpServer;
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.ItemStackCodec;
+import net.smaa.uniloot.utils.LatencyHistogram;
+import net.smaa.uniloot.utils.TimedItemStackCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Collects how long UniLoot's hot paths take and how often things happen, and reports them through
+ * {@code /uniloot stats}, an optional periodic log line and an optional Prometheus endpoint on localhost.
+ * <p>
+ * Components look up their timers and counters once, when they are created, and record into them from any thread.
+ */
+public class MetricsManager {
+
+    // --- Timers on server threads; together they are what UniLoot adds to a tick ---
+    public static final String INTERACT = "interact";
+    public static final String INVENTORY_CLOSE = "inventory_close";
+    public static final String EXPLOSION = "explosion_filter";
+    public static final String PREGENERATION = "pregeneration";
+    public static final String CHUNK_CLASSIFY = "chunk_classify";
+    public static final String CHUNK_CACHE_EVENTS = "chunk_cache_events";
+    public static final String PREFETCH_EVENTS = "prefetch_events";
+    private static final List<String> TICK_TIMERS = List.of(INTERACT, INVENTORY_CLOSE, EXPLOSION, PREGENERATION, CHUNK_CLASSIFY, CHUNK_CACHE_EVENTS, PREFETCH_EVENTS);
+
+    // --- Other timers ---
+    public static final String LOOT_GENERATION = "loot_generation";
+    public static final String ITEM_ENCODE = "item_encode";
+    public static final String ITEM_DECODE = "item_decode";
+    public static final String DB_PLAYER_RECORD = "db_player_record";
+    public static final String DB_RECORD_CONTENTS = "db_record_contents";
+    public static final String DB_CAPTURED_LOOT = "db_captured_loot";
+    public static final String DB_ELYTRA = "db_elytra";
+    public static final String DB_CHUNK_LOAD = "db_chunk_load";
+    public static final String DB_PREFETCH = "db_prefetch";
+    public static final String DB_WRITE_BATCH = "db_write_batch";
+
+    // --- Counters ---
+    public static final String LOOT_ROLLED = "loot_rolled";
+    public static final String SAVED_LOOT_OPENED = "saved_loot_opened";
+    public static final String RECORDS_CHANGED = "records_changed";
+    public static final String EXPLOSION_BLOCKS_PROTECTED = "explosion_blocks_protected";
+    public static final String TEMPLATE_CACHE_HITS = "template_cache_hits";
+    public static final String TEMPLATE_CACHE_MISSES = "template_cache_misses";
+
+    private static final double TICKS_PER_SECOND = 20.0;
+
+    private final UniLoot plugin;
+    private final ConfigManager config;
+    // Sorted, so every report lists the metrics in the same order.
+    private final Map<String, LatencyHistogram> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final long startNanos = System.nanoTime();
+
+    // Only touched by the log task.
+    private Map<String, LatencyHistogram.Snapshot> lastLogged = new HashMap<>();
+    private long lastLogNanos = startNanos;
+    private ScheduledTask logTask;
+    private HttpServer httpServer;
+    // HttpServer#stop leaves the executor running, so it is shut down separately.
+    private ExecutorService httpExecutor;
+
+    public MetricsManager(UniLoot plugin, ConfigManager configManager) {
+        this.plugin = plugin;
+        this.config = configManager;
+    }
+
+    public LatencyHistogram timer(String name) {
+        return timers.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * @return The codec, recording every encode and decode under {@link #ITEM_ENCODE} and {@link #ITEM_DECODE}.
+     */
+    public ItemStackCodec timed(ItemStackCodec codec) {
+        return new TimedItemStackCodec(codec, timer(ITEM_ENCODE), timer(ITEM_DECODE));
+    }
+
+    /**
+     * Registers a value that is read whenever metrics are reported, like the write queue depth.
+     */
+    public void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Starts the log line and, if enabled, the HTTP endpoint. Must be called once the config is loaded.
+     */
+    public void start() {
+        // Checked every minute, so the interval can be changed with /uniloot reload.
+        logTask = plugin.getServer().getAsyncScheduler().runAtFixedRate(plugin, task -> logIfDue(), 1, 1, TimeUnit.MINUTES);
+
+        if (!config.isMetricsHttpEnabled()) return;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getMetricsHttpPort()), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "UniLoot-Metrics-HTTP");
+                thread.setDaemon(true);
+                return thread;
+            });
+            httpServer.setExecutor(httpExecutor);
+            httpServer.start();
+            plugin.getLogger().info("Serving metrics at http://127.0.0.1:" + config.getMetricsHttpPort() + "/metrics");
+        } catch (IOException e) {
+            plugin.getLogger().severe("Could not start the metrics endpoint on port " + config.getMetricsHttpPort() + ": " + e.getMessage());
+        }
+    }
+
+    public void stop() {
+        if (logTask != null) {
+            logTask.cancel();
+        }
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (httpExecutor != null) {
+            httpExecutor.shutdownNow();
+            httpExecutor = null;
+        }
+    }
+
+    // --- Reports ---
+
+    /**
+     * @return Lines for {@code /uniloot stats}, covering everything since the plugin was enabled.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        long elapsed = System.nanoTime() - startNanos;
+        Map<String, LatencyHistogram.Snapshot> snapshots = snapshotTimers();
+        lines.add(String.format(Locale.ROOT, "Uptime %dm, %.3fms of server thread time per tick on average.",
+                TimeUnit.NANOSECONDS.toMinutes(elapsed), tickCostMillis(snapshots, elapsed)));
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : snapshots.entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue();
+            if (snapshot.getCount() == 0) continue;
+            lines.add(String.format(Locale.ROOT, "%s: %d calls, mean %s, p50 %s, p95 %s, p99 %s, max %s",
+                    entry.getKey(), snapshot.getCount(), millis((long) snapshot.getMeanNanos()), millis(snapshot.getPercentileNanos(0.5)),
+                    millis(snapshot.getPercentileNanos(0.95)), millis(snapshot.getPercentileNanos(0.99)), millis(snapshot.getMaxNanos())));
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue().sum());
+        }
+        for (Map.Entry<String, DoubleSupplier> entry : gauges.entrySet()) {
+            lines.add(entry.getKey() + ": " + formatValue(entry.getValue().getAsDouble()));
+        }
+        return lines;
+    }
+
+    private void logIfDue() {
+        int intervalMinutes = config.getMetricsLogIntervalMinutes();
+        long now = System.nanoTime();
+        if (intervalMinutes <= 0 || now - lastLogNanos < TimeUnit.MINUTES.toNanos(intervalMinutes) - TimeUnit.SECONDS.toNanos(5)) return;
+
+        Map<String, LatencyHistogram.Snapshot> current = snapshotTimers();
+        Map<String, LatencyHistogram.Snapshot> window = new HashMap<>();
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : current.entrySet()) {
+            LatencyHistogram.Snapshot earlier = lastLogged.get(entry.getKey());
+            LatencyHistogram.Snapshot snapshot = earlier == null ? entry.getValue() : entry.getValue().since(earlier);
+            window.put(entry.getKey(), snapshot);
+            if (snapshot.getCount() == 0) continue;
+            line.append(", ").append(entry.getKey()).append(" p99 ").append(millis(snapshot.getPercentileNanos(0.99)))
+                    .append(" (").append(snapshot.getCount()).append(')');
+        }
+        plugin.getLogger().info(String.format(Locale.ROOT, "Last %dm: %.3fms per tick", TimeUnit.NANOSECONDS.toMinutes(now - lastLogNanos),
+                tickCostMillis(window, now - lastLogNanos)) + line);
+        lastLogged = current;
+        lastLogNanos = now;
+    }
+
+    private String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : snapshotTimers().entrySet()) {
+            String name = "uniloot_" + entry.getKey() + "_seconds";
+            LatencyHistogram.Snapshot snapshot = entry.getValue();
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : new double[] { 0.5, 0.95, 0.99 }) {
+                text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(snapshot.getPercentileNanos(quantile))).append('\n');
+            }
+            text.append(name).append("_sum ").append(seconds(snapshot.getSumNanos())).append('\n');
+            text.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            String name = "uniloot_" + entry.getKey() + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, DoubleSupplier> entry : gauges.entrySet()) {
+            String name = "uniloot_" + entry.getKey();
+            text.append("# TYPE ").append(name).append(" gauge\n");
+            text.append(name).append(' ').append(entry.getValue().getAsDouble()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private Map<String, LatencyHistogram.Snapshot> snapshotTimers() {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new ConcurrentSkipListMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * On Folia regions tick in parallel, so this is the time summed over all regions.
+     */
+    private static double tickCostMillis(Map<String, LatencyHistogram.Snapshot> snapshots, long elapsedNanos) {
+        long tickNanos = 0;
+        for (String name : TICK_TIMERS) {
+            LatencyHistogram.Snapshot snapshot = snapshots.get(name);
+            if (snapshot != null) {
+                tickNanos += snapshot.getSumNanos();
+            }
+        }
+        double ticks = Math.max(1.0, elapsedNanos / 1_000_000_000.0 * TICKS_PER_SECOND);
+        return tickNanos / 1_000_000.0 / ticks;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1_000_000.0);
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1_000_000_000.0;
+    }
+
+    private static String formatValue(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.format(Locale.ROOT, "%.2f", value);
+    }
+}
@@ -0,0 +1,225 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * A single database write waiting in the {@link WriteBehindQueue}.
+ * Writes that target the same row share a key so that later writes can be coalesced into earlier ones.
+ */
+public class PendingWrite {
+
+    public enum Type {
+        PLAYER_RECORD,
+        PLAYER_RECORD_CONTENTS,
+        CAPTURE_LOOT,
+        ADD_PLAYER_PLACED,
+        REMOVE_PLAYER_PLACED,
+        CLEAR_LOCATION,
+        ELYTRA,
+        PLAYER_SEEN
+    }
+
+    private final Type type;
+    private final Key key;
+    private final LocationKey locationKey;
+    private final UUID playerUUID;
+    private final long timestamp;
+    private final ItemStack[] contents;
+    private final boolean insertElytra;
+    private final boolean resetElytra;
+
+    private PendingWrite(Type type, Key key, LocationKey locationKey, UUID playerUUID, long timestamp, ItemStack[] contents, boolean insertElytra, boolean resetElytra) {
+        this.type = type;
+        this.key = key;
+        this.locationKey = locationKey;
+        this.playerUUID = playerUUID;
+        this.timestamp = timestamp;
+        this.contents = contents;
+        this.insertElytra = insertElytra;
+        this.resetElytra = resetElytra;
+    }
+
+    // --- Factories ---
+
+    public static PendingWrite playerRecord(LocationKey locationKey, UUID playerUUID, PlayerLootRecord record) {
+        return new PendingWrite(Type.PLAYER_RECORD, recordKey(locationKey, playerUUID), locationKey, playerUUID, record.getTimestamp(), record.getContents(), false, false);
+    }
+
+    public static PendingWrite playerRecordContents(LocationKey locationKey, UUID playerUUID, ItemStack[] contents) {
+        return new PendingWrite(Type.PLAYER_RECORD_CONTENTS, recordKey(locationKey, playerUUID), locationKey, playerUUID, 0L, copyOf(contents), false, false);
+    }
+
+    public static PendingWrite captureLoot(LocationKey locationKey, ItemStack[] items) {
+        return new PendingWrite(Type.CAPTURE_LOOT, capturedKey(locationKey), locationKey, null, 0L, copyOf(items), false, false);
+    }
+
+    public static PendingWrite addPlayerPlaced(LocationKey locationKey) {
+        return new PendingWrite(Type.ADD_PLAYER_PLACED, placedKey(locationKey), locationKey, null, 0L, null, false, false);
+    }
+
+    public static PendingWrite removePlayerPlaced(LocationKey locationKey) {
+        return new PendingWrite(Type.REMOVE_PLAYER_PLACED, placedKey(locationKey), locationKey, null, 0L, null, false, false);
+    }
+
+    public static PendingWrite clearLocation(LocationKey locationKey) {
+        return new PendingWrite(Type.CLEAR_LOCATION, clearKey(locationKey), locationKey, null, 0L, null, false, false);
+    }
+
+    public static PendingWrite elytraObtained(UUID playerUUID) {
+        return new PendingWrite(Type.ELYTRA, elytraKey(playerUUID), null, playerUUID, System.currentTimeMillis(), null, true, false);
+    }
+
+    public static PendingWrite elytraTimerReset(UUID playerUUID) {
+        return new PendingWrite(Type.ELYTRA, elytraKey(playerUUID), null, playerUUID, System.currentTimeMillis(), null, false, true);
+    }
+
+    public static PendingWrite playerSeen(UUID playerUUID) {
+        return new PendingWrite(Type.PLAYER_SEEN, seenKey(playerUUID), null, playerUUID, System.currentTimeMillis(), null, false, false);
+    }
+
+    // --- Coalescing keys ---
+
+    public static Key recordKey(LocationKey locationKey, UUID playerUUID) {
+        return new Key(Key.RECORD, locationKey, playerUUID);
+    }
+
+    public static Key capturedKey(LocationKey locationKey) {
+        return new Key(Key.CAPTURED, locationKey, null);
+    }
+
+    public static Key placedKey(LocationKey locationKey) {
+        return new Key(Key.PLACED, locationKey, null);
+    }
+
+    public static Key clearKey(LocationKey locationKey) {
+        return new Key(Key.CLEAR, locationKey, null);
+    }
+
+    public static Key elytraKey(UUID playerUUID) {
+        return new Key(Key.ELYTRA, null, playerUUID);
+    }
+
+    public static Key seenKey(UUID playerUUID) {
+        return new Key(Key.SEEN, null, playerUUID);
+    }
+
+    /**
+     * Identifies the row a write targets. Writes with equal keys are coalesced.
+     */
+    public static final class Key {
+        private static final int RECORD = 0;
+        private static final int CAPTURED = 1;
+        private static final int PLACED = 2;
+        private static final int CLEAR = 3;
+        private static final int ELYTRA = 4;
+        private static final int SEEN = 5;
+
+        private final int kind;
+        private final LocationKey location;
+        private final UUID playerUUID;
+
+        private Key(int kind, LocationKey location, UUID playerUUID) {
+            this.kind = kind;
+            this.location = location;
+            this.playerUUID = playerUUID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key other)) return false;
+            return kind == other.kind && Objects.equals(location, other.location) && Objects.equals(playerUUID, other.playerUUID);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * kind + Objects.hashCode(location)) + Objects.hashCode(playerUUID);
+        }
+
+        @Override
+        public String toString() {
+            return kind + "|" + location + "|" + playerUUID;
+        }
+    }
+
+    /**
+     * Combines this write with an older, not yet persisted write for the same key.
+     * @param older The write that is currently queued under the same key.
+     * @return The single write that has the same effect as applying both in order.
+     */
+    PendingWrite mergeWith(PendingWrite older) {
+        switch (type) {
+            case PLAYER_RECORD_CONTENTS:
+                if (older.type == Type.PLAYER_RECORD) {
+                    // The row has not been written yet, so keep its timestamp and take the newer contents.
+                    return new PendingWrite(Type.PLAYER_RECORD, key, locationKey, playerUUID, older.timestamp, contents, false, false);
+                }
+                return this;
+            case CAPTURE_LOOT:
+                // Captures are INSERT OR IGNORE, so the first capture wins.
+                return older.type == Type.CAPTURE_LOOT ? older : this;
+            case ELYTRA:
+                return new PendingWrite(Type.ELYTRA, key, null, playerUUID, timestamp, null,
+                        insertElytra || older.insertElytra, resetElytra || older.resetElytra);
+            default:
+                return this;
+        }
+    }
+
+    private static ItemStack[] copyOf(ItemStack[] items) {
+        if (items == null) return null;
+        ItemStack[] copy = new ItemStack[items.length];
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null) {
+                copy[i] = items[i].clone();
+            }
+        }
+        return copy;
+    }
+
+    // --- Getters ---
+
+    public Type getType() {
+        return type;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    public LocationKey getLocationKey() {
+        return locationKey;
+    }
+
+    public UUID getPlayerUUID() {
+        return playerUUID;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return A copy of the queued contents, safe to hand out to callers.
+     */
+    public ItemStack[] getContents() {
+        return copyOf(contents);
+    }
+
+    ItemStack[] getContentsUnsafe() {
+        return contents;
+    }
+
+    public boolean isInsertElytra() {
+        return insertElytra;
+    }
+
+    public boolean isResetElytra() {
+        return resetElytra;
+    }
+}
@@ -3,14 +3,13 @@ package net.smaa.uniloot.managers;
 import net.kyori.adventure.text.minimessage.MiniMessage;
 import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
 import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LatencyHistogram;
+import net.smaa.uniloot.utils.LocationKey;
 import net.smaa.uniloot.utils.LocationUtil;
 import org.bukkit.GameMode;
-import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.block.BlockState;
-import org.bukkit.block.Container;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -19,25 +18,33 @@ import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockExplodeEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.entity.EntityExplodeEvent;
-import org.bukkit.loot.Lootable;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ProtectionManager implements Listener {
 
     private final UniLoot plugin;
     private final ConfigManager config;
     private final DataManager data;
-    private final Map<UUID, Location> creativeBreakConfirmations = new HashMap<>();
+    private final ContainerInspector inspector;
+    private final Map<UUID, LocationKey> creativeBreakConfirmations = new ConcurrentHashMap<>();
+    private final LatencyHistogram explosionTimer;
+    private final LongAdder blocksProtected;
     private static final BlockFace[] ADJACENT_FACES = { BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST };
 
 
-    public ProtectionManager(UniLoot plugin, ConfigManager configManager, DataManager dataManager) {
+    public ProtectionManager(UniLoot plugin, ConfigManager configManager, DataManager dataManager, ContainerInspector inspector) {
         this.plugin = plugin;
         this.config = configManager;
         this.data = dataManager;
+        this.inspector = inspector;
+        this.explosionTimer = plugin.getMetrics().timer(MetricsManager.EXPLOSION);
+        this.blocksProtected = plugin.getMetrics().counter(MetricsManager.EXPLOSION_BLOCKS_PROTECTED);
     }
 
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
@@ -61,7 +68,9 @@ public class ProtectionManager implements Listener {
 
         // Track the placed container so the plugin knows to ignore it
         if (config.getEnabledContainerTypes().contains(blockType)) {
-            data.addPlayerPlaced(LocationUtil.getPrimaryLocation(block));
+            LocationKey location = data.keyOf(LocationUtil.getPrimaryLocation(block));
+            inspector.invalidate(location);
+            data.addPlayerPlaced(location);
         }
     }
 
@@ -70,7 +79,9 @@ public class ProtectionManager implements Listener {
         Block block = event.getBlock();
         if (config.getEnabledContainerTypes().contains(block.getType())) {
             // Clear all data associated with this location to prevent "ghost" loot
-            data.clearAllDataForLocation(LocationUtil.getPrimaryLocation(block));
+            LocationKey location = data.keyOf(LocationUtil.getPrimaryLocation(block));
+            inspector.invalidate(location);
+            data.clearAllDataForLocation(location);
         }
     }
 
@@ -91,7 +102,7 @@ public class ProtectionManager implements Listener {
 
     private void handleCreativeBreak(Player player, Block block, BlockBreakEvent event) {
         UUID playerUUID = player.getUniqueId();
-        Location blockLocation = LocationUtil.getPrimaryLocation(block);
+        LocationKey blockLocation = data.keyOf(LocationUtil.getPrimaryLocation(block));
 
         if (creativeBreakConfirmations.containsKey(playerUUID) && creativeBreakConfirmations.get(playerUUID).equals(blockLocation)) {
             creativeBreakConfirmations.remove(playerUUID);
@@ -103,43 +114,113 @@ public class ProtectionManager implements Listener {
                     Placeholder.unparsed("time", String.valueOf(config.getCreativeBreakConfirmationSeconds()))
             ));
 
-            plugin.getServer().getScheduler().runTaskLater(plugin, () -> creativeBreakConfirmations.remove(playerUUID, blockLocation), config.getCreativeBreakConfirmationSeconds() * 20L);
+            // The player's own scheduler follows them across regions. If they log out first, the retired callback cleans up instead.
+            player.getScheduler().runDelayed(plugin, task -> creativeBreakConfirmations.remove(playerUUID, blockLocation),
+                    () -> creativeBreakConfirmations.remove(playerUUID, blockLocation), config.getCreativeBreakConfirmationSeconds() * 20L);
         }
     }
 
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
     public void onEntityExplode(EntityExplodeEvent event) {
         if (!config.isProtectionEnabled()) return;
-        event.blockList().removeIf(this::isProtectedLootContainer);
+        removeProtectedBlocks(event.blockList());
     }
 
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
     public void onBlockExplode(BlockExplodeEvent event) {
         if (!config.isProtectionEnabled()) return;
-        event.blockList().removeIf(this::isProtectedLootContainer);
+        removeProtectedBlocks(event.blockList());
     }
 
-    private boolean isProtectedLootContainer(Block block) {
-        if (!config.getEnabledContainerTypes().contains(block.getType())) {
+    /**
+     * Removes every protected loot container from an explosion in one pass: blocks are filtered by type first,
+     * the flags of the remaining ones are looked up as a batch, and loot tables are read from the live block
+     * instead of a snapshot. Allocates a few primitive arrays per explosion and nothing for blocks that are not containers.
+     */
+    private void removeProtectedBlocks(List<Block> blocks) {
+        if (blocks.isEmpty()) return;
+        long start = System.nanoTime();
+        Set<Material> containerTypes = config.getEnabledContainerTypes();
+        int size = blocks.size();
+        int[] candidates = new int[size];
+        long[] positions = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            Block block = blocks.get(i);
+            if (containerTypes.contains(block.getType())) {
+                candidates[count] = i;
+                positions[count] = LocationKey.pack(block.getX(), block.getY(), block.getZ());
+                count++;
+            }
+        }
+        if (count == 0) {
+            explosionTimer.recordSince(start);
+            return;
+        }
+
+        byte[] flags = new byte[count];
+        int worldId = data.worldIdOf(blocks.get(0).getWorld());
+        data.getFlags(worldId, positions, count, flags);
+
+        // Compact the list in place, keeping every block that is not protected.
+        int kept = 0;
+        int candidate = 0;
+        for (int i = 0; i < size; i++) {
+            Block block = blocks.get(i);
+            if (candidate < count && candidates[candidate] == i) {
+                boolean isProtected = isProtectedLootContainer(block, new LocationKey(worldId, positions[candidate]), flags[candidate]);
+                candidate++;
+                if (isProtected) continue;
+            }
+            if (kept != i) {
+                blocks.set(kept, block);
+            }
+            kept++;
+        }
+        if (kept < size) {
+            blocks.subList(kept, size).clear();
+            blocksProtected.add(size - kept);
+        }
+        explosionTimer.recordSince(start);
+    }
+
+    /**
+     * @param flags The block's {@link LootStorage#getFlags} flags.
+     */
+    private boolean isProtectedLootContainer(Block block, LocationKey location, byte flags) {
+        if ((flags & LootStorage.FLAG_PLACED) != 0) {
             return false;
         }
+        ContainerInspector.Inspection container = inspector.inspect(block, location);
+        if (!container.isContainer()) {
+            return false;
+        }
+        if (container.hasLootTable()) {
+            return true;
+        }
+        return (flags & LootStorage.FLAG_CAPTURED) != 0;
+    }
 
-        BlockState state = block.getState();
-        if (!(state instanceof Container)) {
+    private boolean isProtectedLootContainer(Block block) {
+        if (!config.getEnabledContainerTypes().contains(block.getType())) {
             return false;
         }
 
-        Location primaryLocation = LocationUtil.getPrimaryLocation(block);
+        LocationKey primaryLocation = data.keyOf(LocationUtil.getPrimaryLocation(block));
 
         // A container is NOT a loot container if the player placed it. This check is crucial.
-        // --- THIS IS THE FIX --- Removed the .join() call
+        // It is an in-memory lookup, so do it before touching the block entity.
         if (data.isPlayerPlaced(primaryLocation)) {
             return false;
         }
 
+        ContainerInspector.Inspection container = inspector.inspect(block, primaryLocation);
+        if (!container.isContainer()) {
+            return false;
+        }
+
         // It's a loot container if it has a loot table...
-        boolean hasLootTable = state instanceof Lootable lootable && lootable.getLootTable() != null;
-        if (hasLootTable) {
+        if (container.hasLootTable()) {
             return true;
         }
 
@@ -0,0 +1,106 @@
+package net.smaa.uniloot.managers;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of read-only connections shared by every thread that reads loot data.
+ * A JDBC connection must not be used by two threads at once, and on region-threaded servers
+ * chests are opened from many threads in parallel, so each read borrows a connection for its duration.
+ * With the database in WAL mode these reads never wait for the writer.
+ */
+public class ReadConnectionPool implements AutoCloseable {
+
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 5;
+
+    private final List<CachedConnection> connections = new ArrayList<>();
+    private final BlockingQueue<CachedConnection> idle;
+
+    public ReadConnectionPool(String url, int size) throws SQLException {
+        this.idle = new ArrayBlockingQueue<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                Connection connection = DriverManager.getConnection(url);
+                CachedConnection cached = new CachedConnection(connection);
+                connections.add(cached);
+                SQLiteManager.applyPragmas(connection);
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("PRAGMA query_only = ON");
+                }
+                idle.add(cached);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting if all of them are in use. Close the lease to give it back.
+     * @throws SQLException If no connection became free in time.
+     */
+    public Lease acquire() throws SQLException {
+        try {
+            CachedConnection connection = idle.poll(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a free database connection.");
+            }
+            return new Lease(connection);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+    }
+
+    public int getSize() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+        for (CachedConnection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                failure = e;
+            }
+        }
+        connections.clear();
+        idle.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public final class Lease implements AutoCloseable {
+        private CachedConnection connection;
+
+        private Lease(CachedConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @see CachedConnection#prepare(String)
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return connection.prepare(sql);
+        }
+
+        @Override
+        public void close() {
+            if (connection != null) {
+                idle.offer(connection);
+                connection = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.smaa.uniloot.managers;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import net.smaa.uniloot.UniLoot;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the database from growing forever by deleting player records that can no longer matter:
+ * records whose loot cooldown ran out, which the next open replaces anyway, and optionally every record
+ * of players who have not joined for a long time. Also records when players were last seen.
+ * <p>
+ * Each run deletes in small batches on the write-behind thread, letting queued writes through between
+ * batches, and finishes by returning freed pages to the file system.
+ */
+public class RecordCleaner implements Listener {
+
+    // 4096 pages of 4 KiB, so one run never spends long shrinking the file.
+    private static final int MAX_VACUUM_PAGES = 4096;
+
+    private final UniLoot plugin;
+    private final ConfigManager config;
+    private final SQLiteManager sqliteManager;
+    private final WriteBehindQueue writeQueue;
+    private ScheduledTask timer;
+
+    public RecordCleaner(UniLoot plugin, ConfigManager configManager, SQLiteManager sqliteManager, WriteBehindQueue writeQueue) {
+        this.plugin = plugin;
+        this.config = configManager;
+        this.sqliteManager = sqliteManager;
+        this.writeQueue = writeQueue;
+    }
+
+    /**
+     * Starts the periodic cleanup. Player activity is recorded either way, as long as this is registered as a listener.
+     */
+    public void start() {
+        long interval = config.getCleanupIntervalMinutes();
+        timer = plugin.getServer().getAsyncScheduler().runAtFixedRate(plugin, task -> run(), interval, interval, TimeUnit.MINUTES);
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        writeQueue.enqueue(PendingWrite.playerSeen(event.getPlayer().getUniqueId()));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        writeQueue.enqueue(PendingWrite.playerSeen(event.getPlayer().getUniqueId()));
+    }
+
+    private void run() {
+        if (!config.isCleanupEnabled()) return;
+
+        long now = System.currentTimeMillis();
+        // Without loot refresh a record never expires, it is what keeps the container looted.
+        long expiredBefore = config.isRefreshEnabled() ? now - config.getRefreshIntervalMillis() : -1;
+        int inactiveDays = config.getCleanupInactivePlayerDays();
+        long inactiveBefore = inactiveDays > 0 ? now - TimeUnit.DAYS.toMillis(inactiveDays) : -1;
+        Run run = new Run(expiredBefore, inactiveBefore, config.getCleanupBatchSize(), System.nanoTime());
+        writeQueue.runAfterFlush(() -> step(run));
+    }
+
+    /**
+     * Deletes one batch of each kind and queues the next step behind any writes that came in meanwhile.
+     */
+    private void step(Run run) {
+        try {
+            boolean more = false;
+            if (run.expiredBefore > 0) {
+                int deleted = sqliteManager.deleteRecordsLootedBefore(run.expiredBefore, run.batchSize);
+                run.expired += deleted;
+                more = deleted == run.batchSize;
+            }
+            if (run.inactiveBefore > 0) {
+                int deleted = sqliteManager.deleteRecordsOfPlayersSeenBefore(run.inactiveBefore, run.batchSize);
+                run.inactive += deleted;
+                more |= deleted == run.batchSize;
+            }
+            if (more) {
+                writeQueue.runAfterFlush(() -> step(run));
+                return;
+            }
+
+            int freedPages = sqliteManager.reclaimFreePages(MAX_VACUUM_PAGES);
+            if (run.expired > 0 || run.inactive > 0 || freedPages > 0 || config.isDebugMode()) {
+                plugin.getLogger().info("Database cleanup deleted " + run.expired + " expired loot records and " + run.inactive
+                        + " records of inactive players, and freed " + freedPages + " pages in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - run.startNanos) + "ms.");
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().severe("Database error during cleanup: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Progress of one cleanup run. Only touched on the write-behind thread.
+     */
+    private static final class Run {
+        private final long expiredBefore;
+        private final long inactiveBefore;
+        private final int batchSize;
+        private final long startNanos;
+        private int expired;
+        private int inactive;
+
+        private Run(long expiredBefore, long inactiveBefore, int batchSize, long startNanos) {
+            this.expiredBefore = expiredBefore;
+            this.inactiveBefore = inactiveBefore;
+            this.batchSize = batchSize;
+            this.startNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LatencyHistogram;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds each online player's own loot records for the chunks around them, so the first container they open
+ * after joining or walking somewhere new is answered from memory.
+ * <p>
+ * Complements {@link ChunkDataCache}: that one holds every player's records of a loaded chunk, but only once
+ * the whole chunk has been read, and not at all when it is disabled. Chunks it already has are skipped here.
+ * Like it, this cache is write-through, reads through the read connection pool without waiting for a flush and
+ * applies the writes still queued when a load starts on top of what it reads.
+ */
+public class RecordPrefetcher implements Listener {
+
+    private final UniLoot plugin;
+    private final ConfigManager config;
+    private final SQLiteManager sqliteManager;
+    private final WriteBehindQueue writeQueue;
+    private final ChunkDataCache chunkCache;
+    private final WorldRegistry worldRegistry;
+    private final LatencyHistogram eventTimer;
+    private final Map<UUID, PlayerRecords> players = new ConcurrentHashMap<>();
+
+    public RecordPrefetcher(UniLoot plugin, ConfigManager configManager, SQLiteManager sqliteManager, WriteBehindQueue writeQueue, ChunkDataCache chunkCache, WorldRegistry worldRegistry) {
+        this.plugin = plugin;
+        this.config = configManager;
+        this.sqliteManager = sqliteManager;
+        this.writeQueue = writeQueue;
+        this.chunkCache = chunkCache;
+        this.worldRegistry = worldRegistry;
+        this.eventTimer = plugin.getMetrics().timer(MetricsManager.PREFETCH_EVENTS);
+    }
+
+    /**
+     * Prefetches for every player that was already online before the plugin was enabled.
+     */
+    public void prefetchForOnlinePlayers() {
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            // Their own scheduler, as their chunks belong to their region.
+            player.getScheduler().run(plugin, task -> prefetchAround(player.getUniqueId(), player.getLocation()), null);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        long start = System.nanoTime();
+        prefetchAround(event.getPlayer().getUniqueId(), event.getPlayer().getLocation());
+        eventTimer.recordSince(start);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        PlayerRecords removed = players.remove(event.getPlayer().getUniqueId());
+        if (removed != null) {
+            synchronized (removed) {
+                removed.evictAll();
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+        if (from.getBlockX() >> 4 == to.getBlockX() >> 4 && from.getBlockZ() >> 4 == to.getBlockZ() >> 4 && from.getWorld() == to.getWorld()) return;
+        // Only moves into another chunk are timed, the check above is far cheaper than reading the clock.
+        long start = System.nanoTime();
+        prefetchAround(event.getPlayer().getUniqueId(), to);
+        eventTimer.recordSince(start);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        onPlayerMove(event);
+    }
+
+    // --- Lookups ---
+
+    /**
+     * @param location Any location inside the chunk.
+     * @return The player's fully loaded records of the chunk, or null if they are not cached (yet).
+     */
+    public ChunkRecords getReady(LocationKey location, UUID playerUUID) {
+        PlayerRecords records = players.get(playerUUID);
+        if (records == null) return null;
+        ChunkRecords chunk = records.chunks.get(location.getChunkKey());
+        return chunk != null && chunk.ready && records.worldId == location.getWorldId() ? chunk : null;
+    }
+
+    // --- Write-through ---
+
+    public void onPlayerRecordWritten(LocationKey location, UUID playerUUID, PlayerLootRecord record) {
+        ChunkRecords chunk = get(location, playerUUID);
+        if (chunk == null) return;
+        synchronized (chunk) {
+            chunk.records.put(location.getPosition(), record);
+        }
+    }
+
+    public void onPlayerRecordContentsWritten(LocationKey location, UUID playerUUID, ItemStack[] contents) {
+        ChunkRecords chunk = get(location, playerUUID);
+        if (chunk == null) return;
+        synchronized (chunk) {
+            PlayerLootRecord existing = chunk.records.get(location.getPosition());
+            if (existing != null) {
+                chunk.records.put(location.getPosition(), new PlayerLootRecord(existing.getTimestamp(), contents));
+                return;
+            }
+            if (chunk.ready) return;
+        }
+        // The stored timestamp is not loaded yet, so let the database and queue answer for this chunk instead.
+        PlayerRecords records = players.get(playerUUID);
+        if (records != null) {
+            synchronized (records) {
+                records.evict(location.getChunkKey());
+            }
+        }
+    }
+
+    public void onLocationCleared(LocationKey location) {
+        for (PlayerRecords records : players.values()) {
+            if (records.worldId != location.getWorldId()) continue;
+            ChunkRecords chunk = records.chunks.get(location.getChunkKey());
+            if (chunk == null) continue;
+            synchronized (chunk) {
+                chunk.records.remove(location.getPosition());
+                if (!chunk.ready) {
+                    chunk.clearedWhileLoading.add(location.getPosition());
+                }
+            }
+        }
+    }
+
+    private ChunkRecords get(LocationKey location, UUID playerUUID) {
+        PlayerRecords records = players.get(playerUUID);
+        if (records == null || records.worldId != location.getWorldId()) return null;
+        return records.chunks.get(location.getChunkKey());
+    }
+
+    // --- Loading ---
+
+    private void prefetchAround(UUID playerUUID, Location location) {
+        int radius = config.getPrefetchRadius();
+        if (radius == 0 || location.getWorld() == null) return;
+        int worldId = worldRegistry.idOf(location.getWorld());
+        int centerX = location.getBlockX() >> 4;
+        int centerZ = location.getBlockZ() >> 4;
+
+        PlayerRecords records = players.computeIfAbsent(playerUUID, uuid -> new PlayerRecords());
+        List<ChunkRecords> toLoad = new ArrayList<>();
+        synchronized (records) {
+            if (records.worldId != worldId) {
+                records.evictAll();
+                records.worldId = worldId;
+            }
+            // Keep a one chunk margin, so walking back and forth over a chunk border does not reload anything.
+            records.evictOutside(centerX, centerZ, radius + 1);
+            for (int chunkX = centerX - radius; chunkX <= centerX + radius; chunkX++) {
+                for (int chunkZ = centerZ - radius; chunkZ <= centerZ + radius; chunkZ++) {
+                    long chunkKey = LocationKey.chunkKey(chunkX, chunkZ);
+                    if (records.chunks.containsKey(chunkKey)) continue;
+                    if (chunkCache.getReady(new LocationKey(worldId, LocationKey.chunkMinPosition(chunkX, chunkZ))) != null) continue;
+                    ChunkRecords chunk = new ChunkRecords(chunkX, chunkZ);
+                    records.chunks.put(chunkKey, chunk);
+                    toLoad.add(chunk);
+                }
+            }
+        }
+        if (toLoad.isEmpty()) return;
+
+        plugin.getDataManager().runAsync(() -> load(playerUUID, records, worldId, toLoad, centerX, centerZ));
+    }
+
+    /**
+     * Loads the queued chunks, one query per run of chunks in a column. Runs on the lookup executor.
+     */
+    private void load(UUID playerUUID, PlayerRecords records, int worldId, List<ChunkRecords> toLoad, int centerX, int centerZ) {
+        if (players.get(playerUUID) != records) return;
+        // Writes made from now on go straight into the chunk records and take precedence over what is loaded here.
+        // Writes queued before that are taken from the queue, copied before the rows are read so none is missed.
+        Set<Long> chunkKeys = new HashSet<>();
+        for (ChunkRecords chunk : toLoad) {
+            chunkKeys.add(LocationKey.chunkKey(chunk.chunkX, chunk.chunkZ));
+        }
+        Map<PendingWrite.Key, PendingWrite> pending = writeQueue.snapshot(location -> location.getWorldId() == worldId && chunkKeys.contains(location.getChunkKey()));
+        Map<Long, PlayerLootRecord> queued = new HashMap<>();
+        for (PendingWrite write : pending.values()) {
+            if (write.getType() == PendingWrite.Type.PLAYER_RECORD && write.getPlayerUUID().equals(playerUUID)) {
+                queued.put(write.getLocationKey().getPosition(), new PlayerLootRecord(write.getTimestamp(), write.getContents()));
+            }
+        }
+
+        int loaded = 0;
+        int index = 0;
+        while (index < toLoad.size()) {
+            // Chunks were queued column by column with z ascending, so consecutive ones often form a run.
+            int end = index + 1;
+            while (end < toLoad.size() && toLoad.get(end).chunkX == toLoad.get(index).chunkX
+                    && toLoad.get(end).chunkZ == toLoad.get(end - 1).chunkZ + 1) {
+                end++;
+            }
+            List<ChunkRecords> run = toLoad.subList(index, end);
+            index = end;
+            if (run.stream().allMatch(chunk -> chunk.evicted)) continue;
+
+            Map<Long, PlayerLootRecord> rows = sqliteManager.getPlayerRecordsInColumn(worldId, run.get(0).chunkX, run.get(0).chunkZ, run.get(run.size() - 1).chunkZ, playerUUID);
+            if (rows == null) {
+                synchronized (records) {
+                    run.forEach(chunk -> records.evict(LocationKey.chunkKey(chunk.chunkX, chunk.chunkZ)));
+                }
+                continue;
+            }
+            for (ChunkRecords chunk : run) {
+                long chunkKey = LocationKey.chunkKey(chunk.chunkX, chunk.chunkZ);
+                synchronized (chunk) {
+                    if (chunk.evicted) continue;
+                    for (Map.Entry<Long, PlayerLootRecord> entry : rows.entrySet()) {
+                        long position = entry.getKey();
+                        if (position >> 20 != chunkKey || chunk.clearedWhileLoading.contains(position)) continue;
+                        PlayerLootRecord record = WriteBehindQueue.resolvePlayerRecord(pending, new LocationKey(worldId, position), playerUUID, entry.getValue());
+                        if (record != null) {
+                            chunk.records.putIfAbsent(position, record);
+                        }
+                    }
+                    for (Map.Entry<Long, PlayerLootRecord> entry : queued.entrySet()) {
+                        long position = entry.getKey();
+                        if (position >> 20 != chunkKey || chunk.clearedWhileLoading.contains(position)) continue;
+                        chunk.records.putIfAbsent(position, entry.getValue());
+                    }
+                    chunk.clearedWhileLoading.clear();
+                    chunk.ready = true;
+                    loaded += chunk.records.size();
+                }
+            }
+        }
+
+        synchronized (records) {
+            records.enforceLimit(config.getPrefetchMaxRecords(), centerX, centerZ);
+        }
+        if (config.isDebugMode()) {
+            plugin.getLogger().info("Prefetched " + loaded + " loot records in " + toLoad.size() + " chunks for player " + playerUUID);
+        }
+    }
+
+    /**
+     * One player's prefetched chunks in the world they are in. Membership changes are guarded by the instance.
+     */
+    private static final class PlayerRecords {
+        private final Map<Long, ChunkRecords> chunks = new ConcurrentHashMap<>();
+        private volatile int worldId = -1;
+
+        private void evict(long chunkKey) {
+            ChunkRecords removed = chunks.remove(chunkKey);
+            if (removed != null) {
+                removed.evicted = true;
+            }
+        }
+
+        private void evictAll() {
+            for (long chunkKey : List.copyOf(chunks.keySet())) {
+                evict(chunkKey);
+            }
+        }
+
+        private void evictOutside(int centerX, int centerZ, int radius) {
+            Iterator<ChunkRecords> iterator = chunks.values().iterator();
+            while (iterator.hasNext()) {
+                ChunkRecords chunk = iterator.next();
+                if (distance(chunk, centerX, centerZ) > radius) {
+                    iterator.remove();
+                    chunk.evicted = true;
+                }
+            }
+        }
+
+        /**
+         * Drops the chunks farthest from the player until at most {@code maxRecords} records are left.
+         */
+        private void enforceLimit(int maxRecords, int centerX, int centerZ) {
+            int total = 0;
+            for (ChunkRecords chunk : chunks.values()) {
+                total += chunk.records.size();
+            }
+            while (total > maxRecords && !chunks.isEmpty()) {
+                ChunkRecords farthest = null;
+                for (ChunkRecords chunk : chunks.values()) {
+                    if (farthest == null || distance(chunk, centerX, centerZ) > distance(farthest, centerX, centerZ)) {
+                        farthest = chunk;
+                    }
+                }
+                total -= farthest.records.size();
+                evict(LocationKey.chunkKey(farthest.chunkX, farthest.chunkZ));
+            }
+        }
+
+        private static int distance(ChunkRecords chunk, int centerX, int centerZ) {
+            return Math.max(Math.abs(chunk.chunkX - centerX), Math.abs(chunk.chunkZ - centerZ));
+        }
+    }
+
+    /**
+     * One player's records in one chunk, keyed by packed block position.
+     */
+    public static class ChunkRecords {
+        private final int chunkX;
+        private final int chunkZ;
+        private final Map<Long, PlayerLootRecord> records = new ConcurrentHashMap<>();
+        private final Set<Long> clearedWhileLoading = ConcurrentHashMap.newKeySet();
+        private volatile boolean ready;
+        private volatile boolean evicted;
+
+        private ChunkRecords(int chunkX, int chunkZ) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+
+        /**
+         * @return The record, or null if the player has none here.
+         */
+        public PlayerLootRecord getPlayerRecord(LocationKey location) {
+            return records.get(location.getPosition());
+        }
+    }
+}
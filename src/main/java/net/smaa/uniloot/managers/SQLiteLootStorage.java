@@ -0,0 +1,189 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Stores container data in the SQLite database.
+ * <p>
+ * Writes are queued and persisted in the background. Reads are answered from the chunk cache
+ * when the chunk is loaded; otherwise they check the queue first so callers always see their
+ * own writes, even before they reach the database.
+ */
+public class SQLiteLootStorage implements LootStorage {
+
+    private final UniLoot plugin;
+    private final SQLiteManager sqliteManager;
+    private final WriteBehindQueue writeQueue;
+    private final ChunkDataCache chunkCache;
+    private final RecordPrefetcher prefetcher;
+    // Authoritative in-memory copies of player_placed_blocks and captured_loot, so the
+    // per-click and per-explosion checks never have to reach the database.
+    private final LocationIndex playerPlacedIndex = new LocationIndex();
+    private final LocationIndex capturedLootIndex = new LocationIndex();
+
+    public SQLiteLootStorage(UniLoot plugin, SQLiteManager sqliteManager, WriteBehindQueue writeQueue, ChunkDataCache chunkCache, RecordPrefetcher prefetcher) {
+        this.plugin = plugin;
+        this.sqliteManager = sqliteManager;
+        this.writeQueue = writeQueue;
+        this.chunkCache = chunkCache;
+        this.prefetcher = prefetcher;
+    }
+
+    @Override
+    public String getName() {
+        return ConfigManager.STORAGE_BACKEND_SQLITE;
+    }
+
+    /**
+     * Loads the player-placed and captured-loot indexes.
+     */
+    @Override
+    public void load() {
+        int placed = playerPlacedIndex.load(sqliteManager.getAllLocationKeys("player_placed_blocks"));
+        int captured = capturedLootIndex.load(sqliteManager.getAllLocationKeys("captured_loot"));
+        plugin.getLogger().info("Indexed " + placed + " player-placed containers and " + captured + " captured loot containers.");
+    }
+
+    // --- Player Loot Record Methods ---
+
+    @Override
+    public PlayerLootRecord getPlayerRecord(LocationKey location, UUID playerUUID) {
+        ChunkDataCache.ChunkData cached = chunkCache.getReady(location);
+        if (cached != null) {
+            return cached.getPlayerRecord(location, playerUUID);
+        }
+        RecordPrefetcher.ChunkRecords prefetched = prefetcher.getReady(location, playerUUID);
+        if (prefetched != null) {
+            return prefetched.getPlayerRecord(location);
+        }
+
+        return writeQueue.readPlayerRecord(location, playerUUID, () -> sqliteManager.getPlayerRecord(location, playerUUID));
+    }
+
+    @Override
+    public PlayerLootRecord getCachedPlayerRecord(LocationKey location, UUID playerUUID) {
+        ChunkDataCache.ChunkData cached = chunkCache.getReady(location);
+        if (cached != null) {
+            return cached.getPlayerRecord(location, playerUUID);
+        }
+        RecordPrefetcher.ChunkRecords prefetched = prefetcher.getReady(location, playerUUID);
+        return prefetched == null ? null : prefetched.getPlayerRecord(location);
+    }
+
+    @Override
+    public boolean isPlayerRecordCached(LocationKey location, UUID playerUUID) {
+        return chunkCache.getReady(location) != null || prefetcher.getReady(location, playerUUID) != null;
+    }
+
+    @Override
+    public void setPlayerRecord(LocationKey location, UUID playerUUID, PlayerLootRecord record) {
+        PendingWrite write = PendingWrite.playerRecord(location, playerUUID, record);
+        PlayerLootRecord written = new PlayerLootRecord(write.getTimestamp(), write.getContentsUnsafe());
+        chunkCache.onPlayerRecordWritten(location, playerUUID, written);
+        prefetcher.onPlayerRecordWritten(location, playerUUID, written);
+        writeQueue.enqueue(write);
+    }
+
+    @Override
+    public void updatePlayerRecordContents(LocationKey location, UUID playerUUID, ItemStack[] contents) {
+        PendingWrite write = PendingWrite.playerRecordContents(location, playerUUID, contents);
+        chunkCache.onPlayerRecordContentsWritten(location, playerUUID, write.getContentsUnsafe());
+        prefetcher.onPlayerRecordContentsWritten(location, playerUUID, write.getContentsUnsafe());
+        writeQueue.enqueue(write);
+    }
+
+    // --- Captured Loot Template Methods ---
+
+    @Override
+    public boolean hasCapturedLoot(LocationKey location) {
+        return capturedLootIndex.contains(location);
+    }
+
+    @Override
+    public void captureLoot(LocationKey location, ItemStack[] items) {
+        PendingWrite write = PendingWrite.captureLoot(location, items);
+        capturedLootIndex.add(location);
+        writeQueue.enqueue(write);
+    }
+
+    @Override
+    public ItemStack[] getCapturedLoot(LocationKey location) {
+        if (!hasCapturedLoot(location)) {
+            return null;
+        }
+        ChunkDataCache.ChunkData cached = chunkCache.getReady(location);
+        Long templateId = cached == null ? null : cached.getCapturedTemplateId(location);
+        if (templateId != null) {
+            // Stored templates always win and the chunk cache drops the id when the location is cleared.
+            ItemStack[] template = sqliteManager.getTemplate(templateId);
+            if (template != null) return template;
+        }
+        return writeQueue.readCapturedLoot(location, () -> sqliteManager.getCapturedLoot(location));
+    }
+
+    @Override
+    public long getTemplateCacheBytes() {
+        return sqliteManager.getTemplateCacheBytes();
+    }
+
+    // --- Player Placed Block Methods ---
+
+    @Override
+    public void addPlayerPlaced(LocationKey location) {
+        playerPlacedIndex.add(location);
+        writeQueue.enqueue(PendingWrite.addPlayerPlaced(location));
+    }
+
+    @Override
+    public void removePlayerPlaced(LocationKey location) {
+        playerPlacedIndex.remove(location);
+        writeQueue.enqueue(PendingWrite.removePlayerPlaced(location));
+    }
+
+    @Override
+    public boolean isPlayerPlaced(LocationKey location) {
+        return playerPlacedIndex.contains(location);
+    }
+
+    @Override
+    public void getFlags(int worldId, long[] positions, int count, byte[] flags) {
+        Arrays.fill(flags, 0, count, (byte) 0);
+        playerPlacedIndex.containsAll(worldId, positions, count, flags, FLAG_PLACED);
+        capturedLootIndex.containsAll(worldId, positions, count, flags, FLAG_CAPTURED);
+    }
+
+    // --- Data Clearing ---
+
+    @Override
+    public void clearAllDataForLocation(LocationKey location) {
+        playerPlacedIndex.remove(location);
+        capturedLootIndex.remove(location);
+        chunkCache.onLocationCleared(location);
+        prefetcher.onLocationCleared(location);
+        writeQueue.enqueue(PendingWrite.clearLocation(location));
+    }
+
+    @Override
+    public int getPendingWriteCount() {
+        return writeQueue.getQueueDepth();
+    }
+
+    // --- Export ---
+
+    @Override
+    public void export(LootVisitor visitor) {
+        try {
+            writeQueue.awaitFlush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        sqliteManager.exportTo(visitor);
+    }
+}
@@ -1,31 +1,143 @@
 package net.smaa.uniloot.managers;
 
 import net.smaa.uniloot.UniLoot;
-import net.smaa.uniloot.utils.PlayerLootRecord;
+import net.smaa.uniloot.utils.BinaryItemStackCodec;
+import net.smaa.uniloot.utils.ItemStackCodec;
+import net.smaa.uniloot.utils.ItemStackDelta;
+import net.smaa.uniloot.utils.LatencyHistogram;
+import net.smaa.uniloot.utils.LegacyItemStackCodec;
+import net.smaa.uniloot.utils.LocationKey;
 import net.smaa.uniloot.utils.LocationUtil;
-import net.smaa.uniloot.utils.SerializationUtil;
-import org.bukkit.Location;
+import net.smaa.uniloot.utils.PlayerLootRecord;
 import org.bukkit.inventory.ItemStack;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class SQLiteManager {
 
     private final UniLoot plugin;
+    // Reads borrow a pooled read-only connection on the calling thread, writes only ever run on the write-behind thread.
+    // The remaining connection is used for schema setup and world registration.
+    private static final int READ_POOL_SIZE = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
     private Connection connection;
+    private Connection writeConnection;
+    // The writer's prepared statements, kept for the lifetime of the connection.
+    private CachedConnection writeStatements;
+    private ReadConnectionPool readPool;
+    // New contents are always written with itemCodec, rows from older versions are still read with legacyItemCodec.
+    private final ItemStackCodec itemCodec;
+    private final ItemStackCodec legacyItemCodec;
+    private final LatencyHistogram playerRecordTimer;
+    private final LatencyHistogram recordContentsTimer;
+    private final LatencyHistogram capturedLootTimer;
+    private final LatencyHistogram elytraTimer;
+    private final LatencyHistogram chunkLoadTimer;
+    private final LatencyHistogram prefetchTimer;
+    private final LatencyHistogram writeBatchTimer;
+    // Templates never change once stored, so decoded copies can be kept until the template is deleted.
+    private final CapturedLootCache<Long> templateCache;
+
+    private static final String[] LOCATION_TABLES = { "player_data", "captured_loot", "player_placed_blocks" };
+
+    private static final String[] CLEAR_LOCATION_SQL = {
+            "DELETE FROM player_data WHERE world_id = ? AND position = ?",
+            "DELETE FROM captured_loot WHERE world_id = ? AND position = ?",
+            "DELETE FROM player_placed_blocks WHERE world_id = ? AND position = ?",
+            "DELETE FROM elytra_data WHERE player_uuid IN (SELECT player_uuid FROM player_data WHERE world_id = ? AND position = ?)"
+    };
+
+    // --- Current table layouts (schema version 2) ---
+
+    private static final String CREATE_WORLDS_TABLE = "CREATE TABLE IF NOT EXISTS worlds (" +
+            "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "name TEXT NOT NULL UNIQUE" +
+            ");";
+
+    private static final String CREATE_PLAYER_DATA_TABLE = "CREATE TABLE IF NOT EXISTS player_data (" +
+            "world_id INTEGER NOT NULL," +
+            "position INTEGER NOT NULL," +
+            "player_uuid TEXT NOT NULL," +
+            "timestamp BIGINT NOT NULL," +
+            "contents BLOB," +
+            "PRIMARY KEY (world_id, position, player_uuid)" +
+            ");";
+
+    private static final String CREATE_CAPTURED_LOOT_TABLE = "CREATE TABLE IF NOT EXISTS captured_loot (" +
+            "world_id INTEGER NOT NULL," +
+            "position INTEGER NOT NULL," +
+            "contents BLOB NOT NULL," +
+            "PRIMARY KEY (world_id, position)" +
+            ");";
+
+    private static final String CREATE_PLAYER_PLACED_TABLE = "CREATE TABLE IF NOT EXISTS player_placed_blocks (" +
+            "world_id INTEGER NOT NULL," +
+            "position INTEGER NOT NULL," +
+            "PRIMARY KEY (world_id, position)" +
+            ") WITHOUT ROWID;";
+
+    // --- Table layouts added in schema version 3 ---
+
+    private static final String CREATE_LOOT_TEMPLATES_TABLE = "CREATE TABLE IF NOT EXISTS loot_templates (" +
+            "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "hash BLOB NOT NULL UNIQUE," +
+            "contents BLOB NOT NULL" +
+            ");";
+
+    private static final String CREATE_TEMPLATED_CAPTURED_LOOT_TABLE = "CREATE TABLE IF NOT EXISTS captured_loot (" +
+            "world_id INTEGER NOT NULL," +
+            "position INTEGER NOT NULL," +
+            "template_id INTEGER NOT NULL," +
+            "PRIMARY KEY (world_id, position)" +
+            ") WITHOUT ROWID;";
+
+    // --- Table layouts added in schema version 4 ---
+
+    private static final String CREATE_PLAYER_ACTIVITY_TABLE = "CREATE TABLE IF NOT EXISTS player_activity (" +
+            "player_uuid TEXT PRIMARY KEY," +
+            "last_seen BIGINT NOT NULL" +
+            ");";
+
+    private static final String INSERT_TEMPLATE_SQL = "INSERT OR IGNORE INTO loot_templates (hash, contents) VALUES (?, ?)";
+    private static final String SELECT_TEMPLATE_ID_SQL = "SELECT id FROM loot_templates WHERE hash = ?";
+    private static final String SELECT_TEMPLATE_SQL = "SELECT contents FROM loot_templates WHERE id = ?";
+    private static final String SELECT_CAPTURED_TEMPLATE_ID_SQL = "SELECT template_id FROM captured_loot WHERE world_id = ? AND position = ?";
 
     public SQLiteManager(UniLoot plugin) {
         this.plugin = plugin;
+        MetricsManager metrics = plugin.getMetrics();
+        this.itemCodec = metrics.timed(new BinaryItemStackCodec());
+        this.legacyItemCodec = metrics.timed(new LegacyItemStackCodec());
+        this.playerRecordTimer = metrics.timer(MetricsManager.DB_PLAYER_RECORD);
+        this.recordContentsTimer = metrics.timer(MetricsManager.DB_RECORD_CONTENTS);
+        this.capturedLootTimer = metrics.timer(MetricsManager.DB_CAPTURED_LOOT);
+        this.elytraTimer = metrics.timer(MetricsManager.DB_ELYTRA);
+        this.chunkLoadTimer = metrics.timer(MetricsManager.DB_CHUNK_LOAD);
+        this.prefetchTimer = metrics.timer(MetricsManager.DB_PREFETCH);
+        this.writeBatchTimer = metrics.timer(MetricsManager.DB_WRITE_BATCH);
+        this.templateCache = new CapturedLootCache<>(plugin.getConfigManager(), metrics);
     }
 
+    /**
+     * @throws IllegalStateException If the database cannot be opened or its schema cannot be brought up to date.
+     * Every query assumes the current schema, so the plugin must not enable without it.
+     */
     public void connect() {
         File dataFolder = plugin.getDataFolder();
         if (!dataFolder.exists()) {
@@ -38,19 +150,40 @@ public class SQLiteManager {
             }
             String url = "jdbc:sqlite:" + dbFile.getPath();
             connection = DriverManager.getConnection(url);
+            applyPragmas(connection);
+            // WAL lets readers keep reading while the writer commits. The mode is stored in the database file.
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("PRAGMA journal_mode = WAL");
+            }
+            writeConnection = DriverManager.getConnection(url);
+            applyPragmas(writeConnection);
+            writeStatements = new CachedConnection(writeConnection);
             plugin.getLogger().info("Successfully connected to the SQLite database.");
             initializeDatabase();
+            // Opened after the migrations, so no cached read statement can refer to a table they replaced.
+            readPool = new ReadConnectionPool(url, READ_POOL_SIZE);
         } catch (SQLException | IOException e) {
             plugin.getLogger().severe("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
             plugin.getLogger().severe("!! FAILED TO CONNECT TO THE SQLITE DATABASE !!");
             plugin.getLogger().severe("!! This is a critical error. The plugin will not function. !!");
             plugin.getLogger().severe("!! Error: " + e.getMessage());
             plugin.getLogger().severe("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            throw new IllegalStateException("Could not open the SQLite database", e);
         }
     }
 
     public void disconnect() {
         try {
+            if (readPool != null) {
+                readPool.close();
+            }
+            if (writeConnection != null && !writeConnection.isClosed()) {
+                // Fold the WAL back into the database file so it does not linger while the server is stopped.
+                try (Statement stmt = writeConnection.createStatement()) {
+                    stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+                }
+                writeStatements.close();
+            }
             if (connection != null && !connection.isClosed()) {
                 connection.close();
             }
@@ -59,7 +192,23 @@ public class SQLiteManager {
         }
     }
 
-    private void initializeDatabase() {
+    /**
+     * Tunes a connection. With WAL, synchronous = NORMAL only syncs on checkpoints: a power loss can drop
+     * the last commits but never corrupts the database.
+     */
+    static void applyPragmas(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            // Wait briefly for a lock instead of failing with SQLITE_BUSY.
+            stmt.execute("PRAGMA busy_timeout = 5000");
+            stmt.execute("PRAGMA synchronous = NORMAL");
+            stmt.execute("PRAGMA temp_store = MEMORY");
+            // 8 MiB page cache per connection; reads are mostly served from the memory map, which is shared through the OS.
+            stmt.execute("PRAGMA cache_size = -8192");
+            stmt.execute("PRAGMA mmap_size = 268435456");
+        }
+    }
+
+    private void initializeDatabase() throws SQLException {
         String createPlayerDataTable = "CREATE TABLE IF NOT EXISTS player_data (" +
                 "location_key TEXT NOT NULL," +
                 "player_uuid TEXT NOT NULL," +
@@ -88,207 +237,986 @@ public class SQLiteManager {
             stmt.execute(createPlayerPlacedTable);
             stmt.execute(createElytraDataTable);
             plugin.getLogger().info("Database tables verified and ready.");
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Could not create database tables: " + e.getMessage());
         }
+        migrateSchema();
     }
 
-    public PlayerLootRecord getPlayerRecord(Location location, UUID playerUUID) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "SELECT timestamp, contents FROM player_data WHERE location_key = ? AND player_uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, locationKey);
-            pstmt.setString(2, playerUUID.toString());
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                long timestamp = rs.getLong("timestamp");
-                String contentsBase64 = rs.getString("contents");
-                ItemStack[] contents = SerializationUtil.itemStackArrayFromBase64(contentsBase64);
-                return new PlayerLootRecord(timestamp, contents);
+    // --- Schema Migrations ---
+    // The tables above are always created in their original layout; each migration then
+    // upgrades an existing or freshly created database by one version (tracked in PRAGMA user_version).
+
+    private void migrateSchema() throws SQLException {
+        int version = getSchemaVersion();
+        try {
+            if (version < 1) {
+                migrateToChunkColumns();
             }
-        } catch (SQLException | IOException e) {
-            plugin.getLogger().severe("Database error getting player record: " + e.getMessage());
+            if (version < 2) {
+                migrateToPackedLocationKeys();
+            }
+            if (version < 3) {
+                migrateToLootTemplates();
+            }
+            if (version < 4) {
+                migrateToRecordCleanup();
+            }
+        } catch (SQLException e) {
+            // Each step commits on its own, so the next start resumes from the last completed version.
+            throw new SQLException("Could not migrate the database schema from version " + version + ": " + e.getMessage(), e);
         }
-        return null;
     }
 
-    public void setPlayerRecord(Location location, UUID playerUUID, PlayerLootRecord record) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "INSERT OR REPLACE INTO player_data (location_key, player_uuid, timestamp, contents) VALUES (?, ?, ?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, locationKey);
-            pstmt.setString(2, playerUUID.toString());
-            pstmt.setLong(3, record.getTimestamp());
-            pstmt.setString(4, SerializationUtil.itemStackArrayToBase64(record.getContents()));
-            pstmt.executeUpdate();
+    private int getSchemaVersion() throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Version 1: store the world and chunk coordinates next to every location key so that
+     * all rows of a chunk can be loaded with one indexed query.
+     */
+    private void migrateToChunkColumns() throws SQLException {
+        plugin.getLogger().info("Migrating database to schema version 1 (chunk columns)...");
+        connection.setAutoCommit(false);
+        try {
+            for (String table : LOCATION_TABLES) {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("ALTER TABLE " + table + " ADD COLUMN world TEXT");
+                    stmt.execute("ALTER TABLE " + table + " ADD COLUMN chunk_x INTEGER");
+                    stmt.execute("ALTER TABLE " + table + " ADD COLUMN chunk_z INTEGER");
+                    stmt.execute("CREATE INDEX IF NOT EXISTS idx_" + table + "_chunk ON " + table + " (world, chunk_x, chunk_z)");
+                }
+
+                List<String> locationKeys = new ArrayList<>();
+                try (Statement stmt = connection.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT DISTINCT location_key FROM " + table)) {
+                    while (rs.next()) {
+                        locationKeys.add(rs.getString(1));
+                    }
+                }
+                try (PreparedStatement pstmt = connection.prepareStatement("UPDATE " + table + " SET world = ?, chunk_x = ?, chunk_z = ? WHERE location_key = ?")) {
+                    for (String locationKey : locationKeys) {
+                        int[] coordinates = LocationUtil.coordinatesOf(locationKey);
+                        if (coordinates == null) continue;
+                        pstmt.setString(1, LocationUtil.worldNameOf(locationKey));
+                        pstmt.setInt(2, coordinates[0] >> 4);
+                        pstmt.setInt(3, coordinates[2] >> 4);
+                        pstmt.setString(4, locationKey);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                }
+            }
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("PRAGMA user_version = 1");
+            }
+            connection.commit();
         } catch (SQLException e) {
-            plugin.getLogger().severe("Database error setting player record: " + e.getMessage());
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
         }
     }
 
-    public void updatePlayerRecordContents(Location location, UUID playerUUID, ItemStack[] contents) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "UPDATE player_data SET contents = ? WHERE location_key = ? AND player_uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, SerializationUtil.itemStackArrayToBase64(contents));
-            pstmt.setString(2, locationKey);
-            pstmt.setString(3, playerUUID.toString());
-            pstmt.executeUpdate();
+    /**
+     * Version 2: replace the "world;x;y;z" TEXT keys with a world id from the new worlds table plus
+     * the packed {@link LocationKey} position. The chunk columns of version 1 are dropped, since every
+     * chunk is now a contiguous range of positions.
+     */
+    private void migrateToPackedLocationKeys() throws SQLException {
+        plugin.getLogger().info("Migrating database to schema version 2 (packed location keys)...");
+        Map<String, Integer> worldIds = new HashMap<>();
+        int migrated = 0;
+        int skipped = 0;
+        connection.setAutoCommit(false);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(CREATE_WORLDS_TABLE);
+                stmt.execute(CREATE_PLAYER_DATA_TABLE.replace("player_data", "player_data_v2"));
+                stmt.execute(CREATE_CAPTURED_LOOT_TABLE.replace("captured_loot", "captured_loot_v2"));
+                stmt.execute(CREATE_PLAYER_PLACED_TABLE.replace("player_placed_blocks", "player_placed_blocks_v2"));
+            }
+
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT location_key, player_uuid, timestamp, contents FROM player_data");
+                 PreparedStatement insert = connection.prepareStatement("INSERT OR REPLACE INTO player_data_v2 (world_id, position, player_uuid, timestamp, contents) VALUES (?, ?, ?, ?, ?)")) {
+                while (rs.next()) {
+                    LocationKey key = migrateKey(rs.getString("location_key"), worldIds);
+                    if (key == null) {
+                        skipped++;
+                        continue;
+                    }
+                    insert.setInt(1, key.getWorldId());
+                    insert.setLong(2, key.getPosition());
+                    insert.setString(3, rs.getString("player_uuid"));
+                    insert.setLong(4, rs.getLong("timestamp"));
+                    insert.setString(5, rs.getString("contents"));
+                    insert.addBatch();
+                    migrated++;
+                }
+                insert.executeBatch();
+            }
+
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT location_key, contents FROM captured_loot");
+                 PreparedStatement insert = connection.prepareStatement("INSERT OR REPLACE INTO captured_loot_v2 (world_id, position, contents) VALUES (?, ?, ?)")) {
+                while (rs.next()) {
+                    LocationKey key = migrateKey(rs.getString("location_key"), worldIds);
+                    if (key == null) {
+                        skipped++;
+                        continue;
+                    }
+                    insert.setInt(1, key.getWorldId());
+                    insert.setLong(2, key.getPosition());
+                    insert.setString(3, rs.getString("contents"));
+                    insert.addBatch();
+                    migrated++;
+                }
+                insert.executeBatch();
+            }
+
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT location_key FROM player_placed_blocks");
+                 PreparedStatement insert = connection.prepareStatement("INSERT OR IGNORE INTO player_placed_blocks_v2 (world_id, position) VALUES (?, ?)")) {
+                while (rs.next()) {
+                    LocationKey key = migrateKey(rs.getString("location_key"), worldIds);
+                    if (key == null) {
+                        skipped++;
+                        continue;
+                    }
+                    insert.setInt(1, key.getWorldId());
+                    insert.setLong(2, key.getPosition());
+                    insert.addBatch();
+                    migrated++;
+                }
+                insert.executeBatch();
+            }
+
+            try (Statement stmt = connection.createStatement()) {
+                for (String table : LOCATION_TABLES) {
+                    stmt.execute("DROP TABLE " + table);
+                    stmt.execute("ALTER TABLE " + table + "_v2 RENAME TO " + table);
+                }
+                stmt.execute("PRAGMA user_version = 2");
+            }
+            connection.commit();
         } catch (SQLException e) {
-            plugin.getLogger().severe("Database error updating player record contents: " + e.getMessage());
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+
+        if (skipped > 0) {
+            plugin.getLogger().warning("Skipped " + skipped + " rows with unreadable location keys during migration.");
+        }
+        if (migrated > 0) {
+            // Give the space of the old TEXT keys and their indexes back to the file system.
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("VACUUM");
+            }
+            plugin.getLogger().info("Migrated " + migrated + " rows to packed location keys.");
         }
     }
 
-    public boolean hasCapturedLoot(Location location) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "SELECT 1 FROM captured_loot WHERE location_key = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, locationKey);
-            return pstmt.executeQuery().next();
+    /**
+     * Version 3: captured loot moves into the loot_templates table, where identical contents are stored once
+     * under their hash, and player records of captured containers are rewritten as a delta against that template.
+     */
+    private void migrateToLootTemplates() throws SQLException {
+        plugin.getLogger().info("Migrating database to schema version 3 (shared loot templates)...");
+        Map<Long, ItemStack[]> templates = new HashMap<>();
+        int captured = 0;
+        int records = 0;
+        int skipped = 0;
+        connection.setAutoCommit(false);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(CREATE_LOOT_TEMPLATES_TABLE);
+                stmt.execute(CREATE_TEMPLATED_CAPTURED_LOOT_TABLE.replace("captured_loot", "captured_loot_v3"));
+                stmt.execute("ALTER TABLE player_data ADD COLUMN template_id INTEGER");
+            }
+
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT world_id, position, contents FROM captured_loot");
+                 PreparedStatement insertTemplate = connection.prepareStatement(INSERT_TEMPLATE_SQL);
+                 PreparedStatement selectTemplateId = connection.prepareStatement(SELECT_TEMPLATE_ID_SQL);
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO captured_loot_v3 (world_id, position, template_id) VALUES (?, ?, ?)")) {
+                while (rs.next()) {
+                    ItemStack[] contents;
+                    try {
+                        contents = decodeContents(rs.getBytes("contents"));
+                    } catch (IOException e) {
+                        skipped++;
+                        continue;
+                    }
+                    long templateId = storeTemplate(insertTemplate, selectTemplateId, itemCodec.encode(contents));
+                    templates.put(templateId, contents);
+                    insert.setInt(1, rs.getInt("world_id"));
+                    insert.setLong(2, rs.getLong("position"));
+                    insert.setLong(3, templateId);
+                    insert.addBatch();
+                    captured++;
+                }
+                insert.executeBatch();
+            }
+
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT p.rowid, p.contents, c.template_id FROM player_data p " +
+                         "JOIN captured_loot_v3 c ON c.world_id = p.world_id AND c.position = p.position");
+                 PreparedStatement update = connection.prepareStatement("UPDATE player_data SET contents = ?, template_id = ? WHERE rowid = ?")) {
+                while (rs.next()) {
+                    long templateId = rs.getLong(3);
+                    ItemStack[] contents;
+                    try {
+                        contents = decodeContents(rs.getBytes(2));
+                    } catch (IOException e) {
+                        // Left as it is, the row is still read the same way as before.
+                        skipped++;
+                        continue;
+                    }
+                    update.setBytes(1, ItemStackDelta.encode(templates.get(templateId), contents));
+                    update.setLong(2, templateId);
+                    update.setLong(3, rs.getLong(1));
+                    update.addBatch();
+                    records++;
+                }
+                update.executeBatch();
+            }
+
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("DROP TABLE captured_loot");
+                stmt.execute("ALTER TABLE captured_loot_v3 RENAME TO captured_loot");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_captured_loot_template ON captured_loot (template_id)");
+                stmt.execute("PRAGMA user_version = 3");
+            }
+            connection.commit();
         } catch (SQLException e) {
-            plugin.getLogger().severe("Database error checking for captured loot: " + e.getMessage());
-            return false;
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+
+        if (skipped > 0) {
+            plugin.getLogger().warning("Skipped " + skipped + " rows with unreadable contents during migration.");
+        }
+        if (captured > 0) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("VACUUM");
+            }
+            plugin.getLogger().info("Migrated " + captured + " captured containers to " + templates.size() + " shared templates and delta encoded " + records + " player records.");
         }
     }
 
-    public void captureLoot(Location location, ItemStack[] items) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "INSERT OR IGNORE INTO captured_loot (location_key, contents) VALUES (?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, locationKey);
-            pstmt.setString(2, SerializationUtil.itemStackArrayToBase64(items));
-            pstmt.executeUpdate();
+    /**
+     * Version 4: indexes to find player records by age and by player, the player_activity table, and incremental
+     * auto-vacuum so pages freed by the cleanup can be returned to the file system without rebuilding the database.
+     */
+    private void migrateToRecordCleanup() throws SQLException {
+        plugin.getLogger().info("Migrating database to schema version 4 (record cleanup)...");
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(CREATE_PLAYER_ACTIVITY_TABLE);
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_player_activity_last_seen ON player_activity (last_seen)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_player_data_timestamp ON player_data (timestamp)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_player_data_player ON player_data (player_uuid)");
+            // Players from before activity was tracked count as last seen when they last looted or took an elytra.
+            stmt.execute("INSERT OR IGNORE INTO player_activity (player_uuid, last_seen) " +
+                    "SELECT player_uuid, MAX(timestamp) FROM (SELECT player_uuid, timestamp FROM player_data " +
+                    "UNION ALL SELECT player_uuid, timestamp FROM elytra_data) GROUP BY player_uuid");
+            stmt.execute("PRAGMA user_version = 4");
+            connection.commit();
         } catch (SQLException e) {
-            plugin.getLogger().severe("Database error capturing loot: " + e.getMessage());
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+
+        // An existing database only switches its auto_vacuum mode when it is rebuilt.
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            stmt.execute("VACUUM");
         }
     }
 
-    public ItemStack[] getCapturedLoot(Location location) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "SELECT contents FROM captured_loot WHERE location_key = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, locationKey);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return SerializationUtil.itemStackArrayFromBase64(rs.getString("contents"));
+    private LocationKey migrateKey(String locationKey, Map<String, Integer> worldIds) throws SQLException {
+        int[] coordinates = locationKey == null ? null : LocationUtil.coordinatesOf(locationKey);
+        if (coordinates == null) return null;
+        String worldName = LocationUtil.worldNameOf(locationKey);
+        Integer worldId = worldIds.get(worldName);
+        if (worldId == null) {
+            worldId = registerWorld(worldName);
+            if (worldId < 0) {
+                throw new SQLException("Could not register world " + worldName);
             }
-        } catch (SQLException | IOException e) {
-            plugin.getLogger().severe("Database error getting captured loot: " + e.getMessage());
+            worldIds.put(worldName, worldId);
         }
-        return null;
+        return LocationKey.of(worldId, coordinates[0], coordinates[1], coordinates[2]);
     }
 
-    public void addPlayerPlaced(Location location) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "INSERT OR IGNORE INTO player_placed_blocks (location_key) VALUES (?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, locationKey);
-            pstmt.executeUpdate();
+    // --- World Registry ---
+
+    /**
+     * @return Every registered world name with its id.
+     */
+    public synchronized Map<String, Integer> getWorldIds() {
+        Map<String, Integer> worldIds = new HashMap<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT id, name FROM worlds")) {
+            while (rs.next()) {
+                worldIds.put(rs.getString("name"), rs.getInt("id"));
+            }
         } catch (SQLException e) {
-            plugin.getLogger().severe("Database error adding player placed block: " + e.getMessage());
+            plugin.getLogger().severe("Database error loading registered worlds: " + e.getMessage());
         }
+        return worldIds;
     }
 
-    public void removePlayerPlaced(Location location) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "DELETE FROM player_placed_blocks WHERE location_key = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, locationKey);
-            pstmt.executeUpdate();
+    /**
+     * Registers a world name if it is not registered yet.
+     * @param worldName The world name.
+     * @return The id of the world, or -1 if it could not be registered.
+     */
+    public synchronized int registerWorld(String worldName) {
+        try (PreparedStatement insert = connection.prepareStatement("INSERT OR IGNORE INTO worlds (name) VALUES (?)");
+             PreparedStatement select = connection.prepareStatement("SELECT id FROM worlds WHERE name = ?")) {
+            insert.setString(1, worldName);
+            insert.executeUpdate();
+            select.setString(1, worldName);
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt(1);
+                }
+            }
         } catch (SQLException e) {
-            plugin.getLogger().severe("Database error removing player placed block: " + e.getMessage());
+            plugin.getLogger().severe("Database error registering world " + worldName + ": " + e.getMessage());
         }
+        return -1;
     }
 
-    public boolean isPlayerPlaced(Location location) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String sql = "SELECT 1 FROM player_placed_blocks WHERE location_key = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, locationKey);
-            return pstmt.executeQuery().next();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Database error checking if block is player placed: " + e.getMessage());
-            return false;
+    /**
+     * Reads only the timestamp of a player record, which is all a cooldown check needs. The contents column sits
+     * after it in the row, so its overflow pages are not even read; they are fetched and decoded once something
+     * asks the returned record for its contents.
+     */
+    public PlayerLootRecord getPlayerRecord(LocationKey locationKey, UUID playerUUID) {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT timestamp FROM player_data WHERE world_id = ? AND position = ? AND player_uuid = ?";
+            try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+                PreparedStatement pstmt = lease.prepare(sql);
+                pstmt.setInt(1, locationKey.getWorldId());
+                pstmt.setLong(2, locationKey.getPosition());
+                pstmt.setString(3, playerUUID.toString());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        return lazyRecord(locationKey, playerUUID, rs.getLong("timestamp"));
+                    }
+                }
+            } catch (SQLException e) {
+                plugin.getLogger().severe("Database error getting player record: " + e.getMessage());
+            }
+            return null;
+        } finally {
+            playerRecordTimer.recordSince(start);
         }
     }
 
-    public void clearAllDataForLocation(Location location) {
-        String locationKey = LocationUtil.locationToString(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
-        String deletePlayerDataSQL = "DELETE FROM player_data WHERE location_key = ?";
-        String deleteCapturedLootSQL = "DELETE FROM captured_loot WHERE location_key = ?";
-        String deletePlayerPlacedSQL = "DELETE FROM player_placed_blocks WHERE location_key = ?";
+    private ItemStack[] getPlayerRecordContents(LocationKey locationKey, UUID playerUUID) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT contents, template_id FROM player_data WHERE world_id = ? AND position = ? AND player_uuid = ?";
+            try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+                PreparedStatement pstmt = lease.prepare(sql);
+                pstmt.setInt(1, locationKey.getWorldId());
+                pstmt.setLong(2, locationKey.getPosition());
+                pstmt.setString(3, playerUUID.toString());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        return decodeRecord(rs.getBytes("contents"), getTemplateId(rs), lease.prepare(SELECT_TEMPLATE_SQL));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IOException("Database error getting player record contents: " + e.getMessage(), e);
+            }
+            throw new IOException("The player record at " + locationKey + " no longer exists.");
+        } finally {
+            recordContentsTimer.recordSince(start);
+        }
+    }
 
+    /**
+     * @return A copy of the template of a captured container, or null if there is none.
+     */
+    public ItemStack[] getCapturedLoot(LocationKey locationKey) {
+        long start = System.nanoTime();
         try {
-            connection.setAutoCommit(false);
-            try (PreparedStatement pstmt1 = connection.prepareStatement(deletePlayerDataSQL);
-                 PreparedStatement pstmt2 = connection.prepareStatement(deleteCapturedLootSQL);
-                 PreparedStatement pstmt3 = connection.prepareStatement(deletePlayerPlacedSQL)) {
+            try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+                PreparedStatement pstmt = lease.prepare(SELECT_CAPTURED_TEMPLATE_ID_SQL);
+                pstmt.setInt(1, locationKey.getWorldId());
+                pstmt.setLong(2, locationKey.getPosition());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        return copyOf(loadTemplate(lease.prepare(SELECT_TEMPLATE_SQL), rs.getLong("template_id")));
+                    }
+                }
+            } catch (SQLException | IOException e) {
+                plugin.getLogger().severe("Database error getting captured loot: " + e.getMessage());
+            }
+            return null;
+        } finally {
+            capturedLootTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * @return A copy of a stored template, or null if it is unreadable or no longer stored.
+     */
+    public ItemStack[] getTemplate(long templateId) {
+        ItemStack[] cached = templateCache.get(templateId);
+        if (cached != null) return cached;
+
+        long start = System.nanoTime();
+        try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+            return copyOf(loadTemplate(lease.prepare(SELECT_TEMPLATE_SQL), templateId));
+        } catch (SQLException | IOException e) {
+            plugin.getLogger().severe("Database error getting loot template " + templateId + ": " + e.getMessage());
+            return null;
+        } finally {
+            capturedLootTimer.recordSince(start);
+        }
+    }
 
-                pstmt1.setString(1, locationKey);
-                pstmt1.executeUpdate();
+    public boolean hasPlayerObtainedElytra(UUID playerUUID) {
+        long start = System.nanoTime();
+        try {
+            String sql = "SELECT 1 FROM elytra_data WHERE player_uuid = ?";
+            try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+                PreparedStatement pstmt = lease.prepare(sql);
+                pstmt.setString(1, playerUUID.toString());
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next();
+                }
+            } catch (SQLException e) {
+                plugin.getLogger().severe("Database error checking if player has obtained elytra: " + e.getMessage());
+                return false;
+            }
+        } finally {
+            elytraTimer.recordSince(start);
+        }
+    }
 
-                pstmt2.setString(1, locationKey);
-                pstmt2.executeUpdate();
+    /**
+     * Reads every location key stored in a table, used to build the in-memory indexes at startup.
+     * @param table Either player_placed_blocks or captured_loot.
+     * @return All location keys in the table.
+     */
+    public List<LocationKey> getAllLocationKeys(String table) {
+        List<LocationKey> keys = new ArrayList<>();
+        try (ReadConnectionPool.Lease lease = readPool.acquire();
+             ResultSet rs = lease.prepare("SELECT world_id, position FROM " + table).executeQuery()) {
+            while (rs.next()) {
+                keys.add(new LocationKey(rs.getInt(1), rs.getLong(2)));
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().severe("Database error loading location keys from " + table + ": " + e.getMessage());
+        }
+        return keys;
+    }
 
-                pstmt3.setString(1, locationKey);
-                pstmt3.executeUpdate();
+    /**
+     * Streams every captured template, player record and player-placed flag to the visitor, in that order.
+     * Runs on one pooled read connection, so only call it off the main threads.
+     */
+    public void exportTo(LootStorage.LootVisitor visitor) {
+        try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+            PreparedStatement selectTemplate = lease.prepare(SELECT_TEMPLATE_SQL);
+            try (ResultSet rs = lease.prepare("SELECT world_id, position, template_id FROM captured_loot").executeQuery()) {
+                while (rs.next()) {
+                    LocationKey locationKey = new LocationKey(rs.getInt("world_id"), rs.getLong("position"));
+                    try {
+                        visitor.capturedLoot(locationKey, copyOf(loadTemplate(selectTemplate, rs.getLong("template_id"))));
+                    } catch (IOException e) {
+                        plugin.getLogger().severe("Skipping unreadable captured loot at " + locationKey + ": " + e.getMessage());
+                    }
+                }
+            }
 
+            String sql = "SELECT world_id, position, player_uuid, timestamp, contents, template_id FROM player_data";
+            try (ResultSet rs = lease.prepare(sql).executeQuery()) {
+                while (rs.next()) {
+                    LocationKey locationKey = new LocationKey(rs.getInt("world_id"), rs.getLong("position"));
+                    try {
+                        ItemStack[] contents = decodeRecord(rs.getBytes("contents"), getTemplateId(rs), selectTemplate);
+                        visitor.playerRecord(locationKey, UUID.fromString(rs.getString("player_uuid")), new PlayerLootRecord(rs.getLong("timestamp"), contents));
+                    } catch (IOException | IllegalArgumentException e) {
+                        plugin.getLogger().severe("Skipping unreadable player record at " + locationKey + ": " + e.getMessage());
+                    }
+                }
             }
-            
-            String sql = "DELETE FROM elytra_data WHERE player_uuid IN (SELECT player_uuid FROM player_data WHERE location_key = ?)";
-            try (PreparedStatement pstmt4 = connection.prepareStatement(sql)) {
-                pstmt4.setString(1, locationKey);
-                pstmt4.executeUpdate();
+
+            try (ResultSet rs = lease.prepare("SELECT world_id, position FROM player_placed_blocks").executeQuery()) {
+                while (rs.next()) {
+                    visitor.playerPlaced(new LocationKey(rs.getInt(1), rs.getLong(2)));
+                }
             }
-            connection.commit();
         } catch (SQLException e) {
-            plugin.getLogger().severe("Database error clearing all data for location: " + e.getMessage());
-            try {
-                connection.rollback();
-            } catch (SQLException ex) {
-                plugin.getLogger().severe("Failed to rollback transaction: " + ex.getMessage());
+            plugin.getLogger().severe("Database error exporting loot data: " + e.getMessage());
+        }
+    }
+
+    // --- Chunk Prefetch (reads through the read pool, callers reconcile the rows with the write queue) ---
+
+    /**
+     * Loads the timestamp of every player record stored inside one chunk. Contents are read once a record is opened,
+     * and the templates the records are stored against are warmed in the template cache.
+     * @return The records, keyed by packed position and then by player, or null on a database error.
+     */
+    Map<Long, Map<UUID, PlayerLootRecord>> getPlayerRecordsInChunk(int worldId, int chunkX, int chunkZ) {
+        long start = System.nanoTime();
+        try {
+            Map<Long, Map<UUID, PlayerLootRecord>> records = new HashMap<>();
+            Set<Long> templateIds = new HashSet<>();
+            String sql = "SELECT position, player_uuid, timestamp, template_id FROM player_data WHERE world_id = ? AND position BETWEEN ? AND ?";
+            try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+                PreparedStatement pstmt = lease.prepare(sql);
+                pstmt.setInt(1, worldId);
+                pstmt.setLong(2, LocationKey.chunkMinPosition(chunkX, chunkZ));
+                pstmt.setLong(3, LocationKey.chunkMaxPosition(chunkX, chunkZ));
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        long position = rs.getLong("position");
+                        try {
+                            UUID playerUUID = UUID.fromString(rs.getString("player_uuid"));
+                            records.computeIfAbsent(position, key -> new HashMap<>())
+                                    .put(playerUUID, lazyRecord(new LocationKey(worldId, position), playerUUID, rs.getLong("timestamp")));
+                        } catch (IllegalArgumentException e) {
+                            plugin.getLogger().severe("Skipping unreadable player record at " + new LocationKey(worldId, position) + ": " + e.getMessage());
+                            continue;
+                        }
+                        Long templateId = getTemplateId(rs);
+                        if (templateId != null) {
+                            templateIds.add(templateId);
+                        }
+                    }
+                }
+                warmTemplates(lease, templateIds);
+            } catch (SQLException e) {
+                plugin.getLogger().severe("Database error loading player records for chunk: " + e.getMessage());
+                return null;
             }
+            return records;
         } finally {
-            try {
-                connection.setAutoCommit(true);
+            chunkLoadTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * Loads the timestamps of one player's records in a column of chunks, like {@link #getPlayerRecordsInChunk}.
+     * @param minChunkZ The first chunk of the column, inclusive.
+     * @param maxChunkZ The last chunk of the column, inclusive. Must not be smaller than minChunkZ.
+     * @return The records keyed by position, or null on a database error.
+     */
+    Map<Long, PlayerLootRecord> getPlayerRecordsInColumn(int worldId, int chunkX, int minChunkZ, int maxChunkZ, UUID playerUUID) {
+        long start = System.nanoTime();
+        try {
+            Map<Long, PlayerLootRecord> records = new HashMap<>();
+            Set<Long> templateIds = new HashSet<>();
+            String sql = "SELECT position, timestamp, template_id FROM player_data WHERE world_id = ? AND position BETWEEN ? AND ? AND player_uuid = ?";
+            try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+                PreparedStatement pstmt = lease.prepare(sql);
+                // Positions of one column are contiguous, except where negative chunk coordinates wrap around.
+                int[][] ranges = minChunkZ < 0 && maxChunkZ >= 0
+                        ? new int[][] { { minChunkZ, -1 }, { 0, maxChunkZ } }
+                        : new int[][] { { minChunkZ, maxChunkZ } };
+                for (int[] range : ranges) {
+                    pstmt.setInt(1, worldId);
+                    pstmt.setLong(2, LocationKey.chunkMinPosition(chunkX, range[0]));
+                    pstmt.setLong(3, LocationKey.chunkMaxPosition(chunkX, range[1]));
+                    pstmt.setString(4, playerUUID.toString());
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            long position = rs.getLong("position");
+                            records.put(position, lazyRecord(new LocationKey(worldId, position), playerUUID, rs.getLong("timestamp")));
+                            Long templateId = getTemplateId(rs);
+                            if (templateId != null) {
+                                templateIds.add(templateId);
+                            }
+                        }
+                    }
+                }
+                warmTemplates(lease, templateIds);
             } catch (SQLException e) {
-                plugin.getLogger().severe("Failed to restore auto-commit: " + e.getMessage());
+                plugin.getLogger().severe("Database error prefetching player records: " + e.getMessage());
+                return null;
             }
+            return records;
+        } finally {
+            prefetchTimer.recordSince(start);
         }
     }
 
-    public boolean hasPlayerObtainedElytra(UUID playerUUID) {
-        String sql = "SELECT 1 FROM elytra_data WHERE player_uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (ResultSet rs = pstmt.executeQuery()) {
-                return rs.next();
+    /**
+     * Loads which template every captured container inside one chunk uses. The templates themselves are
+     * only loaded, through the template cache, when a container is opened.
+     * @return The template ids, keyed by packed position, or null on a database error.
+     */
+    Map<Long, Long> getCapturedTemplateIdsInChunk(int worldId, int chunkX, int chunkZ) {
+        long start = System.nanoTime();
+        try {
+            Map<Long, Long> captured = new HashMap<>();
+            String sql = "SELECT position, template_id FROM captured_loot WHERE world_id = ? AND position BETWEEN ? AND ?";
+            try (ReadConnectionPool.Lease lease = readPool.acquire()) {
+                PreparedStatement pstmt = lease.prepare(sql);
+                pstmt.setInt(1, worldId);
+                pstmt.setLong(2, LocationKey.chunkMinPosition(chunkX, chunkZ));
+                pstmt.setLong(3, LocationKey.chunkMaxPosition(chunkX, chunkZ));
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        captured.put(rs.getLong("position"), rs.getLong("template_id"));
+                    }
+                }
+            } catch (SQLException e) {
+                plugin.getLogger().severe("Database error loading captured loot for chunk: " + e.getMessage());
+                return null;
             }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Database error checking if player has obtained elytra: " + e.getMessage());
-            return false;
+            return captured;
+        } finally {
+            chunkLoadTimer.recordSince(start);
         }
     }
 
-    public void setPlayerObtainedElytra(UUID playerUUID) {
-        String sql = "INSERT OR IGNORE INTO elytra_data (player_uuid, timestamp) VALUES (?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            pstmt.setLong(2, System.currentTimeMillis());
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Database error setting player obtained elytra: " + e.getMessage());
+    /**
+     * A record whose contents are read and decoded from the database once something asks for them.
+     */
+    private PlayerLootRecord lazyRecord(LocationKey locationKey, UUID playerUUID, long timestamp) {
+        return PlayerLootRecord.lazy(timestamp, () -> getPlayerRecordContents(locationKey, playerUUID));
+    }
+
+    /**
+     * Loads templates into the template cache, so the records stored against them decode without another read.
+     */
+    private void warmTemplates(ReadConnectionPool.Lease lease, Set<Long> templateIds) throws SQLException {
+        if (templateIds.isEmpty()) return;
+        PreparedStatement select = lease.prepare(SELECT_TEMPLATE_SQL);
+        for (long templateId : templateIds) {
+            try {
+                loadTemplate(select, templateId);
+            } catch (IOException e) {
+                // Reported again, with the container, if one of its records is opened.
+                plugin.getLogger().warning("Unreadable loot template " + templateId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // --- Writes (only called from the WriteBehindQueue) ---
+
+    /**
+     * Applies a batch of queued writes in a single transaction on the writer connection.
+     * Statements are prepared once and reused across batches.
+     * @param writes The writes to apply, in the order they were made.
+     * @return true if the batch was committed, false if it was rolled back and should be retried.
+     */
+    boolean applyWrites(List<PendingWrite> writes) {
+        long start = System.nanoTime();
+        try {
+            try {
+                writeConnection.setAutoCommit(false);
+                for (PendingWrite write : writes) {
+                    try {
+                        applyWrite(write);
+                    } catch (IllegalStateException e) {
+                        // A write whose items cannot be serialized would fail forever, so drop it instead of retrying the batch.
+                        plugin.getLogger().severe("Skipping queued write " + write.getKey() + ": " + e.getMessage());
+                    }
+                }
+                writeConnection.commit();
+                return true;
+            } catch (SQLException e) {
+                plugin.getLogger().severe("Database error flushing " + writes.size() + " queued writes: " + e.getMessage());
+                try {
+                    writeConnection.rollback();
+                } catch (SQLException ex) {
+                    plugin.getLogger().severe("Failed to rollback transaction: " + ex.getMessage());
+                }
+                return false;
+            } finally {
+                try {
+                    writeConnection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    plugin.getLogger().severe("Failed to restore auto-commit: " + e.getMessage());
+                }
+            }
+        } finally {
+            writeBatchTimer.recordSince(start);
+        }
+    }
+
+    private void applyWrite(PendingWrite write) throws SQLException {
+        LocationKey locationKey = write.getLocationKey();
+        PreparedStatement pstmt;
+        switch (write.getType()) {
+            case PLAYER_RECORD:
+                pstmt = writeStatements.prepare("INSERT OR REPLACE INTO player_data (world_id, position, player_uuid, timestamp, contents, template_id) VALUES (?, ?, ?, ?, ?, ?)");
+                setLocation(pstmt, 1, locationKey);
+                pstmt.setString(3, write.getPlayerUUID().toString());
+                pstmt.setLong(4, write.getTimestamp());
+                setRecordContents(pstmt, 5, locationKey, write.getContentsUnsafe());
+                pstmt.executeUpdate();
+                break;
+            case PLAYER_RECORD_CONTENTS:
+                pstmt = writeStatements.prepare("UPDATE player_data SET contents = ?, template_id = ? WHERE world_id = ? AND position = ? AND player_uuid = ?");
+                setRecordContents(pstmt, 1, locationKey, write.getContentsUnsafe());
+                setLocation(pstmt, 3, locationKey);
+                pstmt.setString(5, write.getPlayerUUID().toString());
+                pstmt.executeUpdate();
+                break;
+            case CAPTURE_LOOT:
+                // A stored template always wins, captures never overwrite.
+                if (getCapturedTemplateId(locationKey) != null) break;
+                long templateId = storeTemplate(writeStatements.prepare(INSERT_TEMPLATE_SQL), writeStatements.prepare(SELECT_TEMPLATE_ID_SQL), itemCodec.encode(write.getContentsUnsafe()));
+                pstmt = writeStatements.prepare("INSERT OR IGNORE INTO captured_loot (world_id, position, template_id) VALUES (?, ?, ?)");
+                setLocation(pstmt, 1, locationKey);
+                pstmt.setLong(3, templateId);
+                pstmt.executeUpdate();
+                break;
+            case ADD_PLAYER_PLACED:
+                pstmt = writeStatements.prepare("INSERT OR IGNORE INTO player_placed_blocks (world_id, position) VALUES (?, ?)");
+                setLocation(pstmt, 1, locationKey);
+                pstmt.executeUpdate();
+                break;
+            case REMOVE_PLAYER_PLACED:
+                pstmt = writeStatements.prepare("DELETE FROM player_placed_blocks WHERE world_id = ? AND position = ?");
+                setLocation(pstmt, 1, locationKey);
+                pstmt.executeUpdate();
+                break;
+            case CLEAR_LOCATION:
+                Long clearedTemplateId = getCapturedTemplateId(locationKey);
+                for (String sql : CLEAR_LOCATION_SQL) {
+                    pstmt = writeStatements.prepare(sql);
+                    setLocation(pstmt, 1, locationKey);
+                    pstmt.executeUpdate();
+                }
+                if (clearedTemplateId != null) {
+                    // Player records only ever refer to the template captured at their own location,
+                    // so a template no captured container refers to is unused.
+                    pstmt = writeStatements.prepare("DELETE FROM loot_templates WHERE id = ? AND NOT EXISTS (SELECT 1 FROM captured_loot WHERE template_id = ?)");
+                    pstmt.setLong(1, clearedTemplateId);
+                    pstmt.setLong(2, clearedTemplateId);
+                    if (pstmt.executeUpdate() > 0) {
+                        // Nothing refers to it anymore, so free its decoded copy right away.
+                        templateCache.invalidate(clearedTemplateId);
+                    }
+                }
+                break;
+            case ELYTRA:
+                if (write.isInsertElytra()) {
+                    pstmt = writeStatements.prepare("INSERT OR IGNORE INTO elytra_data (player_uuid, timestamp) VALUES (?, ?)");
+                    pstmt.setString(1, write.getPlayerUUID().toString());
+                    pstmt.setLong(2, write.getTimestamp());
+                    pstmt.executeUpdate();
+                }
+                if (write.isResetElytra()) {
+                    pstmt = writeStatements.prepare("UPDATE elytra_data SET timestamp = ? WHERE player_uuid = ?");
+                    pstmt.setLong(1, write.getTimestamp());
+                    pstmt.setString(2, write.getPlayerUUID().toString());
+                    pstmt.executeUpdate();
+                }
+                break;
+            case PLAYER_SEEN:
+                pstmt = writeStatements.prepare("INSERT OR REPLACE INTO player_activity (player_uuid, last_seen) VALUES (?, ?)");
+                pstmt.setString(1, write.getPlayerUUID().toString());
+                pstmt.setLong(2, write.getTimestamp());
+                pstmt.executeUpdate();
+                break;
         }
     }
 
-    public void resetPlayerElytraTimer(UUID playerUUID) {
-        String sql = "UPDATE elytra_data SET timestamp = ? WHERE player_uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setLong(1, System.currentTimeMillis());
-            pstmt.setString(2, playerUUID.toString());
+    // --- Cleanup (only called on the write-behind thread, after pending writes were flushed) ---
+
+    /**
+     * Deletes up to limit player records that were looted before the cutoff.
+     * @return The number of deleted records.
+     */
+    int deleteRecordsLootedBefore(long cutoff, int limit) throws SQLException {
+        PreparedStatement pstmt = writeStatements.prepare("DELETE FROM player_data WHERE rowid IN (SELECT rowid FROM player_data WHERE timestamp < ? LIMIT ?)");
+        pstmt.setLong(1, cutoff);
+        pstmt.setInt(2, limit);
+        return pstmt.executeUpdate();
+    }
+
+    /**
+     * Deletes up to limit player records of players last seen before the cutoff. Once none of their records
+     * are left, their elytra and activity rows go as well.
+     * @return The number of deleted records.
+     */
+    int deleteRecordsOfPlayersSeenBefore(long cutoff, int limit) throws SQLException {
+        PreparedStatement pstmt = writeStatements.prepare("DELETE FROM player_data WHERE rowid IN (SELECT p.rowid FROM player_activity a " +
+                "JOIN player_data p ON p.player_uuid = a.player_uuid WHERE a.last_seen < ? LIMIT ?)");
+        pstmt.setLong(1, cutoff);
+        pstmt.setInt(2, limit);
+        int deleted = pstmt.executeUpdate();
+        if (deleted < limit) {
+            pstmt = writeStatements.prepare("DELETE FROM elytra_data WHERE player_uuid IN (SELECT player_uuid FROM player_activity WHERE last_seen < ?)");
+            pstmt.setLong(1, cutoff);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Database error resetting player elytra timer: " + e.getMessage());
+            pstmt = writeStatements.prepare("DELETE FROM player_activity WHERE last_seen < ?");
+            pstmt.setLong(1, cutoff);
+            pstmt.executeUpdate();
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns up to the given number of free pages at the end of the database file to the file system.
+     * @return The number of pages freed.
+     */
+    int reclaimFreePages(int maxPages) throws SQLException {
+        int freed = 0;
+        // Each freed page is one result row, and the vacuum only continues while the rows are read.
+        try (Statement stmt = writeConnection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA incremental_vacuum(" + maxPages + ")")) {
+            while (rs.next()) {
+                freed++;
+            }
+        }
+        return freed;
+    }
+
+    // --- Loot Templates ---
+
+    /**
+     * Encodes the contents of a player record into the contents and template_id columns starting at the given index.
+     * Records of a captured container are stored as a delta against its template, all others in full.
+     * Only called on the writer thread.
+     */
+    private void setRecordContents(PreparedStatement pstmt, int firstIndex, LocationKey locationKey, ItemStack[] contents) throws SQLException {
+        Long templateId = getCapturedTemplateId(locationKey);
+        ItemStack[] template = null;
+        if (templateId != null) {
+            try {
+                template = loadTemplate(writeStatements.prepare(SELECT_TEMPLATE_SQL), templateId);
+            } catch (IOException e) {
+                plugin.getLogger().warning("Storing record at " + locationKey + " in full, its loot template is unreadable: " + e.getMessage());
+            }
+        }
+        if (template != null) {
+            pstmt.setBytes(firstIndex, ItemStackDelta.encode(template, contents));
+            pstmt.setLong(firstIndex + 1, templateId);
+        } else {
+            pstmt.setBytes(firstIndex, itemCodec.encode(contents));
+            pstmt.setNull(firstIndex + 1, Types.INTEGER);
+        }
+    }
+
+    private Long getCapturedTemplateId(LocationKey locationKey) throws SQLException {
+        PreparedStatement pstmt = writeStatements.prepare(SELECT_CAPTURED_TEMPLATE_ID_SQL);
+        setLocation(pstmt, 1, locationKey);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : null;
+        }
+    }
+
+    /**
+     * Stores encoded contents as a template unless identical contents are already stored.
+     * @return The id of the template holding these contents.
+     */
+    private long storeTemplate(PreparedStatement insert, PreparedStatement selectId, byte[] encoded) throws SQLException {
+        byte[] hash = hashOf(encoded);
+        insert.setBytes(1, hash);
+        insert.setBytes(2, encoded);
+        insert.executeUpdate();
+        selectId.setBytes(1, hash);
+        try (ResultSet rs = selectId.executeQuery()) {
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+        }
+        throw new SQLException("Loot template was not stored.");
+    }
+
+    /**
+     * @param select A prepared {@link #SELECT_TEMPLATE_SQL} on the calling thread's connection.
+     * @return The decoded template. It is shared, so it must not be modified or handed out without {@link #copyOf}.
+     */
+    private ItemStack[] loadTemplate(PreparedStatement select, long templateId) throws SQLException, IOException {
+        ItemStack[] cached = templateCache.getShared(templateId);
+        if (cached != null) return cached;
+
+        long version = templateCache.getVersion();
+        byte[] stored;
+        select.setLong(1, templateId);
+        try (ResultSet rs = select.executeQuery()) {
+            if (!rs.next()) {
+                throw new IOException("Loot template " + templateId + " is missing.");
+            }
+            stored = rs.getBytes(1);
+        }
+        ItemStack[] template = decodeContents(stored);
+        templateCache.put(templateId, template, stored.length, version);
+        return template;
+    }
+
+    /**
+     * @return The stored size of the decoded templates kept in memory, in bytes.
+     */
+    public long getTemplateCacheBytes() {
+        return templateCache.getWeight();
+    }
+
+    private ItemStack[] decodeRecord(byte[] data, Long templateId, PreparedStatement selectTemplate) throws SQLException, IOException {
+        if (!ItemStackDelta.isDelta(data)) {
+            return decodeContents(data);
+        }
+        if (templateId == null) {
+            throw new IOException("Item delta without a loot template.");
+        }
+        return ItemStackDelta.apply(loadTemplate(selectTemplate, templateId), data);
+    }
+
+    private static Long getTemplateId(ResultSet rs) throws SQLException {
+        long templateId = rs.getLong("template_id");
+        return rs.wasNull() ? null : templateId;
+    }
+
+    private static byte[] hashOf(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private static ItemStack[] copyOf(ItemStack[] items) {
+        ItemStack[] copy = new ItemStack[items.length];
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null) {
+                copy[i] = items[i].clone();
+            }
         }
+        return copy;
+    }
+
+    /**
+     * Decodes stored contents in whichever format they were written.
+     */
+    private ItemStack[] decodeContents(byte[] data) throws IOException {
+        if (itemCodec.canDecode(data)) {
+            return itemCodec.decode(data);
+        }
+        if (legacyItemCodec.canDecode(data)) {
+            return legacyItemCodec.decode(data);
+        }
+        throw new IOException("Unknown item format.");
+    }
+
+    private void setLocation(PreparedStatement pstmt, int firstIndex, LocationKey locationKey) throws SQLException {
+        pstmt.setInt(firstIndex, locationKey.getWorldId());
+        pstmt.setLong(firstIndex + 1, locationKey.getPosition());
     }
 }
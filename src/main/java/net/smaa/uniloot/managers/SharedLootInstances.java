@@ -0,0 +1,92 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.utils.LocationKey;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The loot each container shows in shared mode: one set of contents per container per refresh window,
+ * rolled by the first player to open it and shown to everyone without a record of their own.
+ * <p>
+ * Only kept in memory. A player's own record is written when they change the inventory, starting from these
+ * contents, so nothing here needs to survive a restart.
+ */
+public class SharedLootInstances {
+
+    private final ConfigManager config;
+    private final Map<LocationKey, Instance> instances = new ConcurrentHashMap<>();
+
+    public SharedLootInstances(ConfigManager configManager) {
+        this.config = configManager;
+    }
+
+    /**
+     * @return The contents shared for this window, or null if none were rolled yet or they expired.
+     */
+    public Instance get(LocationKey location) {
+        Instance instance = instances.get(location);
+        if (instance == null || !isExpired(instance, System.currentTimeMillis())) return instance;
+        instances.remove(location, instance);
+        return null;
+    }
+
+    /**
+     * Shares freshly rolled contents, unless another player's roll was shared first.
+     * @param contents Kept as is, the caller must not modify them afterwards.
+     * @return The instance that is now shared.
+     */
+    public Instance share(LocationKey location, ItemStack[] contents) {
+        Instance rolled = new Instance(System.currentTimeMillis(), contents);
+        return instances.merge(location, rolled, (current, fresh) -> isExpired(current, fresh.timestamp) ? fresh : current);
+    }
+
+    public void remove(LocationKey location) {
+        instances.remove(location);
+    }
+
+    /**
+     * Drops every instance whose window ended, for containers nobody opened since.
+     */
+    public void removeExpired() {
+        long now = System.currentTimeMillis();
+        instances.values().removeIf(instance -> isExpired(instance, now));
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+    private boolean isExpired(Instance instance, long now) {
+        // Without loot refresh there is one window, for as long as the server runs.
+        return config.isRefreshEnabled() && now - instance.timestamp >= config.getRefreshIntervalMillis();
+    }
+
+    /**
+     * One container's shared contents.
+     */
+    public static final class Instance {
+        private final long timestamp;
+        private final ItemStack[] contents;
+
+        private Instance(long timestamp, ItemStack[] contents) {
+            this.timestamp = timestamp;
+            this.contents = contents;
+        }
+
+        /**
+         * @return When the contents were rolled. A player's record made from them gets this timestamp, so it expires with the window.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return The contents without copying them. Callers must not modify the array or its items.
+         */
+        public ItemStack[] getContentsUnsafe() {
+            return contents;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import org.bukkit.World;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps world names to the small integer ids stored in the database, so location keys never have to carry the world name.
+ */
+public class WorldRegistry {
+
+    private final UniLoot plugin;
+    private final SQLiteManager sqliteManager;
+    private final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private final Map<Integer, String> namesById = new ConcurrentHashMap<>();
+
+    public WorldRegistry(UniLoot plugin, SQLiteManager sqliteManager) {
+        this.plugin = plugin;
+        this.sqliteManager = sqliteManager;
+    }
+
+    /**
+     * Loads the registered worlds and registers every world that is currently loaded. Must be called once the database is connected.
+     */
+    public void load() {
+        idsByName.clear();
+        namesById.clear();
+        sqliteManager.getWorldIds().forEach((name, id) -> {
+            idsByName.put(name, id);
+            namesById.put(id, name);
+        });
+        for (World world : plugin.getServer().getWorlds()) {
+            idOf(world);
+        }
+    }
+
+    public int idOf(World world) {
+        return idOf(world.getName());
+    }
+
+    public int idOf(String worldName) {
+        Integer id = idsByName.get(worldName);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = idsByName.get(worldName);
+            if (id == null) {
+                // Only happens once per world, the first time it is seen.
+                id = sqliteManager.registerWorld(worldName);
+                if (id < 0) {
+                    plugin.getLogger().severe("Could not register world '" + worldName + "'. Loot data for it will not be saved correctly.");
+                    return id;
+                }
+                idsByName.put(worldName, id);
+                namesById.put(id, worldName);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @param worldId A registered world id.
+     * @return The world name, or null if the id is unknown.
+     */
+    public String nameOf(int worldId) {
+        return namesById.get(worldId);
+    }
+}
@@ -0,0 +1,343 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Sits in front of a storage backend, usually {@link SQLiteManager}, and persists writes on a dedicated thread
+ * so that the server thread never waits on disk. Writes to the same row are coalesced while they wait
+ * and are flushed together in a single batch.
+ */
+public class WriteBehindQueue {
+
+    private final UniLoot plugin;
+    private final ConfigManager config;
+    private final String name;
+    private final WriteSink sink;
+
+    private final Object lock = new Object();
+    private final Object flushLock = new Object();
+    // Insertion ordered so that a batch replays writes in the order they were made.
+    private final LinkedHashMap<PendingWrite.Key, PendingWrite> pending = new LinkedHashMap<>();
+    private ScheduledExecutorService writer;
+    private volatile boolean flushRequested;
+
+    // --- Metrics ---
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedWrites = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+
+    public WriteBehindQueue(UniLoot plugin, ConfigManager configManager, SQLiteManager sqliteManager) {
+        this(plugin, configManager, "DB", sqliteManager::applyWrites);
+    }
+
+    /**
+     * @param name What is written to, used in the thread name and log messages, e.g. "DB".
+     * @param sink Persists each batch on the writer thread.
+     */
+    public WriteBehindQueue(UniLoot plugin, ConfigManager configManager, String name, WriteSink sink) {
+        this.plugin = plugin;
+        this.config = configManager;
+        this.name = name;
+        this.sink = sink;
+    }
+
+    /**
+     * Starts the background writer thread. The flush interval is read once here, so changing it requires a restart.
+     */
+    public void start() {
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "UniLoot-" + name + "-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = config.getWriteFlushIntervalMillis();
+        writer.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the writer thread and synchronously drains everything that is still queued.
+     */
+    public void shutdown() {
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                    plugin.getLogger().warning(name + " writer did not stop in time, draining remaining writes on this thread.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        int remaining = getQueueDepth();
+        if (remaining > 0) {
+            plugin.getLogger().severe("Failed to persist " + remaining + " queued " + name + " writes during shutdown.");
+        }
+    }
+
+    public void enqueue(PendingWrite write) {
+        int depth;
+        synchronized (lock) {
+            if (write.getType() == PendingWrite.Type.CLEAR_LOCATION) {
+                // Anything queued for this location would be deleted by the clear anyway.
+                pending.values().removeIf(queued -> write.getLocationKey().equals(queued.getLocationKey()));
+            } else if (write.getType() == PendingWrite.Type.PLAYER_RECORD_CONTENTS
+                    && pending.containsKey(PendingWrite.clearKey(write.getLocationKey()))
+                    && !pending.containsKey(write.getKey())) {
+                // An UPDATE of a row that is about to be deleted does nothing.
+                return;
+            }
+
+            PendingWrite previous = pending.remove(write.getKey());
+            pending.put(write.getKey(), previous == null ? write : write.mergeWith(previous));
+            depth = pending.size();
+        }
+
+        if (writer == null || writer.isShutdown()) {
+            flush();
+        } else if (depth >= config.getWriteMaxBatchSize() && !flushRequested) {
+            flushRequested = true;
+            writer.execute(this::flush);
+        }
+    }
+
+    /**
+     * @param key The coalescing key of the write, see the key helpers in {@link PendingWrite}.
+     * @return The write still waiting to be persisted under this key, or null.
+     */
+    public PendingWrite getPending(PendingWrite.Key key) {
+        synchronized (lock) {
+            return pending.get(key);
+        }
+    }
+
+    /**
+     * @param locationKey The location to check.
+     * @return true if a clear of this location has not been persisted yet. Any write returned by
+     *         {@link #getPending(PendingWrite.Key)} for the same location was made after the clear.
+     */
+    public boolean isClearPending(LocationKey locationKey) {
+        synchronized (lock) {
+            return pending.containsKey(PendingWrite.clearKey(locationKey));
+        }
+    }
+
+    // --- Reading through the queue ---
+    // Backends answer reads through these, so callers always see their own writes, even before they are persisted.
+
+    /**
+     * @param stored Reads the stored record, only called if the queue does not decide on its own.
+     * @return The player record as it will be once the queue is flushed, or null if there will be none.
+     */
+    public PlayerLootRecord readPlayerRecord(LocationKey location, UUID playerUUID, Supplier<PlayerLootRecord> stored) {
+        PendingWrite write;
+        boolean cleared;
+        synchronized (lock) {
+            write = pending.get(PendingWrite.recordKey(location, playerUUID));
+            cleared = pending.containsKey(PendingWrite.clearKey(location));
+        }
+        return resolvePlayerRecord(write, cleared, stored);
+    }
+
+    /**
+     * @param stored Reads a copy of the stored template, only called if the queue does not decide on its own.
+     * @return A copy of the captured template as it will be once the queue is flushed, or null if there will be none.
+     */
+    public ItemStack[] readCapturedLoot(LocationKey location, Supplier<ItemStack[]> stored) {
+        PendingWrite write;
+        boolean cleared;
+        synchronized (lock) {
+            write = pending.get(PendingWrite.capturedKey(location));
+            cleared = pending.containsKey(PendingWrite.clearKey(location));
+        }
+        if (cleared) {
+            // The stored template is about to be deleted, only a capture made after the clear counts.
+            return write == null ? null : write.getContents();
+        }
+        // Captures never overwrite, so an already stored template wins over a queued one.
+        ItemStack[] template = stored.get();
+        if (template == null && write != null) {
+            return write.getContents();
+        }
+        return template;
+    }
+
+    /**
+     * Blocks until everything queued so far has been persisted, for readers that go to storage directly, like an export.
+     * Gives up with a warning after 30 seconds.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitFlush() throws InterruptedException {
+        CountDownLatch flushed = new CountDownLatch(1);
+        runAfterFlush(flushed::countDown);
+        if (!flushed.await(30, TimeUnit.SECONDS)) {
+            plugin.getLogger().warning("Pending " + name + " writes did not flush in time, the export may miss the most recent changes.");
+        }
+    }
+
+    /**
+     * Copies the writes still waiting for some locations, so a bulk read can be brought up to date without
+     * waiting for a flush. Take the copy before reading: a write persisted in between then shows up in both.
+     * @param locations Selects the locations to copy the writes of.
+     * @return The writes keyed as in the queue, in the order they were queued.
+     */
+    public Map<PendingWrite.Key, PendingWrite> snapshot(Predicate<LocationKey> locations) {
+        Map<PendingWrite.Key, PendingWrite> copy = new LinkedHashMap<>();
+        synchronized (lock) {
+            for (PendingWrite write : pending.values()) {
+                if (write.getLocationKey() != null && locations.test(write.getLocationKey())) {
+                    copy.put(write.getKey(), write);
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Combines a stored player record with what is still queued for it.
+     * @param pending The queued write under {@link PendingWrite#recordKey}, or null.
+     * @param cleared Whether a clear of the location is queued.
+     * @param stored Reads the stored record, only called if the queue does not decide on its own.
+     * @return The record as it will be once the queue is flushed, or null if there will be none.
+     */
+    static PlayerLootRecord resolvePlayerRecord(PendingWrite pending, boolean cleared, Supplier<PlayerLootRecord> stored) {
+        if (pending != null && pending.getType() == PendingWrite.Type.PLAYER_RECORD) {
+            return new PlayerLootRecord(pending.getTimestamp(), pending.getContents());
+        }
+        if (cleared) {
+            // Any write returned for the location was made after the clear, so a contents update finds no row.
+            return null;
+        }
+        PlayerLootRecord record = stored.get();
+        if (record != null && pending != null) {
+            // A queued contents update keeps the stored timestamp.
+            return new PlayerLootRecord(record.getTimestamp(), pending.getContents());
+        }
+        return record;
+    }
+
+    /**
+     * @return The player record as it will be once the queue is flushed, see {@link #resolvePlayerRecord}.
+     */
+    static PlayerLootRecord resolvePlayerRecord(Map<PendingWrite.Key, PendingWrite> snapshot, LocationKey location, UUID playerUUID, PlayerLootRecord stored) {
+        return resolvePlayerRecord(snapshot.get(PendingWrite.recordKey(location, playerUUID)), snapshot.containsKey(PendingWrite.clearKey(location)), () -> stored);
+    }
+
+    /**
+     * Runs a task on the writer thread once everything queued so far has been persisted,
+     * so that it can read the stored data without missing any earlier write.
+     * The task is skipped if the flush fails or the queue has been shut down.
+     */
+    public void runAfterFlush(Runnable task) {
+        if (writer == null || writer.isShutdown()) return;
+        writer.execute(() -> {
+            if (!flush()) return;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                plugin.getLogger().severe("Error in background " + name + " task: " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * @return false if the sink rejected the batch and it is still queued.
+     */
+    private boolean flush() {
+        synchronized (flushLock) {
+            flushRequested = false;
+            List<PendingWrite> batch;
+            synchronized (lock) {
+                if (pending.isEmpty()) return true;
+                batch = new ArrayList<>(pending.values());
+            }
+
+            long start = System.nanoTime();
+            if (!sink.applyWrites(batch)) {
+                // Leave the batch queued, it is retried on the next flush.
+                return false;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            synchronized (lock) {
+                // Only drop writes that were not replaced while the batch was being written.
+                for (PendingWrite write : batch) {
+                    pending.remove(write.getKey(), write);
+                }
+            }
+
+            flushCount.incrementAndGet();
+            flushedWrites.addAndGet(batch.size());
+            totalFlushNanos.addAndGet(elapsed);
+            lastFlushNanos = elapsed;
+            if (elapsed > maxFlushNanos) {
+                maxFlushNanos = elapsed;
+            }
+
+            if (config.isDebugMode()) {
+                plugin.getLogger().info("Flushed " + batch.size() + " " + name + " writes in " + String.format("%.2f", elapsed / 1_000_000.0) + "ms (" + getQueueDepth() + " still queued).");
+            }
+            return true;
+        }
+    }
+
+    // --- Metrics ---
+
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getFlushedWriteCount() {
+        return flushedWrites.get();
+    }
+
+    public double getLastFlushMillis() {
+        return lastFlushNanos / 1_000_000.0;
+    }
+
+    public double getMaxFlushMillis() {
+        return maxFlushNanos / 1_000_000.0;
+    }
+
+    public double getAverageFlushMillis() {
+        long count = flushCount.get();
+        return count == 0 ? 0.0 : totalFlushNanos.get() / 1_000_000.0 / count;
+    }
+
+    /**
+     * Persists batches of queued writes. Only called on the writer thread, or on the thread draining the queue at shutdown.
+     */
+    @FunctionalInterface
+    public interface WriteSink {
+        /**
+         * @param writes The writes to apply, in the order they were made.
+         * @return true if the batch was persisted, false if it should stay queued and be retried.
+         */
+        boolean applyWrites(List<PendingWrite> writes);
+    }
+}
@@ -0,0 +1,172 @@
+package net.smaa.uniloot.tasks;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.managers.ConfigManager;
+import net.smaa.uniloot.managers.DataManager;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.LocationUtil;
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.entity.Player;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Marks every container in a square of chunks as player-placed without stalling the server.
+ * <p>
+ * A driver on the async scheduler requests a limited number of chunks per tick. Each chunk is loaded
+ * asynchronously (never generated) and inspected on the thread that owns it, looking only at its tile
+ * entities instead of every block. The found containers go through the write-behind queue, which saves
+ * them in batched transactions.
+ */
+public class ChunkScanTask {
+
+    // 4,004,001 chunks, far past any sensible scan and well below where the chunk count overflows an int.
+    public static final int MAX_RADIUS = 1000;
+
+    private final UniLoot plugin;
+    private final ConfigManager config;
+    private final DataManager data;
+    private final Player player;
+    private final World world;
+    private final int centerX;
+    private final int centerZ;
+    private final int radius;
+    private final int side;
+    private final int totalChunks;
+    private final Consumer<ChunkScanTask> onFinish;
+
+    // Only touched by the driver, which never runs concurrently with itself.
+    private int nextChunk;
+    private long nextProgressReport;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger scanned = new AtomicInteger();
+    private final AtomicInteger containersFound = new AtomicInteger();
+    private final AtomicInteger containersAdded = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile boolean cancelled;
+    private ScheduledTask driver;
+
+    public ChunkScanTask(UniLoot plugin, ConfigManager configManager, DataManager dataManager, Player player, int radius, Consumer<ChunkScanTask> onFinish) {
+        this.plugin = plugin;
+        this.config = configManager;
+        this.data = dataManager;
+        this.player = player;
+        this.world = player.getWorld();
+        this.centerX = player.getLocation().getBlockX() >> 4;
+        this.centerZ = player.getLocation().getBlockZ() >> 4;
+        this.radius = Math.min(radius, MAX_RADIUS);
+        this.side = this.radius * 2 + 1;
+        this.totalChunks = side * side;
+        this.onFinish = onFinish;
+    }
+
+    public void start() {
+        nextProgressReport = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getScanProgressIntervalSeconds());
+        driver = plugin.getServer().getAsyncScheduler().runAtFixedRate(plugin, task -> tick(), 50, 50, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops requesting chunks. Chunks that are already loading are skipped when they arrive.
+     */
+    public void cancel() {
+        cancelled = true;
+        if (!finished.compareAndSet(false, true)) return;
+        if (driver != null) {
+            driver.cancel();
+        }
+        onFinish.accept(this);
+        player.sendMessage(MiniMessage.miniMessage().deserialize(
+                "<yellow>Scan cancelled after <gold><chunks></gold> of <gold><total></gold> chunks.</yellow>",
+                Placeholder.unparsed("chunks", String.valueOf(scanned.get())),
+                Placeholder.unparsed("total", String.valueOf(totalChunks))
+        ));
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    private void tick() {
+        if (cancelled) return;
+
+        int budget = config.getScanChunksPerTick();
+        // Cap the chunks waiting to load, so a slow disk cannot pile up thousands of requests.
+        int maxInFlight = budget * 4;
+        while (budget > 0 && nextChunk < totalChunks && inFlight.get() < maxInFlight) {
+            request(nextChunk++);
+            budget--;
+        }
+
+        if (nextChunk >= totalChunks && inFlight.get() == 0) {
+            finish();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now >= nextProgressReport) {
+            nextProgressReport = now + TimeUnit.SECONDS.toMillis(config.getScanProgressIntervalSeconds());
+            int done = scanned.get();
+            player.sendMessage(MiniMessage.miniMessage().deserialize(
+                    "<gray>Scanning... <gold><chunks></gold>/<gold><total></gold> chunks (<percent>%), <gold><containers></gold> containers found.</gray>",
+                    Placeholder.unparsed("chunks", String.valueOf(done)),
+                    Placeholder.unparsed("total", String.valueOf(totalChunks)),
+                    Placeholder.unparsed("percent", String.valueOf((long) done * 100 / totalChunks)),
+                    Placeholder.unparsed("containers", String.valueOf(containersFound.get()))
+            ));
+        }
+    }
+
+    private void request(int index) {
+        int chunkX = centerX - radius + index % side;
+        int chunkZ = centerZ - radius + index / side;
+        inFlight.incrementAndGet();
+        // Completes on the thread that owns the chunk. Chunks that were never generated come back as null.
+        world.getChunkAtAsync(chunkX, chunkZ, false).whenComplete((chunk, error) -> {
+            try {
+                if (error != null) {
+                    plugin.getLogger().warning("Scan could not load chunk " + chunkX + "," + chunkZ + ": " + error.getMessage());
+                } else if (chunk != null && !cancelled) {
+                    scanChunk(chunk);
+                }
+            } finally {
+                scanned.incrementAndGet();
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    private void scanChunk(Chunk chunk) {
+        Set<Material> containerTypes = config.getEnabledContainerTypes();
+        for (BlockState state : chunk.getTileEntities(block -> containerTypes.contains(block.getType()), false)) {
+            containersFound.incrementAndGet();
+            LocationKey key = data.keyOf(LocationUtil.getPrimaryLocation(state.getBlock()));
+            if (!data.isPlayerPlaced(key)) {
+                data.addPlayerPlaced(key);
+                containersAdded.incrementAndGet();
+            }
+        }
+    }
+
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) return;
+        driver.cancel();
+        onFinish.accept(this);
+        player.sendMessage(MiniMessage.miniMessage().deserialize(
+                "<green>Scan complete! Scanned <gold><chunks></gold> chunks and added <gold><containers></gold> containers to the player-placed list (<gold><found></gold> found).</green>",
+                Placeholder.unparsed("chunks", String.valueOf(totalChunks)),
+                Placeholder.unparsed("containers", String.valueOf(containersAdded.get())),
+                Placeholder.unparsed("found", String.valueOf(containersFound.get()))
+        ));
+    }
+}
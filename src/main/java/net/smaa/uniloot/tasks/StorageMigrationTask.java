@@ -0,0 +1,213 @@
+package net.smaa.uniloot.tasks;
+
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
+import net.kyori.adventure.text.minimessage.tag.resolver.TagResolver;
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.managers.DataManager;
+import net.smaa.uniloot.managers.LootStorage;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Copies all container data from one storage backend to another, for {@code /uniloot migrate}.
+ * <p>
+ * The source streams its data on a dedicated thread, so nothing is held in memory beyond the entry being copied.
+ * Data already in the target wins: captures never overwrite, and player records that exist in the target are skipped,
+ * which makes it safe to migrate while players keep looting and to run a migration again after it was cancelled.
+ * Writes into a queued backend wait while its write queue is backed up, writes into chunks load each chunk
+ * asynchronously and are applied on the thread that owns it.
+ */
+public class StorageMigrationTask implements LootStorage.LootVisitor {
+
+    private static final long PROGRESS_INTERVAL = 10_000;
+    private static final int MAX_QUEUED_WRITES = 5_000;
+    private static final int MAX_CHUNK_LOADS = 64;
+
+    private final UniLoot plugin;
+    private final DataManager data;
+    private final CommandSender sender;
+    private final String sourceName;
+    private final String targetName;
+    private final Consumer<StorageMigrationTask> onFinish;
+    private final Semaphore chunkLoads = new Semaphore(MAX_CHUNK_LOADS);
+
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private long visited;
+    private LootStorage target;
+    private Thread thread;
+    private volatile boolean cancelled;
+
+    public StorageMigrationTask(UniLoot plugin, DataManager dataManager, CommandSender sender, String sourceName, String targetName, Consumer<StorageMigrationTask> onFinish) {
+        this.plugin = plugin;
+        this.data = dataManager;
+        this.sender = sender;
+        this.sourceName = sourceName;
+        this.targetName = targetName;
+        this.onFinish = onFinish;
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "UniLoot-Migration");
+        thread.start();
+    }
+
+    /**
+     * Stops the migration after the current entry.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Waits briefly for a cancelled migration to close its backends, used when the plugin is disabled.
+     */
+    public void awaitFinish() {
+        if (thread == null) return;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long start = System.currentTimeMillis();
+        LootStorage source = null;
+        try {
+            source = data.openStorage(sourceName);
+            target = data.openStorage(targetName);
+            source.export(this);
+            // Wait for the last chunk writes to land.
+            chunkLoads.acquireUninterruptibly(MAX_CHUNK_LOADS);
+            chunkLoads.release(MAX_CHUNK_LOADS);
+
+            send("<green>Migration from <gold><source></gold> to <gold><target></gold> complete! Copied <gold><copied></gold> entries and skipped <gold><skipped></gold> in <gold><seconds></gold>s.</green>",
+                    Placeholder.unparsed("seconds", String.valueOf((System.currentTimeMillis() - start) / 1000)));
+        } catch (CancellationException e) {
+            send("<yellow>Migration from <gold><source></gold> to <gold><target></gold> cancelled after copying <gold><copied></gold> entries.</yellow>");
+        } catch (UnsupportedOperationException e) {
+            send("<red>The <gold><source></gold> backend cannot be migrated from: <reason></red>", Placeholder.unparsed("reason", String.valueOf(e.getMessage())));
+        } catch (RuntimeException e) {
+            plugin.getLogger().severe("Migration from " + sourceName + " to " + targetName + " failed: " + e.getMessage());
+            e.printStackTrace();
+            send("<red>Migration from <gold><source></gold> to <gold><target></gold> failed, see the console for details.</red>");
+        } finally {
+            if (source != null) {
+                data.closeStorage(source);
+            }
+            if (target != null) {
+                data.closeStorage(target);
+            }
+            onFinish.accept(this);
+        }
+    }
+
+    @Override
+    public void capturedLoot(LocationKey location, ItemStack[] items) {
+        write(location, storage -> {
+            if (storage.hasCapturedLoot(location)) {
+                skipped.incrementAndGet();
+                return;
+            }
+            storage.captureLoot(location, items);
+            copied.incrementAndGet();
+        });
+    }
+
+    @Override
+    public void playerRecord(LocationKey location, UUID playerUUID, PlayerLootRecord record) {
+        write(location, storage -> {
+            if (storage.getPlayerRecord(location, playerUUID) != null) {
+                skipped.incrementAndGet();
+                return;
+            }
+            storage.setPlayerRecord(location, playerUUID, record);
+            copied.incrementAndGet();
+        });
+    }
+
+    @Override
+    public void playerPlaced(LocationKey location) {
+        write(location, storage -> {
+            if (storage.isPlayerPlaced(location)) {
+                skipped.incrementAndGet();
+                return;
+            }
+            storage.addPlayerPlaced(location);
+            copied.incrementAndGet();
+        });
+    }
+
+    /**
+     * Applies one entry to the target. Called by the source, always on the migration thread.
+     */
+    private void write(LocationKey location, Consumer<LootStorage> write) {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (++visited % PROGRESS_INTERVAL == 0) {
+            send("<gray>Migrating... <gold><copied></gold> entries copied, <gold><skipped></gold> skipped.</gray>");
+        }
+
+        if (!target.isChunkBound()) {
+            waitForWriteQueue();
+            write.accept(target);
+            return;
+        }
+
+        World world = data.worldOf(location);
+        if (world == null) {
+            skipped.incrementAndGet();
+            return;
+        }
+        chunkLoads.acquireUninterruptibly();
+        // Completes on the thread that owns the chunk. Chunks that were never generated come back as null.
+        world.getChunkAtAsync(location.getChunkX(), location.getChunkZ(), false).whenComplete((chunk, error) -> {
+            try {
+                if (chunk == null) {
+                    skipped.incrementAndGet();
+                } else {
+                    write.accept(target);
+                }
+            } finally {
+                chunkLoads.release();
+            }
+        });
+    }
+
+    private void waitForWriteQueue() {
+        while (target.getPendingWriteCount() > MAX_QUEUED_WRITES) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+        }
+    }
+
+    private void send(String message, TagResolver... extra) {
+        TagResolver counts = TagResolver.resolver(
+                Placeholder.unparsed("source", sourceName),
+                Placeholder.unparsed("target", targetName),
+                Placeholder.unparsed("copied", String.valueOf(copied.get())),
+                Placeholder.unparsed("skipped", String.valueOf(skipped.get()))
+        );
+        sender.sendMessage(MiniMessage.miniMessage().deserialize(message, counts, TagResolver.resolver(extra)));
+    }
+}
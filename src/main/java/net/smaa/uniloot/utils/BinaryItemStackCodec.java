@@ -0,0 +1,107 @@
+package net.smaa.uniloot.utils;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Stores items in the server's native binary item format.
+ * <p>
+ * Layout: a format version byte, the slot count, then alternating runs of empty slots and items,
+ * each item prefixed with its length. All counts and lengths are unsigned varints, so a run of
+ * empty slots costs a single byte.
+ */
+public class BinaryItemStackCodec implements ItemStackCodec {
+
+    /**
+     * First byte of every encoded array. Legacy Base64 rows always start with a printable character, so they never match.
+     */
+    public static final byte FORMAT_VERSION = 1;
+
+    @Override
+    public byte[] encode(ItemStack[] items) {
+        if (items == null) {
+            items = new ItemStack[0];
+        }
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(64 + items.length * 32);
+            DataOutputStream dataOutput = new DataOutputStream(outputStream);
+            dataOutput.writeByte(FORMAT_VERSION);
+            writeVarInt(dataOutput, items.length);
+
+            int emptyRun = 0;
+            for (ItemStack item : items) {
+                if (item == null || item.isEmpty()) {
+                    emptyRun++;
+                    continue;
+                }
+                writeVarInt(dataOutput, emptyRun);
+                emptyRun = 0;
+                byte[] itemBytes = item.serializeAsBytes();
+                writeVarInt(dataOutput, itemBytes.length);
+                dataOutput.write(itemBytes);
+            }
+            // The trailing empty slots are implied by the slot count.
+            return outputStream.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Unable to save item stacks.", e);
+        }
+    }
+
+    @Override
+    public ItemStack[] decode(byte[] data) throws IOException {
+        if (!canDecode(data)) {
+            throw new IOException("Unknown item format.");
+        }
+        DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+        int size = readVarInt(dataInput);
+        ItemStack[] items = new ItemStack[size];
+
+        int slot = 0;
+        while (dataInput.available() > 0) {
+            slot += readVarInt(dataInput);
+            int length = readVarInt(dataInput);
+            if (slot >= size || length > dataInput.available()) {
+                throw new IOException("Item data is truncated or corrupt.");
+            }
+            byte[] itemBytes = new byte[length];
+            dataInput.readFully(itemBytes);
+            try {
+                items[slot++] = ItemStack.deserializeBytes(itemBytes);
+            } catch (RuntimeException e) {
+                throw new IOException("Unable to decode item in slot " + (slot - 1) + ".", e);
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public boolean canDecode(byte[] data) {
+        return data != null && data.length > 0 && data[0] == FORMAT_VERSION;
+    }
+
+    static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) break;
+                return value;
+            }
+        }
+        throw new IOException("Malformed length in item data.");
+    }
+}
@@ -0,0 +1,133 @@
+package net.smaa.uniloot.utils;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The fallback loot list compiled for fast generation. Items are drawn with Vose's alias method,
+ * which costs one random column and one coin flip per draw no matter how many items or how uneven the weights are.
+ */
+public final class FallbackLootTable {
+
+    public static final FallbackLootTable EMPTY = compile(List.of());
+
+    private final Material[] materials;
+    private final int[] minAmounts;
+    private final int[] amountSpans;
+    private final double[] probability;
+    private final int[] alias;
+
+    private FallbackLootTable(int size) {
+        this.materials = new Material[size];
+        this.minAmounts = new int[size];
+        this.amountSpans = new int[size];
+        this.probability = new double[size];
+        this.alias = new int[size];
+    }
+
+    /**
+     * @param items The parsed fallback items, all with a positive weight.
+     * @return The compiled table.
+     */
+    public static FallbackLootTable compile(List<FallbackLootItem> items) {
+        int size = items.size();
+        FallbackLootTable table = new FallbackLootTable(size);
+        if (size == 0) {
+            return table;
+        }
+
+        long totalWeight = 0;
+        for (int i = 0; i < size; i++) {
+            FallbackLootItem item = items.get(i);
+            table.materials[i] = item.getMaterial();
+            table.minAmounts[i] = item.getMinAmount();
+            table.amountSpans[i] = Math.max(1, item.getMaxAmount() - item.getMinAmount() + 1);
+            totalWeight += item.getWeight();
+        }
+
+        // Scale the weights so they average 1, then pair every column below 1 with one above it.
+        double[] scaled = new double[size];
+        Deque<Integer> small = new ArrayDeque<>();
+        Deque<Integer> large = new ArrayDeque<>();
+        for (int i = 0; i < size; i++) {
+            scaled[i] = (double) items.get(i).getWeight() * size / totalWeight;
+            (scaled[i] < 1.0 ? small : large).add(i);
+        }
+        while (!small.isEmpty() && !large.isEmpty()) {
+            int less = small.poll();
+            int more = large.poll();
+            table.probability[less] = scaled[less];
+            table.alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            (scaled[more] < 1.0 ? small : large).add(more);
+        }
+        // Whatever is left is 1 up to rounding error.
+        while (!large.isEmpty()) {
+            table.probability[large.poll()] = 1.0;
+        }
+        while (!small.isEmpty()) {
+            table.probability[small.poll()] = 1.0;
+        }
+        return table;
+    }
+
+    public boolean isEmpty() {
+        return materials.length == 0;
+    }
+
+    public int size() {
+        return materials.length;
+    }
+
+    /**
+     * @return The index of a weighted random item. The table must not be empty.
+     */
+    public int sample(Random random) {
+        int column = random.nextInt(materials.length);
+        return random.nextDouble() < probability[column] ? column : alias[column];
+    }
+
+    /**
+     * @return A new stack of the item at the given index with a random amount in its range.
+     */
+    public ItemStack createItem(int index, Random random) {
+        int span = amountSpans[index];
+        int amount = minAmounts[index] + (span > 1 ? random.nextInt(span) : 0);
+        return new ItemStack(materials[index], amount);
+    }
+
+    /**
+     * Puts up to {@code count} weighted random items into distinct empty slots of the inventory.
+     * The empty slots are collected once and drawn without replacement, so a nearly full inventory costs no extra work.
+     * @return The number of items placed.
+     */
+    public int fill(Inventory inventory, int count, Random random) {
+        if (isEmpty() || count <= 0) {
+            return 0;
+        }
+        ItemStack[] contents = inventory.getContents();
+        int[] freeSlots = new int[contents.length];
+        int free = 0;
+        for (int slot = 0; slot < contents.length; slot++) {
+            if (contents[slot] == null || contents[slot].getType().isAir()) {
+                freeSlots[free++] = slot;
+            }
+        }
+
+        int placed = 0;
+        while (placed < count && free > 0) {
+            int pick = random.nextInt(free);
+            int slot = freeSlots[pick];
+            freeSlots[pick] = freeSlots[--free];
+            inventory.setItem(slot, createItem(sample(random), random));
+            placed++;
+        }
+        return placed;
+    }
+}
@@ -0,0 +1,31 @@
+package net.smaa.uniloot.utils;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+
+/**
+ * Turns the contents of a container into bytes for storage and back.
+ */
+public interface ItemStackCodec {
+
+    /**
+     * @param items The items to encode, may contain null slots.
+     * @return The encoded items.
+     * @throws IllegalStateException If an item cannot be encoded.
+     */
+    byte[] encode(ItemStack[] items);
+
+    /**
+     * @param data Bytes previously returned by {@link #encode}.
+     * @return The decoded items, with empty slots as null.
+     * @throws IOException If the data is malformed.
+     */
+    ItemStack[] decode(byte[] data) throws IOException;
+
+    /**
+     * @param data Stored bytes of unknown format.
+     * @return true if the data was written by this codec.
+     */
+    boolean canDecode(byte[] data);
+}
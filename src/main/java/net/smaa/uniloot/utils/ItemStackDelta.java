@@ -0,0 +1,124 @@
+package net.smaa.uniloot.utils;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Stores the contents of a container as the slots that differ from a template, such as the captured loot
+ * the contents were copied from. Players that took nothing cost a few bytes instead of a full inventory.
+ * <p>
+ * Layout: a format version byte, the slot count, then one entry per changed slot: the number of unchanged
+ * slots skipped since the previous entry, the item length and the item in the server's binary item format.
+ * A length of zero marks a slot that is empty now but not in the template. All numbers are unsigned varints.
+ */
+public final class ItemStackDelta {
+
+    /**
+     * First byte of every delta, distinct from {@link BinaryItemStackCodec#FORMAT_VERSION} and from legacy Base64 rows.
+     */
+    public static final byte FORMAT_VERSION = 2;
+
+    private ItemStackDelta() {
+    }
+
+    /**
+     * @param template The contents the delta is relative to.
+     * @param items The contents to encode, may contain null slots.
+     * @return The encoded difference.
+     * @throws IllegalStateException If an item cannot be encoded.
+     */
+    public static byte[] encode(ItemStack[] template, ItemStack[] items) {
+        if (items == null) {
+            items = new ItemStack[0];
+        }
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(16);
+            DataOutputStream dataOutput = new DataOutputStream(outputStream);
+            dataOutput.writeByte(FORMAT_VERSION);
+            BinaryItemStackCodec.writeVarInt(dataOutput, items.length);
+
+            int unchangedRun = 0;
+            for (int slot = 0; slot < items.length; slot++) {
+                ItemStack item = emptyToNull(items[slot]);
+                if (Objects.equals(item, slotOf(template, slot))) {
+                    unchangedRun++;
+                    continue;
+                }
+                BinaryItemStackCodec.writeVarInt(dataOutput, unchangedRun);
+                unchangedRun = 0;
+                if (item == null) {
+                    BinaryItemStackCodec.writeVarInt(dataOutput, 0);
+                } else {
+                    byte[] itemBytes = item.serializeAsBytes();
+                    BinaryItemStackCodec.writeVarInt(dataOutput, itemBytes.length);
+                    dataOutput.write(itemBytes);
+                }
+            }
+            return outputStream.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Unable to save item stacks.", e);
+        }
+    }
+
+    /**
+     * @param template The contents the delta was encoded against.
+     * @param data Bytes previously returned by {@link #encode}.
+     * @return The contents, with fresh copies of the template's items so the template itself is never shared.
+     * @throws IOException If the data is malformed.
+     */
+    public static ItemStack[] apply(ItemStack[] template, byte[] data) throws IOException {
+        if (!isDelta(data)) {
+            throw new IOException("Not an item delta.");
+        }
+        DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+        int size = BinaryItemStackCodec.readVarInt(dataInput);
+        ItemStack[] items = new ItemStack[size];
+        for (int slot = 0; slot < size; slot++) {
+            ItemStack item = slotOf(template, slot);
+            items[slot] = item == null ? null : item.clone();
+        }
+
+        int slot = 0;
+        while (dataInput.available() > 0) {
+            slot += BinaryItemStackCodec.readVarInt(dataInput);
+            int length = BinaryItemStackCodec.readVarInt(dataInput);
+            if (slot >= size || length > dataInput.available()) {
+                throw new IOException("Item delta is truncated or corrupt.");
+            }
+            if (length == 0) {
+                items[slot++] = null;
+                continue;
+            }
+            byte[] itemBytes = new byte[length];
+            dataInput.readFully(itemBytes);
+            try {
+                items[slot++] = ItemStack.deserializeBytes(itemBytes);
+            } catch (RuntimeException e) {
+                throw new IOException("Unable to decode item in slot " + (slot - 1) + ".", e);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @param data Stored bytes of unknown format.
+     * @return true if the data is a delta and needs its template to be decoded.
+     */
+    public static boolean isDelta(byte[] data) {
+        return data != null && data.length > 0 && data[0] == FORMAT_VERSION;
+    }
+
+    private static ItemStack slotOf(ItemStack[] items, int slot) {
+        return items == null || slot >= items.length ? null : emptyToNull(items[slot]);
+    }
+
+    private static ItemStack emptyToNull(ItemStack item) {
+        return item == null || item.isEmpty() ? null : item;
+    }
+}
@@ -0,0 +1,36 @@
+package net.smaa.uniloot.utils;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The original Base64 encoded Java serialization format. Only used to read rows written by older versions,
+ * those rows are rewritten in the current format the next time they change.
+ */
+public class LegacyItemStackCodec implements ItemStackCodec {
+
+    @Override
+    public byte[] encode(ItemStack[] items) {
+        return SerializationUtil.itemStackArrayToBase64(items).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public ItemStack[] decode(byte[] data) throws IOException {
+        try {
+            return SerializationUtil.itemStackArrayFromBase64(data == null ? null : new String(data, StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Item data is not valid Base64.", e);
+        }
+    }
+
+    @Override
+    public boolean canDecode(byte[] data) {
+        if (data == null || data.length == 0) {
+            return true;
+        }
+        byte first = data[0];
+        return (first >= 'A' && first <= 'Z') || (first >= 'a' && first <= 'z') || (first >= '0' && first <= '9') || first == '+' || first == '/';
+    }
+}
@@ -0,0 +1,113 @@
+package net.smaa.uniloot.utils;
+
+/**
+ * A compact, immutable key for a block location: a world id from the world registry plus the
+ * block coordinates packed into a single long.
+ * <p>
+ * The position is laid out chunk first (22 bits chunk x, 22 bits chunk z, 12 bits y, 4 bits x, 4 bits z),
+ * so all blocks of one chunk form a contiguous range of positions that can be queried with a single BETWEEN.
+ */
+public final class LocationKey {
+
+    private static final long CHUNK_MASK = 0xFFFFFL;
+
+    private final int worldId;
+    private final long position;
+
+    public LocationKey(int worldId, long position) {
+        this.worldId = worldId;
+        this.position = position;
+    }
+
+    public static LocationKey of(int worldId, int x, int y, int z) {
+        return new LocationKey(worldId, pack(x, y, z));
+    }
+
+    /**
+     * Packs block coordinates into a position. Supports the full world border on x and z and y from -2048 to 2047.
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @return The packed position.
+     */
+    public static long pack(int x, int y, int z) {
+        return ((long) ((x >> 4) & 0x3FFFFF) << 42)
+                | ((long) ((z >> 4) & 0x3FFFFF) << 20)
+                | ((long) (y & 0xFFF) << 8)
+                | ((x & 15) << 4)
+                | (z & 15);
+    }
+
+    /**
+     * @return The lowest packed position inside the given chunk.
+     */
+    public static long chunkMinPosition(int chunkX, int chunkZ) {
+        return ((long) (chunkX & 0x3FFFFF) << 42) | ((long) (chunkZ & 0x3FFFFF) << 20);
+    }
+
+    /**
+     * @return The highest packed position inside the given chunk.
+     */
+    public static long chunkMaxPosition(int chunkX, int chunkZ) {
+        return chunkMinPosition(chunkX, chunkZ) | CHUNK_MASK;
+    }
+
+    /**
+     * @return The chunk key shared by every position in the given chunk, see {@link #getChunkKey()}.
+     */
+    public static long chunkKey(int chunkX, int chunkZ) {
+        return chunkMinPosition(chunkX, chunkZ) >> 20;
+    }
+
+    public int getWorldId() {
+        return worldId;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public int getChunkX() {
+        return (int) (position >> 42);
+    }
+
+    public int getChunkZ() {
+        return (int) (position << 22 >> 42);
+    }
+
+    /**
+     * @return A value shared by every position in the same chunk, usable as a map key.
+     */
+    public long getChunkKey() {
+        return position >> 20;
+    }
+
+    public int getX() {
+        return (getChunkX() << 4) | (int) ((position >> 4) & 15);
+    }
+
+    public int getY() {
+        return (int) (position << 44 >> 52);
+    }
+
+    public int getZ() {
+        return (getChunkZ() << 4) | (int) (position & 15);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LocationKey other)) return false;
+        return worldId == other.worldId && position == other.position;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * worldId + Long.hashCode(position);
+    }
+
+    @Override
+    public String toString() {
+        return worldId + ";" + getX() + ";" + getY() + ";" + getZ();
+    }
+}
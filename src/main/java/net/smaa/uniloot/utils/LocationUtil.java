@@ -28,4 +28,37 @@ public class LocationUtil {
     public static String locationToString(String worldName, int x, int y, int z) {
         return worldName + ";" + x + ";" + y + ";" + z;
     }
+
+    /**
+     * Reads the coordinates back out of a key made by {@link #locationToString}.
+     * World names may contain the separator, so the coordinates are parsed from the end.
+     * @param locationKey The location key.
+     * @return The x, y and z coordinates, or null if the key is malformed.
+     */
+    public static int[] coordinatesOf(String locationKey) {
+        int zSplit = locationKey.lastIndexOf(';');
+        int ySplit = locationKey.lastIndexOf(';', zSplit - 1);
+        int xSplit = locationKey.lastIndexOf(';', ySplit - 1);
+        if (xSplit <= 0) return null;
+        try {
+            return new int[] {
+                    Integer.parseInt(locationKey.substring(xSplit + 1, ySplit)),
+                    Integer.parseInt(locationKey.substring(ySplit + 1, zSplit)),
+                    Integer.parseInt(locationKey.substring(zSplit + 1))
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param locationKey A key made by {@link #locationToString}.
+     * @return The world name part of the key, or null if the key is malformed.
+     */
+    public static String worldNameOf(String locationKey) {
+        int zSplit = locationKey.lastIndexOf(';');
+        int ySplit = locationKey.lastIndexOf(';', zSplit - 1);
+        int xSplit = locationKey.lastIndexOf(';', ySplit - 1);
+        return xSplit <= 0 ? null : locationKey.substring(0, xSplit);
+    }
 }
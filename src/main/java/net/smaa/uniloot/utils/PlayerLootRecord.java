@@ -2,20 +2,43 @@ package net.smaa.uniloot.utils;
 
 import org.bukkit.inventory.ItemStack;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 public class PlayerLootRecord {
     private final long timestamp;
     private ItemStack[] contents;
+    // Set until the contents are first needed. Written after contents, so a null read here makes them visible.
+    private volatile ContentsLoader loader;
 
     public PlayerLootRecord(long timestamp, ItemStack[] contents) {
         this.timestamp = timestamp;
         this.contents = contents;
     }
 
+    private PlayerLootRecord(long timestamp, ContentsLoader loader) {
+        this.timestamp = timestamp;
+        this.loader = loader;
+    }
+
+    /**
+     * Creates a record whose contents are only read and decoded when something asks for them,
+     * so a cooldown check that ends in a reroll never pays for the stale items.
+     * @param loader Called at most once, on whichever thread first needs the contents.
+     */
+    public static PlayerLootRecord lazy(long timestamp, ContentsLoader loader) {
+        return new PlayerLootRecord(timestamp, loader);
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
 
+    /**
+     * @throws UncheckedIOException If lazily loaded contents turn out to be unreadable.
+     */
     public ItemStack[] getContents() {
+        ItemStack[] contents = loadedContents();
         // Return a copy to prevent external modification of the original array
         if (contents == null) return null;
         ItemStack[] copy = new ItemStack[contents.length];
@@ -27,18 +50,51 @@ public class PlayerLootRecord {
         return copy;
     }
 
-    public void setContents(ItemStack[] contents) {
+    /**
+     * @return The contents without copying them. Callers must not modify the array or its items.
+     * @throws UncheckedIOException If lazily loaded contents turn out to be unreadable.
+     */
+    public ItemStack[] getContentsUnsafe() {
+        return loadedContents();
+    }
+
+    public synchronized void setContents(ItemStack[] contents) {
         // Save a copy to prevent external modification of the original array
         if (contents == null) {
             this.contents = null;
-            return;
+        } else {
+            this.contents = new ItemStack[contents.length];
+            for (int i = 0; i < contents.length; i++) {
+                if (contents[i] != null) {
+                    this.contents[i] = contents[i].clone();
+                }
+            }
         }
-        this.contents = new ItemStack[contents.length];
-        for (int i = 0; i < contents.length; i++) {
-            if (contents[i] != null) {
-                this.contents[i] = contents[i].clone();
+        loader = null;
+    }
+
+    private ItemStack[] loadedContents() {
+        if (loader != null) {
+            synchronized (this) {
+                ContentsLoader pending = loader;
+                if (pending != null) {
+                    try {
+                        contents = pending.load();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Unreadable loot record contents: " + e.getMessage(), e);
+                    }
+                    loader = null;
+                }
             }
         }
+        return contents;
     }
-}
 
+    /**
+     * Reads and decodes the contents of a stored record.
+     */
+    @FunctionalInterface
+    public interface ContentsLoader {
+        ItemStack[] load() throws IOException;
+    }
+}
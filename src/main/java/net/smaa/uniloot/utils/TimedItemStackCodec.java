@@ -0,0 +1,46 @@
+package net.smaa.uniloot.utils;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+
+/**
+ * Wraps a codec and records how long every encode and decode takes.
+ */
+public class TimedItemStackCodec implements ItemStackCodec {
+
+    private final ItemStackCodec codec;
+    private final LatencyHistogram encodeTimer;
+    private final LatencyHistogram decodeTimer;
+
+    public TimedItemStackCodec(ItemStackCodec codec, LatencyHistogram encodeTimer, LatencyHistogram decodeTimer) {
+        this.codec = codec;
+        this.encodeTimer = encodeTimer;
+        this.decodeTimer = decodeTimer;
+    }
+
+    @Override
+    public byte[] encode(ItemStack[] items) {
+        long start = System.nanoTime();
+        try {
+            return codec.encode(items);
+        } finally {
+            encodeTimer.recordSince(start);
+        }
+    }
+
+    @Override
+    public ItemStack[] decode(byte[] data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return codec.decode(data);
+        } finally {
+            decodeTimer.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean canDecode(byte[] data) {
+        return codec.canDecode(data);
+    }
+}
@@ -0,0 +1,199 @@
+package net.smaa.uniloot.managers;
+
+import net.smaa.uniloot.UniLoot;
+import net.smaa.uniloot.utils.LocationKey;
+import net.smaa.uniloot.utils.PlayerLootRecord;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockbukkit.mockbukkit.MockBukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogLootStorageTest {
+
+    private static final int WORLD_ID = 1;
+    private static final UUID PLAYER = UUID.randomUUID();
+
+    private static UniLoot plugin;
+
+    private LogLootStorage storage;
+
+    @BeforeAll
+    static void startServer() {
+        MockBukkit.mock();
+        plugin = MockBukkit.load(UniLoot.class);
+        // Take storage away from the plugin so the tests own the only loot.log.
+        MockBukkit.getMock().getPluginManager().disablePlugin(plugin);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        MockBukkit.unmock();
+    }
+
+    @BeforeEach
+    void deleteLog() throws IOException {
+        Files.deleteIfExists(logFile().toPath());
+    }
+
+    @AfterEach
+    void closeStorage() {
+        if (storage != null) {
+            storage.close();
+            storage = null;
+        }
+    }
+
+    @Test
+    void reopenKeepsEveryKindOfEntry() {
+        LocationKey chest = LocationKey.of(WORLD_ID, 10, 64, 10);
+        LocationKey barrel = LocationKey.of(WORLD_ID, 20, 64, 20);
+        LocationKey cleared = LocationKey.of(WORLD_ID, 30, 64, 30);
+        ItemStack[] template = contents(Material.IRON_INGOT);
+        ItemStack[] looted = template.clone();
+        looted[0] = null;
+
+        reopen();
+        storage.captureLoot(chest, template);
+        storage.setPlayerRecord(chest, PLAYER, new PlayerLootRecord(1_000L, looted));
+        storage.addPlayerPlaced(barrel);
+        storage.setPlayerRecord(cleared, PLAYER, new PlayerLootRecord(2_000L, template));
+        storage.addPlayerPlaced(cleared);
+        awaitWrites(storage);
+        storage.clearAllDataForLocation(cleared);
+
+        reopen();
+        assertArrayEquals(template, storage.getCapturedLoot(chest));
+        PlayerLootRecord record = storage.getPlayerRecord(chest, PLAYER);
+        assertNotNull(record);
+        assertEquals(1_000L, record.getTimestamp());
+        assertArrayEquals(looted, record.getContents());
+        assertTrue(storage.isPlayerPlaced(barrel));
+        assertNull(storage.getPlayerRecord(cleared, PLAYER));
+        assertFalse(storage.isPlayerPlaced(cleared));
+    }
+
+    @Test
+    void reopenDropsTornLastEntry() throws IOException {
+        LocationKey kept = LocationKey.of(WORLD_ID, 10, 64, 10);
+        LocationKey torn = LocationKey.of(WORLD_ID, 20, 64, 20);
+        LocationKey appended = LocationKey.of(WORLD_ID, 30, 64, 30);
+
+        reopen();
+        storage.setPlayerRecord(kept, PLAYER, new PlayerLootRecord(1_000L, contents(Material.BREAD)));
+        reopen();
+        long intactSize = logFile().length();
+        storage.setPlayerRecord(torn, PLAYER, new PlayerLootRecord(2_000L, contents(Material.COAL)));
+        storage.close();
+        storage = null;
+
+        // A crash in the middle of the last append.
+        try (FileChannel channel = FileChannel.open(logFile().toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        reopen();
+        assertEquals(intactSize, logFile().length());
+        assertArrayEquals(contents(Material.BREAD), storage.getPlayerRecord(kept, PLAYER).getContents());
+        assertNull(storage.getPlayerRecord(torn, PLAYER));
+
+        // Appends continue right after the last intact entry.
+        storage.setPlayerRecord(appended, PLAYER, new PlayerLootRecord(3_000L, contents(Material.ARROW)));
+        reopen();
+        assertArrayEquals(contents(Material.BREAD), storage.getPlayerRecord(kept, PLAYER).getContents());
+        assertArrayEquals(contents(Material.ARROW), storage.getPlayerRecord(appended, PLAYER).getContents());
+    }
+
+    @Test
+    void compactionKeepsAppendsMadeDuringTheCopy() throws IOException {
+        LocationKey overwritten = LocationKey.of(WORLD_ID, 10, 64, 10);
+        LocationKey unplaced = LocationKey.of(WORLD_ID, 20, 64, 20);
+        LocationKey added = LocationKey.of(WORLD_ID, 30, 64, 30);
+
+        reopen();
+        storage.setPlayerRecord(overwritten, PLAYER, new PlayerLootRecord(1_000L, contents(Material.BREAD)));
+        storage.addPlayerPlaced(unplaced);
+        for (int i = 0; i < 50; i++) {
+            storage.setPlayerRecord(LocationKey.of(WORLD_ID, i, 0, 100), PLAYER, new PlayerLootRecord(1_000L, contents(Material.DIRT)));
+        }
+        awaitWrites(storage);
+        for (int i = 0; i < 50; i++) {
+            storage.clearAllDataForLocation(LocationKey.of(WORLD_ID, i, 0, 100));
+        }
+        awaitWrites(storage);
+        long sizeBefore = logFile().length();
+
+        storage.compact(() -> {
+            storage.setPlayerRecord(overwritten, PLAYER, new PlayerLootRecord(2_000L, contents(Material.COAL)));
+            storage.removePlayerPlaced(unplaced);
+            storage.setPlayerRecord(added, PLAYER, new PlayerLootRecord(3_000L, contents(Material.ARROW)));
+            awaitWrites(storage);
+        });
+
+        assertTrue(logFile().length() < sizeBefore);
+        assertFalse(new File(plugin.getDataFolder(), "loot.log.compact").exists());
+        assertCompactedState(overwritten, unplaced, added);
+
+        reopen();
+        assertCompactedState(overwritten, unplaced, added);
+    }
+
+    private void assertCompactedState(LocationKey overwritten, LocationKey unplaced, LocationKey added) {
+        PlayerLootRecord record = storage.getPlayerRecord(overwritten, PLAYER);
+        assertEquals(2_000L, record.getTimestamp());
+        assertArrayEquals(contents(Material.COAL), record.getContents());
+        assertFalse(storage.isPlayerPlaced(unplaced));
+        assertArrayEquals(contents(Material.ARROW), storage.getPlayerRecord(added, PLAYER).getContents());
+        assertNull(storage.getPlayerRecord(LocationKey.of(WORLD_ID, 0, 0, 100), PLAYER));
+    }
+
+    /**
+     * Closes the current storage, which appends everything still queued, and opens the log again.
+     */
+    private void reopen() {
+        if (storage != null) {
+            storage.close();
+        }
+        storage = new LogLootStorage(plugin);
+        storage.load();
+    }
+
+    private static File logFile() {
+        return new File(plugin.getDataFolder(), "loot.log");
+    }
+
+    private static void awaitWrites(LogLootStorage storage) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (storage.getPendingWriteCount() > 0) {
+            assertTrue(System.nanoTime() < deadline, "Queued writes were not appended in time.");
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    private static ItemStack[] contents(Material material) {
+        ItemStack[] contents = new ItemStack[27];
+        contents[0] = new ItemStack(material, 5);
+        contents[13] = new ItemStack(Material.GOLDEN_APPLE, 1);
+        contents[26] = new ItemStack(material, 64);
+        return contents;
+    }
+}
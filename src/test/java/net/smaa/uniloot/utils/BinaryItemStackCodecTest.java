@@ -0,0 +1,110 @@
+package net.smaa.uniloot.utils;
+
+import net.kyori.adventure.text.Component;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mockbukkit.mockbukkit.MockBukkit;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryItemStackCodecTest {
+
+    private final ItemStackCodec codec = new BinaryItemStackCodec();
+
+    @BeforeAll
+    static void startServer() {
+        MockBukkit.mock();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        MockBukkit.unmock();
+    }
+
+    /**
+     * @return A single chest with a few items between null slots, one of them with a custom name, and an empty last slot.
+     */
+    static ItemStack[] chestContents() {
+        ItemStack[] contents = new ItemStack[27];
+        contents[0] = new ItemStack(Material.IRON_INGOT, 5);
+        contents[4] = new ItemStack(Material.GOLDEN_APPLE, 1);
+        ItemStack sword = new ItemStack(Material.DIAMOND_SWORD);
+        ItemMeta meta = sword.getItemMeta();
+        meta.displayName(Component.text("Rusty Blade"));
+        sword.setItemMeta(meta);
+        contents[11] = sword;
+        contents[25] = new ItemStack(Material.ARROW, 24);
+        return contents;
+    }
+
+    @Test
+    void roundTripKeepsItemsAndNullSlots() throws IOException {
+        ItemStack[] contents = chestContents();
+
+        ItemStack[] decoded = codec.decode(codec.encode(contents));
+
+        assertArrayEquals(contents, decoded);
+    }
+
+    @Test
+    void roundTripKeepsTrailingEmptySlots() throws IOException {
+        ItemStack[] contents = new ItemStack[9];
+        contents[0] = new ItemStack(Material.BREAD, 3);
+
+        ItemStack[] decoded = codec.decode(codec.encode(contents));
+
+        assertEquals(9, decoded.length);
+        assertArrayEquals(contents, decoded);
+    }
+
+    @Test
+    void emptyItemsDecodeAsNull() throws IOException {
+        ItemStack[] contents = { new ItemStack(Material.AIR), new ItemStack(Material.EMERALD, 4), ItemStack.empty() };
+
+        ItemStack[] decoded = codec.decode(codec.encode(contents));
+
+        assertEquals(3, decoded.length);
+        assertNull(decoded[0]);
+        assertEquals(contents[1], decoded[1]);
+        assertNull(decoded[2]);
+    }
+
+    @Test
+    void nullAndEmptyArraysRoundTrip() throws IOException {
+        assertEquals(0, codec.decode(codec.encode(null)).length);
+        assertEquals(0, codec.decode(codec.encode(new ItemStack[0])).length);
+
+        ItemStack[] allEmpty = codec.decode(codec.encode(new ItemStack[27]));
+        assertEquals(27, allEmpty.length);
+        assertTrue(Arrays.stream(allEmpty).allMatch(item -> item == null));
+    }
+
+    @Test
+    void rejectsOtherFormats() {
+        byte[] delta = ItemStackDelta.encode(null, chestContents());
+
+        assertFalse(codec.canDecode(delta));
+        assertThrows(IOException.class, () -> codec.decode(delta));
+        assertThrows(IOException.class, () -> codec.decode(new byte[0]));
+    }
+
+    @Test
+    void rejectsTruncatedData() {
+        byte[] encoded = codec.encode(chestContents());
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 1);
+
+        assertThrows(IOException.class, () -> codec.decode(truncated));
+    }
+}
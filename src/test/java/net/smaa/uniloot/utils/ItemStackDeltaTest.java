@@ -0,0 +1,139 @@
+package net.smaa.uniloot.utils;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mockbukkit.mockbukkit.MockBukkit;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ItemStackDeltaTest {
+
+    @BeforeAll
+    static void startServer() {
+        MockBukkit.mock();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        MockBukkit.unmock();
+    }
+
+    @Test
+    void unchangedContentsOnlyStoreTheSlotCount() throws IOException {
+        ItemStack[] template = BinaryItemStackCodecTest.chestContents();
+        ItemStack[] contents = copyOf(template);
+
+        byte[] delta = ItemStackDelta.encode(template, contents);
+        ItemStack[] applied = ItemStackDelta.apply(template, delta);
+
+        assertEquals(2, delta.length);
+        assertArrayEquals(template, applied);
+        // The template is shared between players, so it must never be handed out itself.
+        assertNotSame(template[0], applied[0]);
+    }
+
+    @Test
+    void roundTripKeepsTakenAndChangedSlots() throws IOException {
+        ItemStack[] template = BinaryItemStackCodecTest.chestContents();
+        ItemStack[] contents = copyOf(template);
+        contents[0] = null;
+        contents[4].setAmount(2);
+        contents[7] = new ItemStack(Material.DIRT, 64);
+
+        ItemStack[] applied = ItemStackDelta.apply(template, ItemStackDelta.encode(template, contents));
+
+        assertArrayEquals(contents, applied);
+    }
+
+    @Test
+    void roundTripKeepsTrailingEmptySlot() throws IOException {
+        ItemStack[] template = BinaryItemStackCodecTest.chestContents();
+        template[26] = new ItemStack(Material.GUNPOWDER, 7);
+        ItemStack[] contents = copyOf(template);
+        contents[26] = null;
+
+        ItemStack[] applied = ItemStackDelta.apply(template, ItemStackDelta.encode(template, contents));
+
+        assertEquals(27, applied.length);
+        assertNull(applied[26]);
+        assertArrayEquals(contents, applied);
+    }
+
+    @Test
+    void emptyItemsMatchEmptyTemplateSlots() throws IOException {
+        ItemStack[] template = BinaryItemStackCodecTest.chestContents();
+        ItemStack[] contents = copyOf(template);
+        contents[1] = new ItemStack(Material.AIR);
+
+        byte[] delta = ItemStackDelta.encode(template, contents);
+        ItemStack[] applied = ItemStackDelta.apply(template, delta);
+
+        assertEquals(2, delta.length);
+        assertNull(applied[1]);
+    }
+
+    @Test
+    void roundTripWithLargerRecordThanTemplate() throws IOException {
+        ItemStack[] template = BinaryItemStackCodecTest.chestContents();
+        // A single chest that became a double chest after its loot was captured.
+        ItemStack[] contents = Arrays.copyOf(copyOf(template), 54);
+        contents[40] = new ItemStack(Material.COBBLESTONE, 32);
+
+        ItemStack[] applied = ItemStackDelta.apply(template, ItemStackDelta.encode(template, contents));
+
+        assertEquals(54, applied.length);
+        assertArrayEquals(contents, applied);
+    }
+
+    @Test
+    void roundTripWithSmallerRecordThanTemplate() throws IOException {
+        ItemStack[] template = BinaryItemStackCodecTest.chestContents();
+        ItemStack[] contents = Arrays.copyOf(copyOf(template), 9);
+        contents[0] = null;
+
+        ItemStack[] applied = ItemStackDelta.apply(template, ItemStackDelta.encode(template, contents));
+
+        assertEquals(9, applied.length);
+        assertArrayEquals(contents, applied);
+    }
+
+    @Test
+    void roundTripWithoutTemplate() throws IOException {
+        ItemStack[] contents = BinaryItemStackCodecTest.chestContents();
+
+        ItemStack[] applied = ItemStackDelta.apply(null, ItemStackDelta.encode(null, contents));
+
+        assertArrayEquals(contents, applied);
+    }
+
+    @Test
+    void rejectsOtherFormats() {
+        byte[] binary = new BinaryItemStackCodec().encode(BinaryItemStackCodecTest.chestContents());
+
+        assertFalse(ItemStackDelta.isDelta(binary));
+        assertTrue(ItemStackDelta.isDelta(ItemStackDelta.encode(null, new ItemStack[0])));
+        assertThrows(IOException.class, () -> ItemStackDelta.apply(null, binary));
+    }
+
+    private static ItemStack[] copyOf(ItemStack[] items) {
+        ItemStack[] copy = new ItemStack[items.length];
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null) {
+                copy[i] = items[i].clone();
+            }
+        }
+        return copy;
+    }
+}